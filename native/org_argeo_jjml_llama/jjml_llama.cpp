@@ -1,4 +1,10 @@
 #include <stddef.h>
+#include <algorithm>
+#include <atomic>
+#include <condition_variable>
+#include <exception>
+#include <mutex>
+#include <thread>
 
 #include "jjml_llama.h"
 
@@ -21,3 +27,126 @@ void jjml_llama_batch_add(struct llama_batch &batch, llama_token id,
 void jjml_llama_batch_clear(struct llama_batch &batch) {
 	batch.n_tokens = 0;
 }
+
+std::vector<llama_sampler*> jjml_llama_samplers(JNIEnv *env,
+		jlongArray pointers) {
+	std::vector<llama_sampler*> res;
+	if (pointers == nullptr)
+		return res;
+	const jsize n = env->GetArrayLength(pointers);
+	std::vector<jlong> arr(n);
+	env->GetLongArrayRegion(pointers, 0, n, arr.data());
+	for (jsize i = 0; i < n; i++)
+		res.push_back(reinterpret_cast<llama_sampler*>(arr[i]));
+	return res;
+}
+
+/*
+ * WORKER POOL
+ */
+namespace {
+/** Persistent threads, so that there is no thread creation in the hot path.*/
+class jjml_worker_pool {
+	/** Only one job at a time.*/
+	std::mutex job_mutex;
+
+	std::mutex mutex;
+	std::condition_variable work_cv;
+	std::condition_variable done_cv;
+	std::vector<std::thread> workers;
+	bool stopping = false;
+
+	// current job
+	const std::function<void(int)> *task = nullptr;
+	int n = 0;
+	std::atomic<int> next { 0 };
+	uint64_t generation = 0;
+	int slots = 0;
+	int pending = 0;
+	std::exception_ptr error = nullptr;
+
+	void work() {
+		for (int i = next.fetch_add(1); i < n; i = next.fetch_add(1)) {
+			try {
+				(*task)(i);
+			} catch (...) {
+				std::lock_guard<std::mutex> lock(mutex);
+				if (!error)
+					error = std::current_exception();
+			}
+		}
+	}
+
+	void worker_loop() {
+		uint64_t seen = 0;
+		std::unique_lock<std::mutex> lock(mutex);
+		while (true) {
+			work_cv.wait(lock, [&] {
+				return stopping || (generation != seen && slots > 0);
+			});
+			if (stopping)
+				return;
+			seen = generation;
+			slots--;
+			lock.unlock();
+			work();
+			lock.lock();
+			if (--pending == 0)
+				done_cv.notify_one();
+		}
+	}
+
+public:
+	~jjml_worker_pool() {
+		{
+			std::lock_guard<std::mutex> lock(mutex);
+			stopping = true;
+		}
+		work_cv.notify_all();
+		for (auto &worker : workers)
+			worker.join();
+	}
+
+	void run(int n_threads, int n_tasks, const std::function<void(int)> &fn) {
+		std::unique_lock<std::mutex> job_lock(job_mutex, std::try_to_lock);
+		if (n_threads <= 1 || n_tasks <= 1 || !job_lock.owns_lock()) {
+			for (int i = 0; i < n_tasks; i++)
+				fn(i);
+			return;
+		}
+
+		std::unique_lock<std::mutex> lock(mutex);
+		while (static_cast<int>(workers.size()) < n_threads - 1)
+			workers.emplace_back(&jjml_worker_pool::worker_loop, this);
+
+		task = &fn;
+		n = n_tasks;
+		next = 0;
+		error = nullptr;
+		slots = std::min(n_threads - 1, n_tasks - 1);
+		pending = slots;
+		generation++;
+		lock.unlock();
+		work_cv.notify_all();
+
+		work(); // the calling thread participates
+
+		lock.lock();
+		done_cv.wait(lock, [&] {
+			return pending == 0;
+		});
+		task = nullptr;
+		std::exception_ptr res = error;
+		error = nullptr;
+		lock.unlock();
+		if (res)
+			std::rethrow_exception(res);
+	}
+};
+}
+
+void jjml_parallel_for(int n_threads, int n,
+		const std::function<void(int)> &task) {
+	static jjml_worker_pool pool;
+	pool.run(n_threads, n, task);
+}
@@ -1,5 +1,8 @@
+#include <cstdint>
+#include <functional>
 #include <vector>
 
+#include <jni.h>
 #include <llama.h>
 
 #ifndef _jjml_llama_h
@@ -28,4 +31,108 @@ void jjml_llama_batch_add(struct llama_batch &batch, llama_token id,
  */
 void jjml_llama_batch_clear(struct llama_batch &batch);
 
+/**
+ * @brief Frees the compiled grammars cached for this model.
+ *
+ * @param model the model about to be freed
+ */
+void jjml_llama_grammar_cache_free(const llama_model *model);
+
+/**
+ * @brief Casts an array of Java pointers to samplers.
+ *
+ * @param env the JNI environment
+ * @param pointers the pointers, can be null
+ * @return the samplers, or an empty vector if pointers is null
+ */
+std::vector<llama_sampler*> jjml_llama_samplers(JNIEnv *env,
+		jlongArray pointers);
+
+/**
+ * @brief Runs a task for each index, in parallel on a persistent native worker
+ * pool, the calling thread participating. Runs sequentially if the pool is
+ * already busy. The first exception thrown by a task is rethrown once all
+ * tasks have completed.
+ *
+ * @param n_threads the maximum number of threads to use, including the calling one
+ * @param n the number of indices
+ * @param task the task to run for each index
+ */
+void jjml_parallel_for(int n_threads, int n,
+		const std::function<void(int)> &task);
+
+/*
+ * PERFORMANCE
+ */
+/** @brief The phases whose durations can be recorded.*/
+enum jjml_perf_phase {
+	JJML_PERF_WRITE = 0, JJML_PERF_READ = 1, JJML_PERF_SAMPLE = 2,
+};
+
+/** @brief Number of phases.*/
+#define JJML_PERF_PHASES 3
+
+/** @brief Number of log2 buckets of a timing histogram.*/
+#define JJML_PERF_BUCKETS 64
+
+/** @brief The performance counters of a context.*/
+struct jjml_perf;
+
+/**
+ * @brief Gets the performance counters of a context, creating them if needed.
+ *
+ * @param ctx the context
+ * @return the counters, valid until the context is freed
+ */
+jjml_perf* jjml_perf_get(const llama_context *ctx);
+
+/**
+ * @brief Frees the performance counters of a context.
+ *
+ * @param ctx the context about to be freed
+ */
+void jjml_perf_free(const llama_context *ctx);
+
+/**
+ * @brief Counts a call to llama_decode.
+ *
+ * @param perf the performance counters
+ */
+void jjml_perf_decode(jjml_perf *perf);
+
+/**
+ * @brief Starts timing a phase.
+ *
+ * @param perf the performance counters
+ * @return the current time in ns, or 0 if timings are disabled
+ */
+int64_t jjml_perf_start(const jjml_perf *perf);
+
+/**
+ * @brief The time elapsed since a phase was started.
+ *
+ * @param start the value returned by jjml_perf_start
+ * @return the elapsed time in ns, or 0 if start is 0
+ */
+int64_t jjml_perf_elapsed(int64_t start);
+
+/**
+ * @brief Records the duration of a phase since it was started.
+ *
+ * @param perf the performance counters
+ * @param phase the phase
+ * @param start the value returned by jjml_perf_start, nothing is recorded if 0
+ */
+void jjml_perf_end(jjml_perf *perf, jjml_perf_phase phase, int64_t start);
+
+/**
+ * @brief Records a duration which has been measured separately.
+ *
+ * @param perf the performance counters
+ * @param phase the phase
+ * @param duration the duration in ns
+ */
+void jjml_perf_record(jjml_perf *perf, jjml_perf_phase phase,
+		int64_t duration);
+
 #endif
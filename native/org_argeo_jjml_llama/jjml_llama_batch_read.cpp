@@ -1,6 +1,9 @@
 #include <math.h>
+#include <algorithm>
 #include <cassert>
+#include <chrono>
 #include <stdexcept>
+#include <string>
 #include <vector>
 
 #include <ggml.h>
@@ -12,44 +15,97 @@
 #include "org_argeo_jjml_llama_.h"
 #include "org_argeo_jjml_llama_LlamaCppBatchProcessor.h" // IWYU pragma: keep
 
-static std::vector<llama_token_data> jjml_get_logits(llama_context *ctx,
-		int idx) {
-	const auto *logits = llama_get_logits_ith(ctx, idx);
-
-	const int n_vocab = llama_n_vocab(llama_get_model(ctx));
-
-	std::vector<llama_token_data> cur;
-	cur.resize(n_vocab);
-
+/** The sampling state of a read.*/
+struct jjml_read_sampling {
+	llama_sampler *smpl;
+	llama_sampler *grmr;
+	/** Independent samplers for each sequence, if sampling in parallel.*/
+	std::vector<llama_sampler*> seq_smpls;
+	std::vector<llama_sampler*> seq_grmrs;
+	/** Candidate buffers owned by Java, one per sequence if in parallel.*/
+	std::vector<llama_token_data*> curs;
+	/** Number of highest logits the chain can be restricted to, 0 for all.*/
+	int shortlist;
+};
+
+/**
+ * Fills the candidates with these logits, in the reused buffer. If shortlist
+ * is positive, only the candidates with the highest logits are kept (in no
+ * particular order), which is a partial selection in linear time.
+ */
+static llama_token_data_array jjml_get_candidates(const float *logits,
+		const int n_vocab, llama_token_data *cur, const int shortlist) {
 	for (llama_token token_id = 0; token_id < n_vocab; token_id++) {
 		cur[token_id] = llama_token_data { token_id, logits[token_id], 0.0f };
 	}
 
-	return cur;
+	size_t size = n_vocab;
+	if (shortlist > 0 && shortlist < n_vocab) {
+		std::nth_element(cur, cur + shortlist, cur + n_vocab,
+				[](const llama_token_data &a, const llama_token_data &b) {
+					return a.logit > b.logit;
+				});
+		size = shortlist;
+	}
+	return llama_token_data_array { cur, size, -1, false, };
 }
 
-static llama_token jjml_check_grammar(llama_context *ctx, int idx,
-		llama_sampler *chain, llama_sampler *grmr, llama_token id) {
-	// check if it the sampled token fits the grammar
-	{
-		llama_token_data single_token_data = { id, 1.0f, 0.0f };
-		llama_token_data_array single_token_data_array = { &single_token_data,
-				1, -1, false };
+/** Whether this token is accepted by the grammar.*/
+static bool jjml_grammar_accepts(llama_sampler *grmr, llama_token id) {
+	llama_token_data single_token_data = { id, 1.0f, 0.0f };
+	llama_token_data_array single_token_data_array = { &single_token_data, 1,
+			-1, false };
 
-		llama_sampler_apply(grmr, &single_token_data_array);
+	llama_sampler_apply(grmr, &single_token_data_array);
 
-		const bool is_valid = single_token_data_array.data[0].logit != -INFINITY;
-		if (is_valid) {
-			return id;
-		}
+	return single_token_data_array.data[0].logit != -INFINITY;
+}
+
+/**
+ * Samples a token which is valid according to the grammar.
+ *
+ * The chain is applied first and the grammar only checks the selected token,
+ * which is the fast path when the grammar is permissive. Otherwise (and when
+ * the previous token was forced) the grammar is applied first to all
+ * candidates. If it admits exactly one token (JSON punctuation, fixed keys,
+ * etc.), this token is used directly, without running the chain. Such
+ * deterministic stretches are typically consecutive, hence `grammar_first`
+ * which is updated for the next token of the same sequence.
+ */
+static llama_token jjml_sample_with_grammar(const float *logits,
+		const int n_vocab, llama_sampler *chain, llama_sampler *grmr,
+		llama_token_data *cur, const int shortlist, bool &grammar_first) {
+	if (!grammar_first) {
+		llama_token_data_array cur_p = jjml_get_candidates(logits, n_vocab,
+				cur, shortlist);
+		llama_sampler_apply(chain, &cur_p);
+		llama_token candidate = cur_p.data[cur_p.selected].id;
+		if (jjml_grammar_accepts(grmr, candidate))
+			return candidate;
 	}
 
 	// resampling:
-	// if the token is not valid, sample again, but first apply the grammar sampler and then the sampling chain
-	std::vector<llama_token_data> cur = jjml_get_logits(ctx, idx);
-	llama_token_data_array cur_p = { cur.data(), cur.size(), -1, false, };
-
+	// apply the grammar sampler first (to all candidates)
+	// and then the sampling chain
+	llama_token_data_array cur_p = jjml_get_candidates(logits, n_vocab, cur,
+			0);
 	llama_sampler_apply(grmr, &cur_p);
+
+	// fast-forward if there is only one possibility
+	size_t admitted = 0;
+	llama_token single = LLAMA_TOKEN_NULL;
+	for (size_t i = 0; i < cur_p.size; i++) {
+		if (cur_p.data[i].logit != -INFINITY) {
+			admitted++;
+			if (admitted > 1)
+				break;
+			single = cur_p.data[i].id;
+		}
+	}
+	grammar_first = admitted == 1;
+	if (admitted == 1)
+		return single;
+
 	llama_sampler_apply(chain, &cur_p);
 
 	GGML_ASSERT(
@@ -60,11 +116,99 @@ static llama_token jjml_check_grammar(llama_context *ctx, int idx,
 	return res;
 }
 
+/**
+ * Samples the next token of a sequence from its logits, and accepts it. It is
+ * equivalent to llama_sampler_sample(), but does not access the context, so
+ * that it can be called concurrently for different sequences.
+ */
+static llama_token jjml_sample_sequence(const float *logits,
+		const int n_vocab, llama_sampler *smpl, llama_sampler *grmr,
+		llama_token_data *cur, const int shortlist, char &grammar_first) {
+	if (grmr == nullptr) {
+		llama_token_data_array cur_p = jjml_get_candidates(logits, n_vocab,
+				cur, shortlist);
+		llama_sampler_apply(smpl, &cur_p);
+		GGML_ASSERT(cur_p.selected >= 0 && cur_p.selected < (int32_t ) cur_p.size);
+		llama_token new_token_id = cur_p.data[cur_p.selected].id;
+		llama_sampler_accept(smpl, new_token_id);
+		return new_token_id;
+	}
+
+	// grammar handling require lower-level methods
+	bool forced = grammar_first;
+	llama_token new_token_id = jjml_sample_with_grammar(logits, n_vocab, smpl,
+			grmr, cur, shortlist, forced);
+	grammar_first = forced;
+
+	llama_sampler_accept(grmr, new_token_id);
+	llama_sampler_accept(smpl, new_token_id);
+	return new_token_id;
+}
+
+/**
+ * Samples all active sequences with a single upcall to a Java batch sampler.
+ * The Java arrays are reused and the logits are wrapped again only if they
+ * have been moved or have grown.
+ */
+static void jjml_sample_java_batch(JNIEnv *env, llama_context *ctx,
+		jobject batchSampling, jintArray indicesArr, jintArray selectedArr,
+		const int n_parallel, llama_token **seq_tokens,
+		const int32_t *output_ids, const uint32_t NO_OUTPUT_ID,
+		llama_pos cur_pos, std::vector<jint> &indices,
+		std::vector<jint> &selected, std::vector<llama_token> &tokens) {
+	const int n_vocab = llama_n_vocab(llama_get_model(ctx));
+	float *logits = llama_get_logits(ctx);
+
+	int count = 0;
+	int max_row = 0;
+	for (int i = 0; i < n_parallel; i++) {
+		if (seq_tokens[i] == nullptr || output_ids[i] == NO_OUTPUT_ID)
+			continue;
+		int row = (llama_get_logits_ith(ctx, output_ids[i]) - logits) / n_vocab;
+		if (row > max_row)
+			max_row = row;
+		indices[count] = row;
+		indices[n_parallel + count] = i;
+		indices[2 * n_parallel + count] = cur_pos;
+		count++;
+	}
+	if (count == 0)
+		return;
+
+	jlong capacity = static_cast<jlong>(max_row + 1) * n_vocab * sizeof(float);
+	jobject logitsBuf = env->GetObjectField(batchSampling,
+			LlamaCppBatchSampling$logits);
+	if (logitsBuf == nullptr || env->GetDirectBufferAddress(logitsBuf) != logits
+			|| env->GetDirectBufferCapacity(logitsBuf) < capacity) {
+		if (logitsBuf != nullptr)
+			env->DeleteLocalRef(logitsBuf);
+		logitsBuf = env->NewDirectByteBuffer(logits, capacity);
+		env->SetObjectField(batchSampling, LlamaCppBatchSampling$logits,
+				logitsBuf);
+	}
+	env->DeleteLocalRef(logitsBuf);
+
+	env->SetIntArrayRegion(indicesArr, 0, 3 * n_parallel, indices.data());
+	env->CallVoidMethod(batchSampling, LlamaCppBatchSampling$sample, count);
+	if (env->ExceptionCheck())
+		throw std::runtime_error("Java batch sampling failed");
+	env->GetIntArrayRegion(selectedArr, 0, count, selected.data());
+
+	for (int r = 0; r < count; r++) {
+		if (selected[r] < 0 || selected[r] >= n_vocab)
+			throw std::range_error(
+					"Invalid token " + std::to_string(selected[r])
+							+ " selected by Java batch sampler");
+		tokens[indices[n_parallel + r]] = selected[r];
+	}
+}
+
 static jint jjml_llama_batch_processor_read(llama_context *ctx,
-		llama_sampler *smpl, llama_sampler *grmr, llama_pos cur_pos,
+		const jjml_read_sampling &sampling, llama_pos cur_pos,
 		void **outputs, const int outputs_count, JNIEnv *env, jintArray offsets,
 		jintArray lengths, jintArray sequenceIds, jintArray outputIds,
-		jobject completionHandler) {
+		jobject batchSampling, jobject completionHandler,
+		jlongArray tokenTimes) {
 
 	const llama_model *model = llama_get_model(ctx);
 
@@ -113,131 +257,249 @@ static jint jjml_llama_batch_processor_read(llama_context *ctx,
 
 	PERF_BEGIN();
 
+	// whether the grammar forced the previous token of each sequence
+	// (not a vector<bool>, as it is written concurrently)
+	std::vector<char> grammar_first(n_parallel, false);
+
+	// parallel sampling, with independent samplers for each sequence
+	const std::vector<llama_sampler*> &seq_smpls = sampling.seq_smpls;
+	const std::vector<llama_sampler*> &seq_grmrs = sampling.seq_grmrs;
+	const bool parallel = !seq_smpls.empty();
+	assert(!parallel || seq_smpls.size() == n_parallel);
+	assert(seq_grmrs.empty() || seq_grmrs.size() == n_parallel);
+	assert(batchSampling != nullptr || sampling.curs.size() == (parallel ? n_parallel : 1));
+	const int n_threads = llama_n_threads(ctx);
+	std::vector<const float*> seq_logits(parallel ? n_parallel : 0, nullptr);
+	std::vector<llama_token> seq_new_tokens(parallel ? n_parallel : 0,
+			LLAMA_TOKEN_NULL);
+	const int n_vocab = llama_n_vocab(model);
+
+	// Java batch sampling, with buffers reused for all steps
+	jintArray batchIndices = nullptr;
+	jintArray batchSelected = nullptr;
+	std::vector<jint> batch_indices;
+	std::vector<jint> batch_selected;
+	std::vector<llama_token> batch_tokens;
+	if (batchSampling != nullptr) {
+		batchIndices = static_cast<jintArray>(env->GetObjectField(batchSampling,
+				LlamaCppBatchSampling$indices));
+		batchSelected = static_cast<jintArray>(env->GetObjectField(
+				batchSampling, LlamaCppBatchSampling$selected));
+		batch_indices.resize(3 * n_parallel);
+		batch_selected.resize(n_parallel);
+		batch_tokens.resize(n_parallel, LLAMA_TOKEN_NULL);
+	}
+
+	jjml_perf *perf = jjml_perf_get(ctx);
+
+	// time elapsed since the start of the read when the tokens at each output
+	// index are available, if requested
+	const auto t_read = std::chrono::steady_clock::now();
+	std::vector<jlong> token_times(
+			tokenTimes != nullptr ? env->GetArrayLength(tokenTimes) : 0);
+
 	int next_idx = 0;
 
 	llama_batch batch = llama_batch_init(n_parallel, 0, n_parallel);
 
+	// clean up, also if sampling or decoding failed
+	auto release = [&]() {
+		llama_batch_free(batch);
+		env->ReleaseIntArrayElements(offsets,
+				reinterpret_cast<jint*>(seq_offsets), 0);
+		env->ReleaseIntArrayElements(lengths,
+				reinterpret_cast<jint*>(seq_tokens_size), 0);
+		env->ReleaseIntArrayElements(outputIds,
+				reinterpret_cast<jint*>(output_ids), 0);
+	};
+
 	// FIXME deal more precisely with the upper limit
 	int n_predict = cur_pos + max_decodes;
 	bool all_eog = true;
-	while (cur_pos <= n_predict) {
-		// prepare the next batch
-		jjml_llama_batch_clear(batch);
-
-		// sample the next token for each parallel sequence / stream
-		for (int32_t i = 0; i < n_parallel; ++i) {
-			if (seq_tokens[i] == nullptr) // no output available
-				continue;
-			if (output_ids[i] == NO_OUTPUT_ID) // already finished
-				continue;
-
-			PERF_BEGIN();
-			llama_token new_token_id;
-			if (grmr == nullptr) {
-				new_token_id = llama_sampler_sample(smpl, ctx, output_ids[i]);
-
-			} else {	// grammar handling require lower-level methods
-				std::vector<llama_token_data> cur = jjml_get_logits(ctx,
-						output_ids[i]);
-				llama_token_data_array cur_p = { cur.data(), cur.size(), -1,
-						false, };
-
-				llama_sampler_apply(smpl, &cur_p);
-				llama_token candidate = cur_p.data[cur_p.selected].id;
-				new_token_id = jjml_check_grammar(ctx, output_ids[i], smpl,
-						grmr, candidate);
-
-				llama_sampler_accept(grmr, new_token_id);
-				llama_sampler_accept(smpl, new_token_id);
-			} //
-			PERF_END("sampling");
-
-			bool is_eog = llama_token_is_eog(model, new_token_id);
-
-			// is it an end of generation? -> mark the stream as finished
-			if (is_eog //
-			|| next_idx == seq_tokens_size[i] //
-			|| cur_pos == n_predict //
-					) {
-				if (is_eog)
-					output_ids[i] = NO_OUTPUT_ID;
-
-				jclass Integer = argeo::jni::find_jclass(env,
-						"java/lang/Integer");
-				jobject completionHandlerResult = env->CallStaticObjectMethod(
-						Integer, Integer$valueOf, next_idx);
-				jobject completionHandlerAttachment =
-						env->CallStaticObjectMethod(Integer, Integer$valueOf,
-								i);
-				// call completion handler
-				env->CallVoidMethod(completionHandler,
-						CompletionHandler$completed, completionHandlerResult,
-						completionHandlerAttachment);
-
-				if (!is_eog) // at least one could have continued
-					all_eog = false;
-
-				continue;
+	try {
+		while (cur_pos <= n_predict) {
+			// prepare the next batch
+			jjml_llama_batch_clear(batch);
+
+			// the sampling of all sequences is recorded once per step
+			const int64_t t_sample = jjml_perf_start(perf);
+			int64_t sample_duration = 0;
+			if (batchSampling != nullptr)
+				jjml_sample_java_batch(env, ctx, batchSampling, batchIndices,
+						batchSelected, n_parallel, seq_tokens, output_ids,
+						NO_OUTPUT_ID, cur_pos, batch_indices, batch_selected,
+						batch_tokens);
+			else if (parallel) {
+				// the context is only accessed from this thread
+				for (int i = 0; i < n_parallel; i++)
+					seq_logits[i] =
+							seq_tokens[i] == nullptr
+									|| output_ids[i] == NO_OUTPUT_ID ?
+									nullptr :
+									llama_get_logits_ith(ctx, output_ids[i]);
+				jjml_parallel_for(n_threads, n_parallel, [&](int i) {
+					if (seq_logits[i] == nullptr)
+						return;
+					seq_new_tokens[i] = jjml_sample_sequence(seq_logits[i], n_vocab,
+							seq_smpls[i], seq_grmrs.empty() ? nullptr : seq_grmrs[i],
+							sampling.curs[i], sampling.shortlist, grammar_first[i]);
+				});
 			}
+			if (batchSampling != nullptr || parallel)
+				sample_duration = jjml_perf_elapsed(t_sample);
+
+			// sample the next token for each parallel sequence / stream
+			for (int32_t i = 0; i < n_parallel; ++i) {
+				if (seq_tokens[i] == nullptr) // no output available
+					continue;
+				if (output_ids[i] == NO_OUTPUT_ID) // already finished
+					continue;
+
+				PERF_BEGIN();
+				llama_token new_token_id;
+				if (batchSampling != nullptr) {
+					new_token_id = batch_tokens[i];
+				} else if (parallel) {
+					new_token_id = seq_new_tokens[i];
+				} else {
+					const int64_t t_seq = t_sample != 0 ? jjml_perf_start(perf) : 0;
+					new_token_id = jjml_sample_sequence(
+							llama_get_logits_ith(ctx, output_ids[i]), n_vocab,
+							sampling.smpl, sampling.grmr, sampling.curs[0],
+							sampling.shortlist, grammar_first[i]);
+					sample_duration += jjml_perf_elapsed(t_seq);
+				}
+				PERF_END("sampling");
+
+				bool is_eog = llama_token_is_eog(model, new_token_id);
+
+				// is it an end of generation? -> mark the stream as finished
+				if (is_eog //
+				|| next_idx == seq_tokens_size[i] //
+				|| cur_pos == n_predict //
+						) {
+					if (is_eog)
+						output_ids[i] = NO_OUTPUT_ID;
+
+					jclass Integer = argeo::jni::find_jclass(env,
+							"java/lang/Integer");
+					jobject completionHandlerResult = env->CallStaticObjectMethod(
+							Integer, Integer$valueOf, next_idx);
+					jobject completionHandlerAttachment =
+							env->CallStaticObjectMethod(Integer, Integer$valueOf,
+									i);
+					// call completion handler
+					env->CallVoidMethod(completionHandler,
+							CompletionHandler$completed, completionHandlerResult,
+							completionHandlerAttachment);
+
+					if (!is_eog) // at least one could have continued
+						all_eog = false;
+
+					continue;
+				}
 
 //				std::cerr << cur_pos << "\t" << i << "\t" << new_token_id
 //						<< std::endl;
 
-			assert(next_idx < seq_tokens_size[i] && "No overflow");
-			seq_tokens[i][next_idx] = new_token_id;
+				assert(next_idx < seq_tokens_size[i] && "No overflow");
+				seq_tokens[i][next_idx] = new_token_id;
 
-			output_ids[i] = batch.n_tokens;
+				output_ids[i] = batch.n_tokens;
 
-			// push this new token for next evaluation
-			jjml_llama_batch_add(batch, new_token_id, cur_pos,
-					{ sequence_ids[i] }, true);
-		}
-		next_idx++;
-
-		// all streams are finished
-		if (batch.n_tokens == 0) {
-			break;
-		}
+				// push this new token for next evaluation
+				jjml_llama_batch_add(batch, new_token_id, cur_pos,
+						{ sequence_ids[i] }, true);
+			}
+			if (batch.n_tokens != 0 && next_idx < (int) token_times.size())
+				token_times[next_idx] = std::chrono::duration_cast<
+						std::chrono::nanoseconds>(
+						std::chrono::steady_clock::now() - t_read).count();
+			next_idx++;
+			if (t_sample != 0)
+				jjml_perf_record(perf, JJML_PERF_SAMPLE, sample_duration);
+
+			// all streams are finished
+			if (batch.n_tokens == 0) {
+				break;
+			}
 
-		cur_pos += 1;
+			cur_pos += 1;
 
-		// evaluate the current batch with the transformer model
-		if (llama_decode(ctx, batch))
-			throw std::runtime_error("Decode failed");
+			// evaluate the current batch with the transformer model
+			jjml_perf_decode(perf);
+			const int64_t t_read = jjml_perf_start(perf);
+			if (llama_decode(ctx, batch))
+				throw std::runtime_error("Decode failed");
+			jjml_perf_end(perf, JJML_PERF_READ, t_read);
+		}
+	} catch (...) {
+		release();
+		throw;
 	}
 
+	if (tokenTimes != nullptr)
+		env->SetLongArrayRegion(tokenTimes, 0, token_times.size(),
+				token_times.data());
+
 	// clean up
 // !! dereference what Java owns before batch is freed
 //	for (size_t i = 0; i < n_parallel; i++) {
 //		batch.seq_id[i] = nullptr;
 //	}
-	llama_batch_free(batch);
+	release();
 	PERF_END(__func__);
 
-	// clean up
-	env->ReleaseIntArrayElements(offsets, reinterpret_cast<jint*>(seq_offsets),
-			0);
-	env->ReleaseIntArrayElements(lengths,
-			reinterpret_cast<jint*>(seq_tokens_size), 0);
-	env->ReleaseIntArrayElements(outputIds, reinterpret_cast<jint*>(output_ids),
-			0);
-
 	// TODO assert consistency of context position with regard to the output buffers sizes
 	return cur_pos;
 }
 
+/*
+ * JNI
+ */
+/** Resolves the sampling state of a read from its Java counterparts.*/
+static jjml_read_sampling jjml_read_sampling_init(JNIEnv *env,
+		llama_context *ctx, jlong samplerPtr, jlong grammarSamplerPtr,
+		jlongArray sequenceSamplerPtrs, jlongArray sequenceGrammarSamplerPtrs,
+		jobjectArray candidatesBuffers, jint candidatesShortlist) {
+	jjml_read_sampling res { //
+			argeo::jni::as_pointer<llama_sampler*>(samplerPtr), //
+			argeo::jni::as_pointer<llama_sampler*>(grammarSamplerPtr), //
+			jjml_llama_samplers(env, sequenceSamplerPtrs), //
+			jjml_llama_samplers(env, sequenceGrammarSamplerPtrs), //
+			std::vector<llama_token_data*>(), //
+			candidatesShortlist //
+			};
+
+	if (candidatesBuffers != nullptr) {
+		const jlong required = static_cast<jlong>(llama_n_vocab(
+				llama_get_model(ctx))) * sizeof(llama_token_data);
+		const jsize n = env->GetArrayLength(candidatesBuffers);
+		for (jsize i = 0; i < n; i++) {
+			jobject buf = env->GetObjectArrayElement(candidatesBuffers, i);
+			if (env->GetDirectBufferCapacity(buf) < required)
+				throw std::invalid_argument(
+						"Candidates buffer is too small, "
+								+ std::to_string(required)
+								+ " bytes are required");
+			res.curs.push_back(
+					static_cast<llama_token_data*>(env->GetDirectBufferAddress(
+							buf)));
+			env->DeleteLocalRef(buf);
+		}
+	}
+	return res;
+}
+
 JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doRead(
 		JNIEnv *env, jclass, jlong contextPointer, jlong samplerPtr,
-		jlong grammarSamplerPtr, jint contextPosition,
+		jlong grammarSamplerPtr, jlongArray sequenceSamplerPtrs,
+		jlongArray sequenceGrammarSamplerPtrs, jobjectArray candidatesBuffers,
+		jint candidatesShortlist, jint contextPosition,
 		jobjectArray outputBuffers, jintArray offsets, jintArray lengths,
-		jintArray sequenceIds, jintArray outputIds, jobject completionHandler) {
+		jintArray sequenceIds, jintArray outputIds, jobject batchSampling,
+		jobject completionHandler, jlongArray tokenTimes) {
 	auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
-
-	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(samplerPtr);
-	auto *grmr =
-			grammarSamplerPtr != 0 ?
-					argeo::jni::as_pointer<llama_sampler*>(grammarSamplerPtr) :
-					nullptr;
 	llama_pos cur_pos = static_cast<llama_pos>(contextPosition);
 
 	int outputs_count = env->GetArrayLength(outputBuffers);
@@ -253,9 +515,13 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doRead(
 
 	jint newPosition;
 	try {
-		newPosition = jjml_llama_batch_processor_read(ctx, smpl, grmr, cur_pos,
+		jjml_read_sampling sampling = jjml_read_sampling_init(env, ctx,
+				samplerPtr, grammarSamplerPtr, sequenceSamplerPtrs,
+				sequenceGrammarSamplerPtrs, candidatesBuffers,
+				candidatesShortlist);
+		newPosition = jjml_llama_batch_processor_read(ctx, sampling, cur_pos,
 				outputs, outputs_count, env, offsets, lengths, sequenceIds,
-				outputIds, completionHandler);
+				outputIds, batchSampling, completionHandler, tokenTimes);
 	} catch (std::exception &ex) {
 		argeo::jni::throw_to_java(env, ex);
 	}
@@ -264,16 +530,13 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doRead(
 
 JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doReadToArrays(
 		JNIEnv *env, jclass, jlong contextPointer, jlong samplerPtr,
-		jlong grammarSamplerPtr, jint contextPosition,
+		jlong grammarSamplerPtr, jlongArray sequenceSamplerPtrs,
+		jlongArray sequenceGrammarSamplerPtrs, jobjectArray candidatesBuffers,
+		jint candidatesShortlist, jint contextPosition,
 		jobjectArray outputArrays, jintArray offsets, jintArray lengths,
-		jintArray sequenceIds, jintArray outputIds, jobject completionHandler) {
+		jintArray sequenceIds, jintArray outputIds, jobject batchSampling,
+		jobject completionHandler, jlongArray tokenTimes) {
 	auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
-
-	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(samplerPtr);
-	auto *grmr =
-			grammarSamplerPtr != 0 ?
-					argeo::jni::as_pointer<llama_sampler*>(grammarSamplerPtr) :
-					nullptr;
 	llama_pos cur_pos = static_cast<llama_pos>(contextPosition);
 
 	int outputs_count = env->GetArrayLength(outputArrays);
@@ -281,8 +544,8 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doReadTo
 	for (int i = 0; i < outputs_count; i++) {
 		jintArray arr = (jintArray) env->GetObjectArrayElement(outputArrays, i);
 		if (arr != nullptr) {
-			outputs[i] = env->GetPrimitiveArrayCritical(arr, nullptr);
-//			outputs[i] = env->GetIntArrayElements(arr, nullptr);
+			// not a critical region, since Java is called back during the read
+			outputs[i] = env->GetIntArrayElements(arr, nullptr);
 		} else {
 			outputs[i] = nullptr;
 		}
@@ -290,9 +553,13 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doReadTo
 
 	jint newPosition;
 	try {
-		newPosition = jjml_llama_batch_processor_read(ctx, smpl, grmr, cur_pos,
+		jjml_read_sampling sampling = jjml_read_sampling_init(env, ctx,
+				samplerPtr, grammarSamplerPtr, sequenceSamplerPtrs,
+				sequenceGrammarSamplerPtrs, candidatesBuffers,
+				candidatesShortlist);
+		newPosition = jjml_llama_batch_processor_read(ctx, sampling, cur_pos,
 				outputs, outputs_count, env, offsets, lengths, sequenceIds,
-				outputIds, completionHandler);
+				outputIds, batchSampling, completionHandler, tokenTimes);
 	} catch (std::exception &ex) {
 		argeo::jni::throw_to_java(env, ex);
 	}
@@ -301,8 +568,8 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doReadTo
 	for (int i = 0; i < outputs_count; i++) {
 		jintArray arr = (jintArray) env->GetObjectArrayElement(outputArrays, i);
 		if (arr != nullptr) {
-			env->ReleasePrimitiveArrayCritical(arr, outputs[i], 0);
-//			env->ReleaseIntArrayElements(arr, (int*) outputs[i], 0);
+			env->ReleaseIntArrayElements(arr, static_cast<jint*>(outputs[i]),
+					0);
 		}
 	}
 
@@ -17,7 +17,8 @@
  * WRITE
  */
 static jint jjml_llama_batch_processor_write(llama_context *ctx,
-		llama_sampler *smpl, llama_pos cur_pos, void **inputs,
+		llama_sampler *smpl, const std::vector<llama_sampler*> &seq_smpls,
+		llama_pos cur_pos, void **inputs,
 		const int inputs_count, JNIEnv *env, jintArray offsets,
 		jintArray lengths, jintArray sequenceIds, jintArray outputIds,
 		jboolean lastLogits) {
@@ -58,6 +59,9 @@ static jint jjml_llama_batch_processor_write(llama_context *ctx,
 			max_decodes = seq_tokens_size[i];
 	}
 
+	jjml_perf *perf = jjml_perf_get(ctx);
+	const int64_t t_write = jjml_perf_start(perf);
+
 	PERF_BEGIN();
 	if (inputs_count == 1) { // common prompt to all sequences
 		const int seq_idx = 0;
@@ -114,13 +118,20 @@ static jint jjml_llama_batch_processor_write(llama_context *ctx,
 			}
 		}
 
+		jjml_perf_decode(perf);
 		if (llama_decode(ctx, batch) != 0)
 			throw std::runtime_error("Decode failed");
 
-		// sampler accept
-		for (int i = 0; i < batch.n_tokens; i++) {
-			llama_token token = batch.token[i];
-			llama_sampler_accept(smpl, token);
+		// sampler accept (there is no chain with a Java batch sampler)
+		if (!seq_smpls.empty()) {
+			for (llama_sampler *seq_smpl : seq_smpls)
+				for (int i = 0; i < batch.n_tokens; i++)
+					llama_sampler_accept(seq_smpl, batch.token[i]);
+		} else if (smpl != nullptr) {
+			for (int i = 0; i < batch.n_tokens; i++) {
+				llama_token token = batch.token[i];
+				llama_sampler_accept(smpl, token);
+			}
 		}
 
 		cur_pos = cur_pos + batch.n_tokens;
@@ -150,8 +161,15 @@ static jint jjml_llama_batch_processor_write(llama_context *ctx,
 			}
 
 			// TODO deal with encoder models?
+			jjml_perf_decode(perf);
 			if (llama_decode(ctx, batch) != 0)
 				throw std::runtime_error("Decode failed");
+
+			// independent samplers accept their own sequence
+			if (!seq_smpls.empty())
+				for (size_t j = 0; j < n_parallel; j++)
+					for (size_t i = 0; i < seq_tokens_size[j]; i++)
+						llama_sampler_accept(seq_smpls[j], seq_tokens[j][i]);
 		} catch (...) {
 			llama_batch_free(batch);
 			throw std::current_exception();
@@ -160,6 +178,7 @@ static jint jjml_llama_batch_processor_write(llama_context *ctx,
 	}
 
 	PERF_END(__func__);
+	jjml_perf_end(perf, JJML_PERF_WRITE, t_write);
 
 	// clean up
 	env->ReleaseIntArrayElements(offsets, reinterpret_cast<jint*>(seq_offsets),
@@ -176,11 +195,13 @@ static jint jjml_llama_batch_processor_write(llama_context *ctx,
 
 JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doWrite(
 		JNIEnv *env, jclass, jlong contextPointer, jlong samplerChainPointer,
-		jint contextPosition, jobjectArray inputBuffers, jintArray offsets,
+		jlongArray sequenceSamplerPointers, jint contextPosition, jobjectArray inputBuffers, jintArray offsets,
 		jintArray lengths, jintArray sequenceIds, jintArray outputIds,
 		jboolean lastLogits) {
 	auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
 	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(samplerChainPointer);
+	std::vector<llama_sampler*> seq_smpls = jjml_llama_samplers(env,
+			sequenceSamplerPointers);
 	llama_pos cur_pos = static_cast<llama_pos>(contextPosition);
 
 	int inputs_count = env->GetArrayLength(inputBuffers);
@@ -196,7 +217,8 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doWrite(
 
 	jint newPosition;
 	try {
-		newPosition = jjml_llama_batch_processor_write(ctx, smpl, cur_pos,
+		newPosition = jjml_llama_batch_processor_write(ctx, smpl, seq_smpls,
+				cur_pos,
 				inputs, inputs_count, env, offsets, lengths, sequenceIds,
 				outputIds, lastLogits);
 	} catch (std::exception &ex) {
@@ -207,11 +229,13 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doWrite(
 
 JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doWriteArrays(
 		JNIEnv *env, jclass, jlong contextPointer, jlong samplerChainPointer,
-		jint contextPosition, jobjectArray inputArrays, jintArray offsets,
+		jlongArray sequenceSamplerPointers, jint contextPosition, jobjectArray inputArrays, jintArray offsets,
 		jintArray lengths, jintArray sequenceIds, jintArray outputIds,
 		jboolean lastLogits) {
 	auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
 	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(samplerChainPointer);
+	std::vector<llama_sampler*> seq_smpls = jjml_llama_samplers(env,
+			sequenceSamplerPointers);
 	llama_pos cur_pos = static_cast<llama_pos>(contextPosition);
 
 	int inputs_count = env->GetArrayLength(inputArrays);
@@ -227,7 +251,8 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppBatchProcessor_doWriteA
 
 	jint newPosition;
 	try {
-		newPosition = jjml_llama_batch_processor_write(ctx, smpl, cur_pos,
+		newPosition = jjml_llama_batch_processor_write(ctx, smpl, seq_smpls,
+				cur_pos,
 				inputs, inputs_count, env, offsets, lengths, sequenceIds,
 				outputIds, lastLogits);
 	} catch (std::exception &ex) {
@@ -8,6 +8,7 @@
 #include <stdexcept>
 #include <string>
 
+#include "jjml_llama.h"
 #include "org_argeo_jjml_llama_.h"
 
 /*
@@ -53,10 +54,16 @@ static void get_context_params(JNIEnv *env, jobject params,
 		assert(!"Invalid pooling type value");
 		break;
 	}
+	ctx_params->type_k = static_cast<ggml_type>(env->CallIntMethod(params,
+			env->GetMethodID(clss, "type_k", "()I")));
+	ctx_params->type_v = static_cast<ggml_type>(env->CallIntMethod(params,
+			env->GetMethodID(clss, "type_v", "()I")));
 
 	// booleans
 	ctx_params->embeddings = env->CallBooleanMethod(params,
 			env->GetMethodID(clss, "embeddings", "()Z"));
+	ctx_params->flash_attn = env->CallBooleanMethod(params,
+			env->GetMethodID(clss, "flash_attn", "()Z"));
 }
 
 JNIEXPORT jobject JNICALL Java_org_argeo_jjml_llama_LlamaCppBackend_newContextParams(
@@ -118,6 +125,7 @@ JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doInit(
 JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doDestroy(
 		JNIEnv *env, jobject obj) {
 	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	jjml_perf_free(ctx);
 	llama_free(ctx);
 }
 
@@ -1,4 +1,8 @@
+#include <algorithm>
 #include <cmath>
+#include <stdexcept>
+#include <string>
+#include <vector>
 
 #include <llama.h>
 
@@ -47,107 +51,335 @@ static void embd_normalize(const float *inp, float *out, int n, int embd_norm) {
 	}
 }
 
-// from llama.cpp's example/embedding
-static void embd_batch_decode(llama_context *ctx, llama_batch &batch,
-		float *output, int n_seq, int n_embd, int embd_norm) {
-	const enum llama_pooling_type pooling_type = llama_pooling_type(ctx);
+/** The tokens of a prompt, either copied or in a direct buffer. */
+struct embd_input {
+	const llama_token *tokens;
+	int n_tokens;
+};
+
+/** A window of the tokens of a prompt, decoded as one sequence. */
+struct embd_piece {
+	/** Index of the prompt. */
+	int prompt;
+	/** Index of the first token in the prompt. */
+	int start;
+	int n_tokens;
+};
+
+/** Pieces decoded together, each as a sequence. */
+struct embd_batch {
+	int n_tokens = 0;
+	std::vector<int> pieces;
+};
+
+// adapted from llama.cpp's example/embedding
+static void embd_batch_decode(llama_context *ctx, llama_batch &batch) {
 	const struct llama_model *model = llama_get_model(ctx);
 
 	// clear previous kv_cache values (irrelevant for embeddings)
 	llama_kv_cache_clear(ctx);
 
-	// run model
-//    LOG_INF("%s: n_tokens = %d, n_seq = %d\n", __func__, batch.n_tokens, n_seq);
 	if (llama_model_has_encoder(model) && !llama_model_has_decoder(model)) {
 		// encoder-only model
-		if (llama_encode(ctx, batch) < 0) {
-//            LOG_ERR("%s : failed to encode\n", __func__);
-		}
+		if (llama_encode(ctx, batch) < 0)
+			throw std::runtime_error("Failed to encode embeddings batch");
 	} else if (!llama_model_has_encoder(model)
 			&& llama_model_has_decoder(model)) {
 		// decoder-only model
-		if (llama_decode(ctx, batch) < 0) {
-//            LOG_ERR("%s : failed to decode\n", __func__);
-		}
+		jjml_perf_decode(jjml_perf_get(ctx));
+		if (llama_decode(ctx, batch) != 0)
+			throw std::runtime_error("Failed to decode embeddings batch");
 	}
+}
 
-	for (int i = 0; i < batch.n_tokens; i++) {
-		if (!batch.logits[i]) {
-			continue;
-		}
-
-		const float *embd = nullptr;
-		int embd_pos = 0;
-
-		if (pooling_type == LLAMA_POOLING_TYPE_NONE) {
-			// try to get token embeddings
-			embd = llama_get_embeddings_ith(ctx, i);
-			embd_pos = i;
+/**
+ * Writes the pooled embedding of each piece of the batch (not normalized), or
+ * the normalized embedding of each token if pooling type is none. If the
+ * pooling type differs from the one of the context (which then has no
+ * pooling), pooling is computed from the token embeddings, so that the pooling
+ * type can be chosen per processor.
+ */
+static void embd_batch_extract(llama_context *ctx, const llama_batch &batch,
+		const embd_batch &b, const std::vector<embd_piece> &pieces,
+		enum llama_pooling_type pooling_type, int n_embd, float *piece_embd,
+		float *token_embd, const std::vector<size_t> &token_offsets,
+		int embd_norm) {
+	if (pooling_type == LLAMA_POOLING_TYPE_NONE) {
+		for (int i = 0; i < batch.n_tokens; i++) {
+			const float *embd = llama_get_embeddings_ith(ctx, i);
 			GGML_ASSERT(embd != NULL && "failed to get token embeddings");
-		} else {
-			// try to get sequence embeddings - supported only when pooling_type is not NONE
-			embd = llama_get_embeddings_seq(ctx, batch.seq_id[i][0]);
-			embd_pos = batch.seq_id[i][0];
+			const embd_piece &piece = pieces[b.pieces[batch.seq_id[i][0]]];
+			float *out = token_embd
+					+ (token_offsets[piece.prompt] + piece.start + batch.pos[i])
+							* n_embd;
+			embd_normalize(embd, out, n_embd, embd_norm);
+		}
+	} else if (pooling_type == llama_pooling_type(ctx)) {
+		for (size_t s = 0; s < b.pieces.size(); s++) {
+			const float *embd = llama_get_embeddings_seq(ctx, s);
 			GGML_ASSERT(embd != NULL && "failed to get sequence embeddings");
+			std::copy(embd, embd + n_embd, piece_embd + b.pieces[s] * n_embd);
+		}
+	} else {
+		for (int i = 0; i < batch.n_tokens; i++) {
+			const float *embd = llama_get_embeddings_ith(ctx, i);
+			GGML_ASSERT(embd != NULL && "failed to get token embeddings");
+			const int piece = b.pieces[batch.seq_id[i][0]];
+			float *acc = piece_embd + piece * n_embd;
+			switch (pooling_type) {
+			case LLAMA_POOLING_TYPE_MEAN:
+				for (int j = 0; j < n_embd; j++)
+					acc[j] += embd[j] / pieces[piece].n_tokens;
+				break;
+			case LLAMA_POOLING_TYPE_CLS:
+				if (batch.pos[i] == 0)
+					std::copy(embd, embd + n_embd, acc);
+				break;
+			case LLAMA_POOLING_TYPE_LAST: // tokens of a sequence are in order
+				std::copy(embd, embd + n_embd, acc);
+				break;
+			default:
+				throw std::invalid_argument(
+						"Unsupported pooling type "
+								+ std::to_string(pooling_type));
+			}
 		}
-
-		float *out = output + embd_pos * n_embd;
-		embd_normalize(embd, out, n_embd, embd_norm);
 	}
 }
 
-JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppEmbeddingProcessor_doProcessEmbeddings(
-		JNIEnv *env, jclass, jlong contextPointer, jobjectArray tokenLists,
-		jfloatArray res) {
-	auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
+/**
+ * Computes the embeddings of these prompts, writing them to a native output,
+ * so that no Java array is pinned during decoding.
+ *
+ * Prompts longer than a batch are split in windows, whose pooled embeddings
+ * are combined (weighted mean, first window for CLS, last window for LAST).
+ * Windows are sorted by decreasing length and packed first-fit in batches
+ * respecting the batch size and the maximum number of sequences of the
+ * context.
+ */
+static void jjml_process_embeddings(llama_context *ctx,
+		const std::vector<embd_input> &prompts, float *emb,
+		enum llama_pooling_type pooling_type, int embd_norm) {
+	if (pooling_type != llama_pooling_type(ctx)
+			&& llama_pooling_type(ctx) != LLAMA_POOLING_TYPE_NONE)
+		throw std::invalid_argument(
+				"Pooling can only be changed for a context without pooling");
+	const int n_embd = llama_n_embd(llama_get_model(ctx));
+	// all the tokens of a sequence must be in the same ubatch
+	const int n_capacity = std::min( { llama_n_batch(ctx), llama_n_ubatch(ctx),
+			llama_n_ctx(ctx) });
+	const size_t n_seq_max = std::max(llama_n_seq_max(ctx), 1u);
+
+	const int n_prompts = prompts.size();
+	std::vector<size_t> token_offsets(n_prompts + 1, 0);
+	std::vector<embd_piece> pieces;
+	for (int k = 0; k < n_prompts; k++) {
+		const int n_tokens = prompts[k].n_tokens;
+		token_offsets[k + 1] = token_offsets[k] + n_tokens;
 
-	// TODO deal with normalization
-	int embd_normalize = -1;
+		// windows
+		for (int start = 0; start < n_tokens; start += n_capacity)
+			pieces.push_back(
+					{ k, start, std::min(n_capacity, n_tokens - start) });
+	}
 
-	int n_embd = llama_n_embd(llama_get_model(ctx));
-	int n_batch = llama_n_batch(ctx);
-	const enum llama_pooling_type pooling_type = llama_pooling_type(ctx);
+	// first-fit decreasing
+	std::vector<int> order(pieces.size());
+	for (size_t i = 0; i < order.size(); i++)
+		order[i] = i;
+	std::stable_sort(order.begin(), order.end(), [&pieces](int a, int b) {
+		return pieces[a].n_tokens > pieces[b].n_tokens;
+	});
+	std::vector<embd_batch> batches;
+	for (int i : order) {
+		embd_batch *target = nullptr;
+		for (embd_batch &b : batches)
+			if (b.n_tokens + pieces[i].n_tokens <= n_capacity
+					&& b.pieces.size() < n_seq_max) {
+				target = &b;
+				break;
+			}
+		if (target == nullptr) {
+			batches.emplace_back();
+			target = &batches.back();
+		}
+		target->n_tokens += pieces[i].n_tokens;
+		target->pieces.push_back(i);
+	}
 
-	struct llama_batch batch = llama_batch_init(n_batch, 0, 1);
+	// decode
+	std::vector<float> piece_embd;
+	if (pooling_type != LLAMA_POOLING_TYPE_NONE)
+		piece_embd.resize(pieces.size() * n_embd, 0.0f);
+	struct llama_batch batch = llama_batch_init(n_capacity, 0, 1);
+	try {
+		for (const embd_batch &b : batches) {
+			jjml_llama_batch_clear(batch);
+			for (size_t s = 0; s < b.pieces.size(); s++) {
+				const embd_piece &piece = pieces[b.pieces[s]];
+				const llama_token *tokens = prompts[piece.prompt].tokens
+						+ piece.start;
+				for (int i = 0; i < piece.n_tokens; i++)
+					jjml_llama_batch_add(batch, tokens[i], i,
+							{ static_cast<llama_seq_id>(s) }, true);
+			}
+			embd_batch_decode(ctx, batch);
+			embd_batch_extract(ctx, batch, b, pieces, pooling_type, n_embd,
+					piece_embd.data(), emb, token_offsets, embd_norm);
+		}
+	} catch (...) {
+		llama_batch_free(batch);
+		throw;
+	}
+	llama_batch_free(batch);
 
-	int n_prompts = env->GetArrayLength(tokenLists);
+	if (pooling_type == LLAMA_POOLING_TYPE_NONE)
+		return;
 
-	jfloat *emb = (jfloat*) env->GetPrimitiveArrayCritical(res, nullptr);
+	// combine the windows of each prompt
+	std::vector<float> pooled(n_embd);
+	size_t first = 0;
+	for (int k = 0; k < n_prompts; k++) {
+		size_t end = first;
+		while (end < pieces.size() && pieces[end].prompt == k)
+			end++;
+		std::fill(pooled.begin(), pooled.end(), 0.0f);
+		if (end - first == 1) {
+			std::copy_n(piece_embd.data() + first * n_embd, n_embd,
+					pooled.data());
+		} else if (end > first) {
+			switch (pooling_type) {
+			case LLAMA_POOLING_TYPE_CLS:
+				std::copy_n(piece_embd.data() + first * n_embd, n_embd,
+						pooled.data());
+				break;
+			case LLAMA_POOLING_TYPE_LAST:
+				std::copy_n(piece_embd.data() + (end - 1) * n_embd, n_embd,
+						pooled.data());
+				break;
+			default: { // mean, weighted by the lengths of the windows
+				const float n_tokens = token_offsets[k + 1] - token_offsets[k];
+				for (size_t p = first; p < end; p++) {
+					const float weight = pieces[p].n_tokens / n_tokens;
+					const float *embd = piece_embd.data() + p * n_embd;
+					for (int j = 0; j < n_embd; j++)
+						pooled[j] += weight * embd[j];
+				}
+			}
+			}
+		}
+		embd_normalize(pooled.data(), emb + k * n_embd, n_embd, embd_norm);
+		first = end;
+	}
+}
 
-	// break into batches
-	int e = 0; // number of embeddings already stored
-	int s = 0; // number of prompts in current batch
+/** Copies the prompts, rather than pinning them during decoding. */
+static std::vector<embd_input> jjml_embd_copy_inputs(JNIEnv *env,
+		jobjectArray tokenLists, std::vector<std::vector<llama_token>> &copies) {
+	const int n_prompts = env->GetArrayLength(tokenLists);
+	copies.resize(n_prompts);
+	std::vector<embd_input> res;
 	for (int k = 0; k < n_prompts; k++) {
 		jintArray tokenList = (jintArray) env->GetObjectArrayElement(tokenLists,
 				k);
+		const int n_tokens = env->GetArrayLength(tokenList);
+		copies[k].resize(n_tokens);
+		env->GetIntArrayRegion(tokenList, 0, n_tokens,
+				reinterpret_cast<jint*>(copies[k].data()));
+		env->DeleteLocalRef(tokenList);
+		res.push_back( { copies[k].data(), n_tokens });
+	}
+	return res;
+}
 
-		const uint64_t n_toks = env->GetArrayLength(tokenList);
-
-		// encode if at capacity
-		if (batch.n_tokens + n_toks > n_batch) {
-			float *out = emb + e * n_embd;
-			embd_batch_decode(ctx, batch, out, s, n_embd, embd_normalize);
-			e += pooling_type == LLAMA_POOLING_TYPE_NONE ? batch.n_tokens : s;
-			s = 0;
-			jjml_llama_batch_clear(batch);
-		}
-
-		// add to batch
-//		embd_batch_add_seq(batch, inp, s);
-		size_t n_tokens = env->GetArrayLength(tokenList);
-		int *tokens = (int*) env->GetPrimitiveArrayCritical(tokenList, nullptr);
-		for (size_t i = 0; i < n_tokens; i++) {
-			jjml_llama_batch_add(batch, tokens[i], i, { s }, true);
-		}
-		env->ReleasePrimitiveArrayCritical(tokenList, tokens, 0);
+/** Accesses the prompts in direct buffers (in native order) without copy. */
+static std::vector<embd_input> jjml_embd_direct_inputs(JNIEnv *env,
+		jobjectArray tokenBuffers, jintArray offsets, jintArray lengths) {
+	const int n_prompts = env->GetArrayLength(tokenBuffers);
+	std::vector<jint> offs(n_prompts);
+	std::vector<jint> lens(n_prompts);
+	env->GetIntArrayRegion(offsets, 0, n_prompts, offs.data());
+	env->GetIntArrayRegion(lengths, 0, n_prompts, lens.data());
+	std::vector<embd_input> res;
+	for (int k = 0; k < n_prompts; k++) {
+		jobject tokenBuf = env->GetObjectArrayElement(tokenBuffers, k);
+		void *arr = env->GetDirectBufferAddress(tokenBuf);
+		env->DeleteLocalRef(tokenBuf);
+		if (arr == NULL)
+			throw std::invalid_argument("Input is not a direct buffer");
+		res.push_back( { static_cast<llama_token*>(arr) + offs[k], lens[k] });
+	}
+	return res;
+}
 
-		s += 1;
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppEmbeddingProcessor_doProcessEmbeddings(
+		JNIEnv *env, jclass, jlong contextPointer, jobjectArray tokenLists,
+		jfloatArray res, jint pooling, jint normalization) {
+	try {
+		auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
+		std::vector<std::vector<llama_token>> copies;
+		std::vector<embd_input> prompts = jjml_embd_copy_inputs(env,
+				tokenLists, copies);
+		std::vector<float> emb(env->GetArrayLength(res));
+		jjml_process_embeddings(ctx, prompts, emb.data(),
+				static_cast<enum llama_pooling_type>(pooling), normalization);
+		env->SetFloatArrayRegion(res, 0, emb.size(), emb.data());
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
 	}
+}
 
-	// final batch
-	float *out = emb + e * n_embd;
-	embd_batch_decode(ctx, batch, out, s, n_embd, embd_normalize);
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppEmbeddingProcessor_doProcessEmbeddingsToBuffer(
+		JNIEnv *env, jclass, jlong contextPointer, jobjectArray tokenLists,
+		jobject embBuf, jint offset, jint pooling, jint normalization) {
+	try {
+		auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
+		void *emb_arr = env->GetDirectBufferAddress(embBuf);
+		if (emb_arr == NULL)
+			throw std::invalid_argument("Output is not a direct buffer");
+		std::vector<std::vector<llama_token>> copies;
+		std::vector<embd_input> prompts = jjml_embd_copy_inputs(env,
+				tokenLists, copies);
+		jjml_process_embeddings(ctx, prompts,
+				static_cast<float*>(emb_arr) + offset,
+				static_cast<enum llama_pooling_type>(pooling), normalization);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+	}
+}
 
-	env->ReleasePrimitiveArrayCritical(res, emb, 0);
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppEmbeddingProcessor_doProcessDirectEmbeddings(
+		JNIEnv *env, jclass, jlong contextPointer, jobjectArray tokenBuffers,
+		jintArray offsets, jintArray lengths, jfloatArray res, jint pooling,
+		jint normalization) {
+	try {
+		auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
+		std::vector<embd_input> prompts = jjml_embd_direct_inputs(env,
+				tokenBuffers, offsets, lengths);
+		std::vector<float> emb(env->GetArrayLength(res));
+		jjml_process_embeddings(ctx, prompts, emb.data(),
+				static_cast<enum llama_pooling_type>(pooling), normalization);
+		env->SetFloatArrayRegion(res, 0, emb.size(), emb.data());
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+	}
 }
 
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppEmbeddingProcessor_doProcessDirectEmbeddingsToBuffer(
+		JNIEnv *env, jclass, jlong contextPointer, jobjectArray tokenBuffers,
+		jintArray offsets, jintArray lengths, jobject embBuf, jint offset,
+		jint pooling, jint normalization) {
+	try {
+		auto *ctx = argeo::jni::as_pointer<llama_context*>(contextPointer);
+		void *emb_arr = env->GetDirectBufferAddress(embBuf);
+		if (emb_arr == NULL)
+			throw std::invalid_argument("Output is not a direct buffer");
+		std::vector<embd_input> prompts = jjml_embd_direct_inputs(env,
+				tokenBuffers, offsets, lengths);
+		jjml_process_embeddings(ctx, prompts,
+				static_cast<float*>(emb_arr) + offset,
+				static_cast<enum llama_pooling_type>(pooling), normalization);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+	}
+}
@@ -1,4 +1,5 @@
 #include <stddef.h>
+#include <cassert>
 #include <cstring>
 #include <functional>
 #include <iostream>
@@ -10,6 +11,7 @@
 #include <argeo/jni/argeo_jni.h>
 #include <argeo/jni/argeo_jni_encoding.h>
 
+#include "jjml_llama.h"
 #include "org_argeo_jjml_llama_.h"
 #include "org_argeo_jjml_llama_LlamaCppModel.h" // IWYU pragma: keep
 #include "org_argeo_jjml_llama_LlamaCppBackend.h" // IWYU pragma: keep
@@ -99,11 +101,11 @@ static void get_model_params(JNIEnv *env, jobject params,
 	jclass clss = env->FindClass(JCLASS_MODEL_PARAMS.c_str());
 	mparams->n_gpu_layers = env->CallIntMethod(params,
 			env->GetMethodID(clss, "n_gpu_layers", "()I"));
-	mparams->vocab_only = env->CallIntMethod(params,
+	mparams->vocab_only = env->CallBooleanMethod(params,
 			env->GetMethodID(clss, "vocab_only", "()Z"));
-	mparams->use_mmap = env->CallIntMethod(params,
+	mparams->use_mmap = env->CallBooleanMethod(params,
 			env->GetMethodID(clss, "use_mmap", "()Z"));
-	mparams->use_mlock = env->CallIntMethod(params,
+	mparams->use_mlock = env->CallBooleanMethod(params,
 			env->GetMethodID(clss, "use_mlock", "()Z"));
 }
 
@@ -163,6 +165,7 @@ JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppModel_doInit(
 JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppModel_doDestroy(
 		JNIEnv *env, jobject obj) {
 	auto *model = argeo::jni::as_pointer<llama_model*>(env, obj);
+	jjml_llama_grammar_cache_free(model);
 	llama_free_model(model);
 }
 
@@ -288,3 +291,27 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppModel_doGetEndOfGenerat
 	llama_token eot = llama_token_eot(model);
 	return eot == -1 ? llama_token_eos(model) : eot;
 }
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppModel_doGetTokenAttributes(
+		JNIEnv *env, jobject obj, jintArray attributes) {
+	auto *model = argeo::jni::as_pointer<llama_model*>(env, obj);
+	const int32_t n_vocab = llama_n_vocab(model);
+	assert(env->GetArrayLength(attributes) >= n_vocab);
+	std::vector<jint> res(n_vocab);
+	for (llama_token token = 0; token < n_vocab; token++)
+		res[token] = llama_token_get_attr(model, token);
+	env->SetIntArrayRegion(attributes, 0, n_vocab, res.data());
+}
+
+JNIEXPORT jintArray JNICALL Java_org_argeo_jjml_llama_LlamaCppModel_doGetEndOfGenerationTokens(
+		JNIEnv *env, jobject obj) {
+	auto *model = argeo::jni::as_pointer<llama_model*>(env, obj);
+	const int32_t n_vocab = llama_n_vocab(model);
+	std::vector<jint> res;
+	for (llama_token token = 0; token < n_vocab; token++)
+		if (llama_token_is_eog(model, token))
+			res.push_back(token);
+	jintArray arr = env->NewIntArray(res.size());
+	env->SetIntArrayRegion(arr, 0, res.size(), res.data());
+	return arr;
+}
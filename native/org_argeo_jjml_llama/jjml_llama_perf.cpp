@@ -0,0 +1,164 @@
+#include <stddef.h>
+#include <atomic>
+#include <chrono>
+#include <memory>
+#include <mutex>
+#include <unordered_map>
+
+#include <llama.h>
+
+#include <argeo/jni/argeo_jni.h>
+
+#include "jjml_llama.h"
+#include "org_argeo_jjml_llama_LlamaCppContext.h" // IWYU pragma: keep
+
+/*
+ * COUNTERS
+ */
+/**
+ * A histogram of durations, bucket 0 counting zero durations and bucket i
+ * durations in [2^(i-1), 2^i) ns.
+ */
+struct jjml_perf_histogram {
+	std::atomic<int64_t> count { 0 };
+	std::atomic<int64_t> total { 0 };
+	std::atomic<int64_t> max { 0 };
+	std::atomic<int64_t> buckets[JJML_PERF_BUCKETS] { };
+
+	void record(int64_t duration) {
+		int bucket = 0;
+		for (uint64_t d = duration > 0 ? duration : 0;
+				d != 0 && bucket < JJML_PERF_BUCKETS - 1; d >>= 1)
+			bucket++;
+		buckets[bucket].fetch_add(1, std::memory_order_relaxed);
+		count.fetch_add(1, std::memory_order_relaxed);
+		total.fetch_add(duration, std::memory_order_relaxed);
+		int64_t prev = max.load(std::memory_order_relaxed);
+		while (prev < duration
+				&& !max.compare_exchange_weak(prev, duration,
+						std::memory_order_relaxed))
+			;
+	}
+
+	void reset() {
+		for (auto &bucket : buckets)
+			bucket.store(0, std::memory_order_relaxed);
+		count.store(0, std::memory_order_relaxed);
+		total.store(0, std::memory_order_relaxed);
+		max.store(0, std::memory_order_relaxed);
+	}
+};
+
+struct jjml_perf {
+	/** Whether durations are recorded, disabled by default.*/
+	std::atomic<bool> timings { false };
+	/** Number of calls to llama_decode, always counted.*/
+	std::atomic<int64_t> n_decode { 0 };
+	jjml_perf_histogram phases[JJML_PERF_PHASES];
+};
+
+static std::mutex jjml_perf_mutex;
+static std::unordered_map<const llama_context*, std::unique_ptr<jjml_perf>> jjml_perf_registry;
+
+jjml_perf* jjml_perf_get(const llama_context *ctx) {
+	std::lock_guard<std::mutex> lock(jjml_perf_mutex);
+	std::unique_ptr<jjml_perf> &perf = jjml_perf_registry[ctx];
+	if (!perf)
+		perf.reset(new jjml_perf());
+	return perf.get();
+}
+
+void jjml_perf_free(const llama_context *ctx) {
+	std::lock_guard<std::mutex> lock(jjml_perf_mutex);
+	jjml_perf_registry.erase(ctx);
+}
+
+void jjml_perf_decode(jjml_perf *perf) {
+	perf->n_decode.fetch_add(1, std::memory_order_relaxed);
+}
+
+int64_t jjml_perf_start(const jjml_perf *perf) {
+	if (!perf->timings.load(std::memory_order_relaxed))
+		return 0;
+	return std::chrono::duration_cast<std::chrono::nanoseconds>(
+			std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+int64_t jjml_perf_elapsed(int64_t start) {
+	if (start == 0)
+		return 0;
+	return std::chrono::duration_cast<std::chrono::nanoseconds>(
+			std::chrono::steady_clock::now().time_since_epoch()).count()
+			- start;
+}
+
+void jjml_perf_end(jjml_perf *perf, jjml_perf_phase phase, int64_t start) {
+	if (start != 0)
+		perf->phases[phase].record(jjml_perf_elapsed(start));
+}
+
+void jjml_perf_record(jjml_perf *perf, jjml_perf_phase phase,
+		int64_t duration) {
+	perf->phases[phase].record(duration);
+}
+
+/*
+ * JNI
+ */
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doGetPerformance(
+		JNIEnv *env, jobject obj, jdoubleArray data) {
+	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	llama_perf_context_data perf_data = llama_perf_context(ctx);
+	jjml_perf *perf = jjml_perf_get(ctx);
+	// see LlamaCppPerformance for the layout
+	jdouble arr[] = { //
+			perf_data.t_start_ms, //
+			perf_data.t_load_ms, //
+			perf_data.t_p_eval_ms, //
+			perf_data.t_eval_ms, //
+			static_cast<jdouble>(perf_data.n_p_eval), //
+			static_cast<jdouble>(perf_data.n_eval), //
+			static_cast<jdouble>(perf->n_decode.load()), //
+	};
+	env->SetDoubleArrayRegion(data, 0, sizeof(arr) / sizeof(jdouble), arr);
+}
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doGetTimings(
+		JNIEnv *env, jobject obj, jlongArray timings) {
+	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	jjml_perf *perf = jjml_perf_get(ctx);
+	const int stride = 3 + JJML_PERF_BUCKETS;
+	jlong arr[JJML_PERF_PHASES * stride];
+	for (int p = 0; p < JJML_PERF_PHASES; p++) {
+		const jjml_perf_histogram &histogram = perf->phases[p];
+		jlong *phase = arr + p * stride;
+		phase[0] = histogram.count.load();
+		phase[1] = histogram.total.load();
+		phase[2] = histogram.max.load();
+		for (int i = 0; i < JJML_PERF_BUCKETS; i++)
+			phase[3 + i] = histogram.buckets[i].load();
+	}
+	env->SetLongArrayRegion(timings, 0, JJML_PERF_PHASES * stride, arr);
+}
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doResetPerformance(
+		JNIEnv *env, jobject obj) {
+	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	llama_perf_context_reset(ctx);
+	jjml_perf *perf = jjml_perf_get(ctx);
+	perf->n_decode.store(0);
+	for (auto &histogram : perf->phases)
+		histogram.reset();
+}
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doSetTimingsEnabled(
+		JNIEnv *env, jobject obj, jboolean enabled) {
+	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	jjml_perf_get(ctx)->timings.store(enabled);
+}
+
+JNIEXPORT jboolean JNICALL Java_org_argeo_jjml_llama_LlamaCppContext_doIsTimingsEnabled(
+		JNIEnv *env, jobject obj) {
+	auto *ctx = argeo::jni::as_pointer<llama_context*>(env, obj);
+	return jjml_perf_get(ctx)->timings.load();
+}
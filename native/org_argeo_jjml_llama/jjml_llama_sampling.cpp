@@ -1,8 +1,18 @@
+#include <cstring>
+#include <list>
+#include <map>
+#include <mutex>
+#include <stdexcept>
+#include <string>
+#include <tuple>
+#include <vector>
+
 #include <llama.h>
 
 #include <argeo/jni/argeo_jni.h>
 #include <argeo/jni/argeo_jni_encoding.h>
 
+#include "jjml_llama.h"
 #include "org_argeo_jjml_llama_.h"
 #include "org_argeo_jjml_llama_LlamaCppNativeSampler.h" // IWYU pragma: keep
 #include "org_argeo_jjml_llama_LlamaCppSamplerChain.h" // IWYU pragma: keep
@@ -84,26 +94,92 @@ JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplers_doInitDist__I
 	return reinterpret_cast<jlong>(llama_sampler_init_dist(seed));
 }
 
-JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplers_doInitGrammar(
-		JNIEnv *env, jclass, jobject modelObj, jstring grammarStr,
-		jstring rootStr) {
-	auto *model = argeo::jni::as_pointer<llama_model*>(env, modelObj);
+/*
+ * GRAMMAR
+ */
+/** A compiled grammar is identified by its model, its text and its root. */
+typedef std::tuple<const llama_model*, std::string, std::string> jjml_grammar_key;
 
-//	const char *grammar_str = env->GetStringUTFChars(grammarStr, nullptr);
-//	const char *grammar_root = env->GetStringUTFChars(rootStr, nullptr);
+/** Maximum number of compiled grammars kept, for all models. */
+static const size_t JJML_GRAMMAR_CACHE_MAX = 64;
 
-	std::string grammar_str = argeo::jni::to_string(env, grammarStr,
-			&utf16_conv);
-	std::string grammar_root = argeo::jni::to_string(env, rootStr, &utf16_conv);
+/** A compiled grammar and its position in the least recently used list. */
+struct jjml_grammar_entry {
+	llama_sampler *prototype;
+	std::list<jjml_grammar_key>::iterator lru;
+};
 
-	llama_sampler *smpl = llama_sampler_init_grammar(model, grammar_str.c_str(),
-			grammar_root.c_str());
+/**
+ * Compiled grammars, used as prototypes which are cloned for each new sampler.
+ * Since clones are independent, the least recently used prototypes can be
+ * freed when the cache is full (e.g. with many distinct JSON schemas).
+ */
+static std::map<jjml_grammar_key, jjml_grammar_entry> jjml_grammar_cache;
+/** Keys of the cache, the most recently used first. */
+static std::list<jjml_grammar_key> jjml_grammar_lru;
+static std::mutex jjml_grammar_cache_mutex;
+
+/** A new grammar sampler, cloned from a cached compiled grammar. */
+static llama_sampler* jjml_llama_sampler_init_grammar(const llama_model *model,
+		const std::string &grammar_str, const std::string &grammar_root) {
+	std::lock_guard<std::mutex> lock(jjml_grammar_cache_mutex);
+	jjml_grammar_key key { model, grammar_str, grammar_root };
+	auto it = jjml_grammar_cache.find(key);
+	if (it == jjml_grammar_cache.end()) {
+		// parsing happens only once per model, grammar and root
+		llama_sampler *prototype = llama_sampler_init_grammar(model,
+				grammar_str.c_str(), grammar_root.c_str());
+		if (prototype == nullptr)
+			throw std::invalid_argument(
+					"Cannot parse grammar with root '" + grammar_root + "'");
+		while (jjml_grammar_cache.size() >= JJML_GRAMMAR_CACHE_MAX) {
+			auto eldest = jjml_grammar_cache.find(jjml_grammar_lru.back());
+			llama_sampler_free(eldest->second.prototype);
+			jjml_grammar_cache.erase(eldest);
+			jjml_grammar_lru.pop_back();
+		}
+		jjml_grammar_lru.push_front(key);
+		it = jjml_grammar_cache.emplace(key, jjml_grammar_entry { prototype,
+				jjml_grammar_lru.begin() }).first;
+	} else {
+		jjml_grammar_lru.splice(jjml_grammar_lru.begin(), jjml_grammar_lru,
+				it->second.lru);
+	}
+	// cloning only copies the already parsed rules and stacks
+	return llama_sampler_clone(it->second.prototype);
+}
 
-	// clean up
-//	env->ReleaseStringUTFChars(grammarStr, grammar_str);
-//	env->ReleaseStringUTFChars(rootStr, grammar_root);
+void jjml_llama_grammar_cache_free(const llama_model *model) {
+	std::lock_guard<std::mutex> lock(jjml_grammar_cache_mutex);
+	for (auto it = jjml_grammar_cache.begin(); it != jjml_grammar_cache.end();) {
+		if (std::get<0>(it->first) == model) {
+			llama_sampler_free(it->second.prototype);
+			jjml_grammar_lru.erase(it->second.lru);
+			it = jjml_grammar_cache.erase(it);
+		} else {
+			++it;
+		}
+	}
+}
 
-	return reinterpret_cast<jlong>(smpl);
+JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplers_doInitGrammar(
+		JNIEnv *env, jclass, jobject modelObj, jstring grammarStr,
+		jstring rootStr) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(env, modelObj);
+
+		std::string grammar_str = argeo::jni::to_string(env, grammarStr,
+				&utf16_conv);
+		std::string grammar_root = argeo::jni::to_string(env, rootStr,
+				&utf16_conv);
+
+		llama_sampler *smpl = jjml_llama_sampler_init_grammar(model,
+				grammar_str, grammar_root);
+		return reinterpret_cast<jlong>(smpl);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
 }
 
 /*
@@ -200,6 +276,144 @@ JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplers_doInitJavaSam
 	return reinterpret_cast<jlong>(jjml_llama_sampler_init_java(env,
 			javaSamplerObj));
 }
+/*
+ * JAVA BULK SAMPLER
+ */
+struct jjml_llama_sampler_java_bulk {
+	const jobject candidates; // LlamaCppCandidates
+	const char *name; //
+	JavaVM *jvm; //
+	// structure of arrays, reused and shared with Java
+	std::vector<llama_token> ids; //
+	std::vector<float> logits; //
+	std::vector<float> probs; //
+};
+
+void jjml_llama_sampler_java_bulk_apply(struct llama_sampler *smpl,
+		llama_token_data_array *cur_p) {
+	auto *ctx = static_cast<jjml_llama_sampler_java_bulk*>(smpl->ctx);
+	JNIEnv *env;
+	argeo::jni::load_thread_jnienv(ctx->jvm, (void**) &env);
+
+	const size_t size = cur_p->size;
+	if (ctx->ids.size() < size) {
+		// Java buffers are recreated only when capacity grows
+		ctx->ids.resize(size);
+		ctx->logits.resize(size);
+		ctx->probs.resize(size);
+		jobject idsBuf = env->NewDirectByteBuffer(ctx->ids.data(),
+				size * sizeof(llama_token));
+		jobject logitsBuf = env->NewDirectByteBuffer(ctx->logits.data(),
+				size * sizeof(float));
+		jobject probsBuf = env->NewDirectByteBuffer(ctx->probs.data(),
+				size * sizeof(float));
+		env->CallVoidMethod(ctx->candidates, LlamaCppCandidates$setBuffers,
+				idsBuf, logitsBuf, probsBuf);
+		env->DeleteLocalRef(idsBuf);
+		env->DeleteLocalRef(logitsBuf);
+		env->DeleteLocalRef(probsBuf);
+		if (env->ExceptionCheck())
+			return;
+	}
+
+	llama_token *ids = ctx->ids.data();
+	float *logits = ctx->logits.data();
+	float *probs = ctx->probs.data();
+	for (size_t i = 0; i < size; i++) {
+		ids[i] = cur_p->data[i].id;
+		logits[i] = cur_p->data[i].logit;
+		probs[i] = cur_p->data[i].p;
+	}
+
+	jlong selected = env->CallLongMethod(ctx->candidates,
+			LlamaCppCandidates$apply, static_cast<jint>(size),
+			static_cast<jlong>(cur_p->selected),
+			static_cast<jboolean>(cur_p->sorted));
+	if (env->ExceptionCheck())
+		return; // candidates are left unchanged
+
+	jint new_size = env->GetIntField(ctx->candidates, LlamaCppCandidates$size);
+	// checked in release builds as well, since it comes from user code
+	if (new_size < 0 || static_cast<size_t>(new_size) > size) {
+		argeo::jni::throw_to_java(env,
+				std::range_error(
+						"Candidates size " + std::to_string(new_size)
+								+ " is not between 0 and "
+								+ std::to_string(size)));
+		return; // candidates are left unchanged
+	}
+	if (selected >= new_size) {
+		argeo::jni::throw_to_java(env,
+				std::range_error(
+						"Selected index " + std::to_string(selected)
+								+ " is not lower than candidates size "
+								+ std::to_string(new_size)
+								+ " (an index is expected, not a token)"));
+		return; // candidates are left unchanged
+	}
+	for (jint i = 0; i < new_size; i++)
+		cur_p->data[i] = llama_token_data { ids[i], logits[i], probs[i] };
+	cur_p->size = new_size;
+	cur_p->sorted = env->GetBooleanField(ctx->candidates,
+			LlamaCppCandidates$sorted);
+	if (selected >= 0) {
+		cur_p->selected = static_cast<int64_t>(selected);
+	}
+}
+
+void jjml_llama_sampler_java_bulk_accept(struct llama_sampler *smpl,
+		llama_token token) {
+	const auto *ctx = static_cast<jjml_llama_sampler_java_bulk*>(smpl->ctx);
+	JNIEnv *env;
+	argeo::jni::load_thread_jnienv(ctx->jvm, (void**) &env);
+
+	env->CallVoidMethod(ctx->candidates, LlamaCppCandidates$accept, token);
+}
+
+void jjml_llama_sampler_java_bulk_reset(struct llama_sampler *smpl) {
+	const auto *ctx = static_cast<jjml_llama_sampler_java_bulk*>(smpl->ctx);
+	JNIEnv *env;
+	argeo::jni::load_thread_jnienv(ctx->jvm, (void**) &env);
+
+	env->CallVoidMethod(ctx->candidates, LlamaCppCandidates$reset);
+}
+
+void jjml_llama_sampler_java_bulk_free(struct llama_sampler *smpl) {
+	const auto *ctx = static_cast<jjml_llama_sampler_java_bulk*>(smpl->ctx);
+	JNIEnv *env;
+	argeo::jni::load_thread_jnienv(ctx->jvm, (void**) &env);
+
+	env->DeleteGlobalRef(ctx->candidates);
+	delete ctx;
+}
+
+static const char* jjml_llama_sampler_java_bulk_name(
+		const struct llama_sampler *smpl) {
+	const auto *ctx = static_cast<jjml_llama_sampler_java_bulk*>(smpl->ctx);
+	return ctx->name;
+}
+
+static struct llama_sampler_i jjml_llama_sampler_java_bulk_i = {
+/* .name   = */jjml_llama_sampler_java_bulk_name,
+/* .accept = */jjml_llama_sampler_java_bulk_accept,
+/* .apply  = */jjml_llama_sampler_java_bulk_apply,
+/* .reset  = */jjml_llama_sampler_java_bulk_reset,
+/* .clone  = */nullptr,
+/* .free   = */jjml_llama_sampler_java_bulk_free, };
+
+JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplers_doInitJavaBulkSampler(
+		JNIEnv *env, jclass, jobject candidatesObj) {
+	jjml_llama_sampler_java_bulk *ctx = new jjml_llama_sampler_java_bulk {
+			env->NewGlobalRef(candidatesObj), //
+			"java-bulk" //
+			};
+	env->GetJavaVM(&ctx->jvm);
+	return reinterpret_cast<jlong>(new llama_sampler {
+	/* .iface = */&jjml_llama_sampler_java_bulk_i,
+	/* .ctx   = */ctx, //
+	});
+}
+
 /*
  * SAMPLER CHAIN
  */
@@ -237,6 +451,21 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplerChain_doGetSize(
 	return llama_sampler_chain_n(chain);
 }
 
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplerChain_doGetPerformance(
+		JNIEnv *env, jobject obj, jdoubleArray data) {
+	auto *chain = argeo::jni::as_pointer<llama_sampler*>(env, obj);
+	llama_perf_sampler_data perf_data = llama_perf_sampler(chain);
+	jdouble arr[] = { perf_data.t_sample_ms,
+			static_cast<jdouble>(perf_data.n_sample) };
+	env->SetDoubleArrayRegion(data, 0, 2, arr);
+}
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppSamplerChain_doResetPerformance(
+		JNIEnv *env, jobject obj) {
+	auto *chain = argeo::jni::as_pointer<llama_sampler*>(env, obj);
+	llama_perf_sampler_reset(chain);
+}
+
 /*
  * GENERIC SAMPLER
  */
@@ -252,6 +481,54 @@ JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppNativeSampler_doDestroy
 	llama_sampler_free(smpl);
 }
 
+/** Whether llama_sampler_clone() can be used without aborting. */
+static bool jjml_llama_sampler_is_clonable(llama_sampler *smpl) {
+	if (smpl->iface->clone == nullptr)
+		return smpl->ctx == nullptr;
+	if (std::strcmp(llama_sampler_name(smpl), "chain") == 0) {
+		for (int i = 0; i < llama_sampler_chain_n(smpl); i++)
+			if (!jjml_llama_sampler_is_clonable(llama_sampler_chain_get(smpl, i)))
+				return false;
+	}
+	return true;
+}
+
+JNIEXPORT jboolean JNICALL Java_org_argeo_jjml_llama_LlamaCppNativeSampler_doIsClonable(
+		JNIEnv *env, jobject obj) {
+	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(env, obj);
+	return jjml_llama_sampler_is_clonable(smpl);
+}
+
+/** Replaces the distribution samplers of a chain by new ones with this seed.*/
+static void jjml_llama_sampler_reseed(llama_sampler *chain, uint32_t seed) {
+	// samplers cannot be inserted, so that they are all removed and added back
+	std::vector<llama_sampler*> samplers;
+	const int n = llama_sampler_chain_n(chain);
+	for (int i = 0; i < n; i++)
+		samplers.push_back(llama_sampler_chain_remove(chain, 0));
+	for (llama_sampler *smpl : samplers) {
+		if (std::strcmp(llama_sampler_name(smpl), "dist") == 0) {
+			llama_sampler_free(smpl);
+			smpl = llama_sampler_init_dist(seed);
+		} else if (std::strcmp(llama_sampler_name(smpl), "chain") == 0) {
+			jjml_llama_sampler_reseed(smpl, seed);
+		}
+		llama_sampler_chain_add(chain, smpl);
+	}
+}
+
+JNIEXPORT void JNICALL Java_org_argeo_jjml_llama_LlamaCppNativeSampler_doReseed(
+		JNIEnv *env, jobject obj, jint seed) {
+	try {
+		auto *smpl = argeo::jni::as_pointer<llama_sampler*>(env, obj);
+		if (std::strcmp(llama_sampler_name(smpl), "chain") != 0)
+			throw std::invalid_argument("Only a sampler chain can be reseeded");
+		jjml_llama_sampler_reseed(smpl, static_cast<uint32_t>(seed));
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+	}
+}
+
 JNIEXPORT jlong JNICALL Java_org_argeo_jjml_llama_LlamaCppNativeSampler_doClone(
 		JNIEnv *env, jobject obj) {
 	auto *smpl = argeo::jni::as_pointer<llama_sampler*>(env, obj);
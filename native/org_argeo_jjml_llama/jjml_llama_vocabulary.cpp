@@ -1,5 +1,7 @@
 #include <algorithm>
 #include <cassert>
+#include <cstring>
+#include <stdexcept>
 #include <string>
 #include <vector>
 
@@ -9,11 +11,12 @@
 #include <argeo/jni/argeo_jni.h>
 #include <argeo/jni/argeo_jni_encoding.h>
 
+#include "jjml_llama.h"
 #include "org_argeo_jjml_llama_.h"
 #include "org_argeo_jjml_llama_LlamaCppVocabulary.h" // IWYU pragma: keep
 
-/** UTF-16 converter. */
-static argeo::jni::utf16_convert utf16_conv;
+/** UTF-16 converter, per thread since it is stateful. */
+static thread_local argeo::jni::utf16_convert utf16_conv;
 
 /*
  * VOCABULARY
@@ -56,6 +59,16 @@ static std::vector<llama_token> jjml_cpp_string_to_tokens(llama_model *model,
 	return tokens;
 }
 
+/** The number of tokens, without writing them. */
+static jint jjml_count_tokens(llama_model *model, const char *u8_chars,
+		int u8_size, jboolean add_special, jboolean parse_special) {
+	int32_t n_tokens = llama_tokenize(model, u8_chars, u8_size, nullptr, 0,
+			add_special, parse_special);
+	if (n_tokens == INT32_MIN)
+		throw std::overflow_error("Too many tokens");
+	return n_tokens < 0 ? -n_tokens : n_tokens;
+}
+
 /*
  * UTF-8 from Java
  */
@@ -136,6 +149,107 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doTokenizeUt
 	return n_tokens;
 }
 
+/**
+ * Tokenizes multiple strings packed in a direct buffer, the strings being
+ * distributed in contiguous chunks over the worker pool. Tokens are first
+ * written per chunk, and then copied to the output once their offsets are
+ * known.
+ *
+ * @return the number of tokens written, or its opposite if the output is too
+ * small, in which case nothing is written
+ */
+JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doTokenizeUtf8Multiple(
+		JNIEnv *env, jclass, jlong pointer, jobject u8Buf, jintArray offsets,
+		jobject tokensBuf, jint pos, jint size, jintArray tokenOffsets,
+		jboolean addSpecial, jboolean parseSpecial, jint nThreads) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(pointer);
+
+		// input
+		char *u8_chars = static_cast<char*>(env->GetDirectBufferAddress(u8Buf));
+		if (u8_chars == NULL)
+			throw std::invalid_argument("Input is not a direct buffer");
+		const jlong u8_capacity = env->GetDirectBufferCapacity(u8Buf);
+		const int n_strings = env->GetArrayLength(offsets) - 1;
+		if (n_strings < 0
+				|| env->GetArrayLength(tokenOffsets) != n_strings + 1)
+			throw std::invalid_argument(
+					"Offsets must have one more value than strings");
+		std::vector<jint> u8_offsets(n_strings + 1);
+		env->GetIntArrayRegion(offsets, 0, n_strings + 1, u8_offsets.data());
+		for (int i = 0; i < n_strings; i++)
+			if (u8_offsets[i] < 0 || u8_offsets[i] > u8_offsets[i + 1]
+					|| u8_offsets[i + 1] > u8_capacity)
+				throw std::out_of_range(
+						"Invalid offsets for string " + std::to_string(i));
+
+		// output
+		llama_token *tokens_arr = static_cast<llama_token*>(env->GetDirectBufferAddress(
+				tokensBuf));
+		if (tokens_arr == NULL)
+			throw std::invalid_argument("Output is not a direct buffer");
+
+		// a few chunks per thread, for balance
+		const int n_threads = std::max(1, (int) nThreads);
+		const int n_chunks = std::min(n_strings, n_threads * 4);
+		std::vector<std::vector<llama_token>> chunk_tokens(n_chunks);
+		std::vector<jint> counts(n_strings);
+		jjml_parallel_for(n_threads, n_chunks, [&](int c) {
+			const int begin = (int) ((int64_t) n_strings * c / n_chunks);
+			const int end = (int) ((int64_t) n_strings * (c + 1) / n_chunks);
+			std::vector<llama_token> &res = chunk_tokens[c];
+			res.resize(u8_offsets[end] - u8_offsets[begin]
+					+ (end - begin) * (2 * addSpecial + 1));
+			int n_res = 0;
+			for (int i = begin; i < end; i++) {
+				char *str = u8_chars + u8_offsets[i];
+				const int length = u8_offsets[i + 1] - u8_offsets[i];
+				int n = llama_tokenize(model, str, length, res.data() + n_res,
+						res.size() - n_res, addSpecial, parseSpecial);
+				if (n < 0) {
+					res.resize(n_res - n);
+					n = llama_tokenize(model, str, length, res.data() + n_res,
+							res.size() - n_res, addSpecial, parseSpecial);
+					GGML_ASSERT(n >= 0);
+				}
+				counts[i] = n;
+				n_res += n;
+			}
+			res.resize(n_res);
+		});
+
+		// offsets
+		std::vector<jint> token_offsets(n_strings + 1);
+		std::vector<jint> chunk_offsets(n_chunks);
+		int64_t total = 0;
+		for (int c = 0; c < n_chunks; c++) {
+			chunk_offsets[c] = pos + total;
+			total += chunk_tokens[c].size();
+		}
+		if (total > size)
+			return -static_cast<jint>(std::min(total, (int64_t) INT32_MAX));
+		jint offset = pos;
+		for (int i = 0; i < n_strings; i++) {
+			token_offsets[i] = offset;
+			offset += counts[i];
+		}
+		token_offsets[n_strings] = offset;
+
+		jjml_parallel_for(n_threads, n_chunks, [&](int c) {
+			std::vector<llama_token> &res = chunk_tokens[c];
+			if (!res.empty())
+				std::memcpy(tokens_arr + chunk_offsets[c], res.data(),
+						res.size() * sizeof(llama_token));
+		});
+		env->SetIntArrayRegion(tokenOffsets, 0, n_strings + 1,
+				token_offsets.data());
+		return static_cast<jint>(total);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
+}
+
 JNIEXPORT jbyteArray JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doDeTokenizeArrayAsUtf8Bytes(
 		JNIEnv *env, jclass, jlong pointer, jintArray tokenList, jint pos,
 		jint size, jboolean removeSpecial, jboolean unparseSpecial) {
@@ -211,6 +325,112 @@ JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doDeTokenize
 	return n_chars;
 }
 
+/*
+ * COUNT
+ */
+JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doCountTokensUtf8Bytes(
+		JNIEnv *env, jclass, jlong pointer, jbyteArray str, jint offset,
+		jint length, jboolean addSpecial, jboolean parseSpecial) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(pointer);
+		// copy rather than pin, so that concurrent calls don't block the GC
+		std::string text(length, '\0');
+		env->GetByteArrayRegion(str, offset, length,
+				reinterpret_cast<jbyte*>(&text[0]));
+		return jjml_count_tokens(model, text.data(), text.size(), addSpecial,
+				parseSpecial);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doCountTokensUtf8(
+		JNIEnv *env, jclass, jlong pointer, jobject u8Buf, jint offset,
+		jint length, jboolean addSpecial, jboolean parseSpecial) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(pointer);
+		void *u8_arr = env->GetDirectBufferAddress(u8Buf);
+		if (u8_arr == NULL)
+			throw std::invalid_argument("Input is not a direct buffer");
+		assert(env->GetDirectBufferCapacity(u8Buf) >= offset + length);
+		return jjml_count_tokens(model, static_cast<char*>(u8_arr) + offset,
+				length, addSpecial, parseSpecial);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
+}
+
+JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doCountTokensString(
+		JNIEnv *env, jclass, jlong pointer, jstring str, jboolean addSpecial,
+		jboolean parseSpecial) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(pointer);
+		jsize length = env->GetStringLength(str);
+		std::u16string u16text(length, u'\0');
+		env->GetStringRegion(str, 0, length,
+				reinterpret_cast<jchar*>(&u16text[0]));
+		std::string text = utf16_conv.to_bytes(u16text);
+		return jjml_count_tokens(model, text.data(), text.size(), addSpecial,
+				parseSpecial);
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
+}
+
+/*
+ * PIECES
+ */
+JNIEXPORT jint JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doWritePieces(
+		JNIEnv *env, jclass, jlong pointer, jobject u8Buf, jobject offsetsBuf,
+		jobject attributesBuf) {
+	try {
+		auto *model = argeo::jni::as_pointer<llama_model*>(pointer);
+		char *u8_chars = static_cast<char*>(env->GetDirectBufferAddress(u8Buf));
+		jint *offsets = static_cast<jint*>(env->GetDirectBufferAddress(
+				offsetsBuf));
+		jint *attributes = static_cast<jint*>(env->GetDirectBufferAddress(
+				attributesBuf));
+		if (u8_chars == NULL || offsets == NULL || attributes == NULL)
+			throw std::invalid_argument("Output is not a direct buffer");
+		const int32_t n_vocab = llama_n_vocab(model);
+		assert(env->GetDirectBufferCapacity(offsetsBuf) >= n_vocab + 1);
+		assert(env->GetDirectBufferCapacity(attributesBuf) >= n_vocab);
+		const jlong capacity = env->GetDirectBufferCapacity(u8Buf);
+
+		// pieces are rendered with special tokens, since they can be skipped
+		// based on their attributes
+		std::string piece(64, '\0');
+		jlong n_chars = 0;
+		for (llama_token token = 0; token < n_vocab; token++) {
+			int32_t n = llama_token_to_piece(model, token, &piece[0],
+					piece.size(), 0, true);
+			if (n < 0) {
+				piece.resize(-n);
+				n = llama_token_to_piece(model, token, &piece[0], piece.size(),
+						0, true);
+			}
+			if (n_chars + n <= capacity)
+				std::memcpy(u8_chars + n_chars, piece.data(), n);
+			offsets[token] = static_cast<jint>(n_chars);
+			attributes[token] = llama_token_get_attr(model, token);
+			n_chars += n;
+		}
+		offsets[n_vocab] = static_cast<jint>(n_chars);
+		if (n_chars > INT32_MAX)
+			throw std::length_error("Pieces are too large");
+		return n_chars <= capacity ? n_chars : -n_chars;
+	} catch (const std::exception &ex) {
+		argeo::jni::throw_to_java(env, ex);
+		return 0;
+	}
+}
+
+/*
+ * UTF-16 from Java
+ */
 JNIEXPORT jintArray JNICALL Java_org_argeo_jjml_llama_LlamaCppVocabulary_doTokenizeStringAsArray(
 		JNIEnv *env, jclass, jlong pointer, jstring str, jboolean addSpecial,
 		jboolean parseSpecial) {
@@ -24,6 +24,16 @@ jmethodID CompletionHandler$failed;
 jmethodID LlamaCppJavaSampler$apply;
 jmethodID LlamaCppJavaSampler$accept;
 jmethodID LlamaCppJavaSampler$reset;
+jmethodID LlamaCppCandidates$setBuffers;
+jmethodID LlamaCppCandidates$apply;
+jmethodID LlamaCppCandidates$accept;
+jmethodID LlamaCppCandidates$reset;
+jfieldID LlamaCppCandidates$size;
+jfieldID LlamaCppCandidates$sorted;
+jmethodID LlamaCppBatchSampling$sample;
+jfieldID LlamaCppBatchSampling$indices;
+jfieldID LlamaCppBatchSampling$selected;
+jfieldID LlamaCppBatchSampling$logits;
 
 /*
  * org.argeo.jjml.llama.params package
@@ -70,6 +80,32 @@ static void org_argeo_jjml_llama_(JNIEnv *env) {
 	LlamaCppJavaSampler$reset = argeo::jni::jmethod_id(env, LlamaCppJavaSampler,
 			"reset", "()V");
 
+	jclass LlamaCppCandidates = argeo::jni::find_jclass(env, JCLASS_CANDIDATES);
+	LlamaCppCandidates$setBuffers = argeo::jni::jmethod_id(env,
+			LlamaCppCandidates, "setBuffers",
+			"(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;)V");
+	LlamaCppCandidates$apply = argeo::jni::jmethod_id(env, LlamaCppCandidates,
+			"apply", "(IJZ)J");
+	LlamaCppCandidates$accept = argeo::jni::jmethod_id(env, LlamaCppCandidates,
+			"accept", "(I)V");
+	LlamaCppCandidates$reset = argeo::jni::jmethod_id(env, LlamaCppCandidates,
+			"reset", "()V");
+	LlamaCppCandidates$size = argeo::jni::jfield_id(env, LlamaCppCandidates,
+			"size", "I");
+	LlamaCppCandidates$sorted = argeo::jni::jfield_id(env, LlamaCppCandidates,
+			"sorted", "Z");
+
+	jclass LlamaCppBatchSampling = argeo::jni::find_jclass(env,
+			JCLASS_BATCH_SAMPLING);
+	LlamaCppBatchSampling$sample = argeo::jni::jmethod_id(env,
+			LlamaCppBatchSampling, "sample", "(I)V");
+	LlamaCppBatchSampling$indices = argeo::jni::jfield_id(env,
+			LlamaCppBatchSampling, "indices", "[I");
+	LlamaCppBatchSampling$selected = argeo::jni::jfield_id(env,
+			LlamaCppBatchSampling, "selected", "[I");
+	LlamaCppBatchSampling$logits = argeo::jni::jfield_id(env,
+			LlamaCppBatchSampling, "logits", "Ljava/nio/ByteBuffer;");
+
 	/*
 	 * org.argeo.jjml.llama.params package
 	 */
@@ -13,6 +13,8 @@ const std::string JNI_PKG = "org/argeo/jjml/llama/";
 const std::string JCLASS_MODEL_PARAMS = JNI_PKG + "params/ModelParams";
 const std::string JCLASS_CONTEXT_PARAMS = JNI_PKG + "params/ContextParams";
 const std::string JCLASS_JAVA_SAMPLER = JNI_PKG + "LlamaCppJavaSampler";
+const std::string JCLASS_CANDIDATES = JNI_PKG + "LlamaCppCandidates";
+const std::string JCLASS_BATCH_SAMPLING = JNI_PKG + "LlamaCppBatchSampling";
 
 // NOTE: Only standard Java or this package's classes should be cached,
 // as the class loader may change in a dynamic environment (such as OSGi).
@@ -32,6 +34,17 @@ extern jmethodID CompletionHandler$failed;
 extern jmethodID LlamaCppJavaSampler$apply;
 extern jmethodID LlamaCppJavaSampler$accept;
 extern jmethodID LlamaCppJavaSampler$reset;
+extern jmethodID LlamaCppCandidates$setBuffers;
+extern jmethodID LlamaCppCandidates$apply;
+extern jmethodID LlamaCppCandidates$accept;
+extern jmethodID LlamaCppCandidates$reset;
+extern jmethodID LlamaCppBatchSampling$sample;
+// FIELDS
+extern jfieldID LlamaCppCandidates$size;
+extern jfieldID LlamaCppCandidates$sorted;
+extern jfieldID LlamaCppBatchSampling$indices;
+extern jfieldID LlamaCppBatchSampling$selected;
+extern jfieldID LlamaCppBatchSampling$logits;
 
 /*
  * org.argeo.jjml.llama.params package
@@ -0,0 +1,210 @@
+package org.argeo.jjml.llama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.argeo.jjml.llama.params.ContextParam;
+import org.argeo.jjml.llama.params.ContextParams;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Prompt processing and generation through the low-level methods of
+ * {@link LlamaCppBatchProcessor}, with a prompt common to all the sequences.
+ * Besides invocations per second, JMH reports the <code>promptTokens</code> and
+ * <code>generatedTokens</code> counters as rates, that is tokens per second
+ * (for all the sequences, in the case of generation).
+ * <p>
+ * Since the KV cache cannot be cleared yet, each invocation uses a new context,
+ * created outside of the measurement. A tiny model is therefore recommended.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchProcessorBenchmark {
+	@Param({ "1", "4", "16", "64" })
+	int parallel;
+
+	/** Whether the buffers are direct or backed by an array (and copied). */
+	@Param({ "true", "false" })
+	boolean direct;
+
+	/** Logical and physical batch sizes, as <code>n_batch:n_ubatch</code>. */
+	@Param({ "512:512", "512:128", "2048:512" })
+	String batch;
+
+	@Param({ "256" })
+	int promptLength;
+
+	/** Maximum number of tokens generated per sequence. */
+	@Param({ "32" })
+	int generatedLength;
+
+	private LlamaCppModel model;
+	private LlamaCppSamplerChain samplerChain;
+	private ContextParams contextParams;
+	private Set<Integer> sequenceIds;
+	private int[] prompt;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		model = JjmlBenchmarks.loadModel(false);
+		samplerChain = LlamaCppSamplers.newDefaultSampler(model, false);
+
+		String[] batchSizes = batch.split(":");
+		contextParams = LlamaCppContext.defaultContextParams() //
+				.with(ContextParam.n_ctx, promptLength + parallel * (generatedLength + 1)) //
+				.with(ContextParam.n_batch, batchSizes[0]) //
+				.with(ContextParam.n_ubatch, batchSizes[1]) //
+				.with(ContextParam.n_seq_max, parallel);
+		sequenceIds = IntStream.range(0, parallel).boxed().collect(Collectors.toSet());
+
+		IntBuffer tokens = model.getVocabulary().tokenize(JjmlBenchmarks.text(8 * promptLength), true, false);
+		if (tokens.remaining() < promptLength)
+			throw new IllegalStateException("Sample text is only " + tokens.remaining() + " tokens long");
+		prompt = new int[promptLength];
+		tokens.get(prompt);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		samplerChain.close();
+		model.close();
+	}
+
+	/*
+	 * BENCHMARKS
+	 */
+	@Benchmark
+	public void promptProcessing(NewSession session, Tokens tokens) {
+		session.processor.writeBatch(session.input, true);
+		tokens.promptTokens += promptLength;
+	}
+
+	@Benchmark
+	public boolean generation(PromptedSession session, Tokens tokens) {
+		boolean completed = session.processor.readBatchAsync(session.outputs, null).join();
+		for (IntBuffer output : session.outputs)
+			tokens.generatedTokens += output.position();
+		return completed;
+	}
+
+	/*
+	 * STATES
+	 */
+	/** Tokens processed, which JMH reports as rates. */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Tokens {
+		public long promptTokens;
+		public long generatedTokens;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			promptTokens = 0;
+			generatedTokens = 0;
+		}
+	}
+
+	/** A new context, to which nothing has been written yet. */
+	@State(Scope.Thread)
+	public static class NewSession {
+		Session session;
+		LlamaCppBatchProcessor processor;
+		IntBuffer input;
+
+		@Setup(Level.Invocation)
+		public void open(BatchProcessorBenchmark benchmark) {
+			session = benchmark.newSession();
+			processor = session.processor;
+			input = session.input;
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() {
+			session.close();
+		}
+	}
+
+	/** A new context, to which the prompt has been written. */
+	@State(Scope.Thread)
+	public static class PromptedSession {
+		Session session;
+		LlamaCppBatchProcessor processor;
+		IntBuffer[] outputs;
+
+		@Setup(Level.Invocation)
+		public void open(BatchProcessorBenchmark benchmark) {
+			session = benchmark.newSession();
+			processor = session.processor;
+			outputs = session.outputs;
+			processor.writeBatch(session.input, true);
+		}
+
+		@TearDown(Level.Invocation)
+		public void close() {
+			session.close();
+		}
+	}
+
+	private Session newSession() {
+		LlamaCppContext context = new LlamaCppContext(model, contextParams);
+		LlamaCppBatchProcessor processor = new LlamaCppBatchProcessor(context, samplerChain, null, sequenceIds);
+		IntBuffer input = newIntBuffer(promptLength, direct);
+		input.put(prompt).flip();
+		IntBuffer[] outputs = new IntBuffer[parallel];
+		for (int i = 0; i < parallel; i++)
+			outputs[i] = newIntBuffer(generatedLength, direct);
+		return new Session(context, processor, input, outputs);
+	}
+
+	private static class Session {
+		final LlamaCppContext context;
+		final LlamaCppBatchProcessor processor;
+		final IntBuffer input;
+		final IntBuffer[] outputs;
+
+		Session(LlamaCppContext context, LlamaCppBatchProcessor processor, IntBuffer input, IntBuffer[] outputs) {
+			this.context = context;
+			this.processor = processor;
+			this.input = input;
+			this.outputs = outputs;
+		}
+
+		void close() {
+			processor.close();
+			context.close();
+		}
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private static IntBuffer newIntBuffer(int capacity, boolean direct) {
+		if (direct)
+			return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+		else
+			return IntBuffer.allocate(capacity);
+	}
+}
@@ -0,0 +1,79 @@
+package org.argeo.jjml.llama;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.argeo.jjml.llama.params.ModelParam;
+import org.argeo.jjml.llama.params.ModelParams;
+import org.argeo.jjml.llama.util.TinyModel;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Shared utilities of the JMH benchmarks, and a launcher running them with the
+ * GC profiler. The benchmarks are in the same package as the API so that they
+ * can exercise package-private code paths, and must therefore be run from the
+ * classpath.
+ */
+public class JjmlBenchmarks {
+	/**
+	 * Path to the GGUF model to use. A small model is enough. If not set, a tiny
+	 * random model is generated.
+	 */
+	public final static String SYSTEM_PROPERTY_MODEL = "jjml.bench.model";
+
+	/** Mixes ASCII, accented Latin, CJK and 4-byte UTF-8 characters. */
+	private final static String SAMPLE = "The quick brown fox jumps over the lazy dog. "
+			+ "Voix ambiguë d'un cœur qui, au zéphyr, préfère les jattes de kiwis. " //
+			+ "色は匂へど散りぬるを 我が世誰ぞ常ならむ。 " //
+			+ "Emoji 🦙 and math 𝒜.\n";
+
+	/**
+	 * Loads the model set with {@link #SYSTEM_PROPERTY_MODEL} (or a tiny random
+	 * one), with the default model parameters. It runs on CPU, unless GPU
+	 * offloading is explicitly requested with the related system property.
+	 */
+	static LlamaCppModel loadModel(boolean vocabularyOnly) throws IOException {
+		String modelPathStr = System.getProperty(SYSTEM_PROPERTY_MODEL);
+		Path modelPath = modelPathStr != null ? Paths.get(modelPathStr) : new TinyModel().writeTemporary();
+		ModelParams modelParams = LlamaCppModel.defaultModelParams();
+		if (vocabularyOnly)
+			modelParams = modelParams.with(ModelParam.vocab_only, true);
+		if (System.getProperty(ModelParam.n_gpu_layers.asSystemProperty()) == null)
+			modelParams = modelParams.with(ModelParam.n_gpu_layers, 0);
+		return LlamaCppModel.load(modelPath, modelParams);
+	}
+
+	/** A deterministic multilingual text of exactly this number of chars. */
+	static String text(int length) {
+		StringBuilder sb = new StringBuilder(length + SAMPLE.length());
+		while (sb.length() < length)
+			sb.append(SAMPLE);
+		sb.setLength(length);
+		// do not cut a surrogate pair
+		if (length > 0 && Character.isHighSurrogate(sb.charAt(length - 1)))
+			sb.setCharAt(length - 1, ' ');
+		return sb.toString();
+	}
+
+	/**
+	 * Runs the benchmarks matching the regular expression passed as first
+	 * argument (all of them by default), with the GC profiler.
+	 */
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : JjmlBenchmarks.class.getPackageName() + ".*Benchmark";
+		Options options = new OptionsBuilder() //
+				.include(include) //
+				.addProfiler(GCProfiler.class) //
+				.build();
+		new Runner(options).run();
+	}
+
+	/** singleton */
+	private JjmlBenchmarks() {
+	}
+}
@@ -0,0 +1,157 @@
+package org.argeo.jjml.llama;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Tokenization and de-tokenization through the various code paths of
+ * {@link LlamaCppVocabulary}: conversion to UTF-8 in Java or on the native side
+ * (string mode), and direct, heap or read-only buffers (which are copied).
+ * Output buffers cannot be read-only, so that heap buffers are used instead.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class VocabularyBenchmark {
+	public enum InputSize {
+		SHORT(64), MEDIUM(2 * 1024), DOCUMENT(64 * 1024);
+
+		private final int chars;
+
+		InputSize(int chars) {
+			this.chars = chars;
+		}
+	}
+
+	public enum BufferKind {
+		HEAP, DIRECT, READ_ONLY;
+	}
+
+	@Param({ "SHORT", "MEDIUM", "DOCUMENT" })
+	InputSize size;
+
+	/** Whether conversion to UTF-8 happens on the native side. */
+	@Param({ "false", "true" })
+	boolean stringMode;
+
+	@Param({ "HEAP", "DIRECT", "READ_ONLY" })
+	BufferKind buffers;
+
+	private LlamaCppModel model;
+	private LlamaCppVocabulary vocabulary;
+
+	// inputs
+	private String text;
+	private ByteBuffer utf8;
+	private IntBuffer tokens;
+
+	// outputs
+	private IntBuffer tokensOut;
+	private ByteBuffer utf8Out;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		model = JjmlBenchmarks.loadModel(true);
+		vocabulary = model.getVocabulary();
+		vocabulary.setStringMode(stringMode);
+
+		text = JjmlBenchmarks.text(size.chars);
+		byte[] bytes = text.getBytes(UTF_8);
+		utf8 = newByteBuffer(bytes.length, buffers == BufferKind.DIRECT);
+		utf8.put(bytes).flip();
+		int[] tokenArr = vocabulary.tokenizeUtf8(ByteBuffer.wrap(bytes), false, true);
+		tokens = newIntBuffer(tokenArr.length, buffers == BufferKind.DIRECT);
+		tokens.put(tokenArr).flip();
+		if (buffers == BufferKind.READ_ONLY) {
+			utf8 = utf8.asReadOnlyBuffer();
+			tokens = tokens.asReadOnlyBuffer();
+		}
+
+		// room for special tokens and pieces added when de-tokenizing
+		tokensOut = newIntBuffer(tokenArr.length + 16, buffers == BufferKind.DIRECT);
+		utf8Out = newByteBuffer(2 * bytes.length + 64, buffers == BufferKind.DIRECT);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		model.close();
+	}
+
+	/*
+	 * TOKENIZATION
+	 */
+	@Benchmark
+	public IntBuffer tokenizeString() {
+		return vocabulary.tokenize(text, false, true);
+	}
+
+	@Benchmark
+	public IntBuffer tokenizeStringToBuffer() {
+		tokensOut.clear();
+		vocabulary.tokenize(text, tokensOut, false, true);
+		return tokensOut;
+	}
+
+	@Benchmark
+	public IntBuffer tokenizeUtf8() {
+		return vocabulary.tokenize(utf8.duplicate(), false, true);
+	}
+
+	@Benchmark
+	public IntBuffer tokenizeUtf8ToBuffer() {
+		tokensOut.clear();
+		vocabulary.tokenize(utf8.duplicate(), tokensOut, false, true);
+		return tokensOut;
+	}
+
+	/*
+	 * DE-TOKENIZATION
+	 */
+	@Benchmark
+	public String deTokenizeToString() {
+		return vocabulary.deTokenize(tokens.duplicate(), true, true);
+	}
+
+	@Benchmark
+	public ByteBuffer deTokenizeUtf8ToBuffer() {
+		utf8Out.clear();
+		vocabulary.deTokenize(tokens.duplicate(), utf8Out, true, true);
+		return utf8Out;
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private static ByteBuffer newByteBuffer(int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+	}
+
+	private static IntBuffer newIntBuffer(int capacity, boolean direct) {
+		if (direct)
+			return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+		else
+			return IntBuffer.allocate(capacity);
+	}
+}
@@ -1,4 +1,6 @@
 module org.argeo.jjml.llama {
+	requires static jdk.jfr;
+
 	exports org.argeo.jjml.ggml.params;
 	exports org.argeo.jjml.llama;
 	exports org.argeo.jjml.llama.params;
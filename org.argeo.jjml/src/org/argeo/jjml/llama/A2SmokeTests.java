@@ -8,6 +8,7 @@ import static org.argeo.jjml.llama.LlamaCppSamplers.newJavaSampler;
 import static org.argeo.jjml.llama.params.ContextParam.embeddings;
 import static org.argeo.jjml.llama.params.ContextParam.n_batch;
 import static org.argeo.jjml.llama.params.ContextParam.n_ctx;
+import static org.argeo.jjml.llama.params.ContextParam.n_seq_max;
 import static org.argeo.jjml.llama.params.ContextParam.n_ubatch;
 import static org.argeo.jjml.llama.util.StandardRole.SYSTEM;
 import static org.argeo.jjml.llama.util.StandardRole.USER;
@@ -16,6 +17,7 @@ import java.lang.System.Logger;
 import java.lang.System.Logger.Level;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -23,15 +25,25 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BooleanSupplier;
 import java.util.function.DoubleConsumer;
 
+import org.argeo.jjml.llama.params.EmbeddingNormalization;
 import org.argeo.jjml.llama.params.ModelParams;
+import org.argeo.jjml.llama.params.PoolingType;
+import org.argeo.jjml.llama.util.JsonSchemaGrammar;
+import org.argeo.jjml.llama.util.TinyModel;
 
 /**
  * Minimal set of non-destructive in-memory tests, in order to check that a
  * given deployment and/or model are working. Java assertions must be enabled.
+ * Without argument, a tiny random model is generated, so that the API can be
+ * exercised without download.
  */
 class A2SmokeTests {
 	private final static Logger logger = System.getLogger(A2SmokeTests.class.getName());
@@ -45,9 +57,10 @@ class A2SmokeTests {
 
 	public void main(List<String> args) throws Exception, AssertionError {
 		try {
-			if (args.isEmpty())
-				return;
-			Path modelPath = Paths.get(args.get(0));
+			assertMetrics();
+
+			// a tiny random model, if none is provided
+			Path modelPath = args.isEmpty() ? new TinyModel().writeTemporary() : Paths.get(args.get(0));
 
 			ModelParams modelParams = defaultModelParams();
 			Future<LlamaCppModel> loaded = LlamaCppModel.loadAsync(modelPath, modelParams,
@@ -73,9 +86,15 @@ class A2SmokeTests {
 
 				model.getVocabulary().setStringMode(false);
 				assertLoadUnloadDefaultContext(model);
+				assertVocabularyCache(model);
+				assertJsonSchemaGrammar(model);
 				assertEmbeddings(model);
+				assertEmbeddingsToBuffer(model);
+				assertEmbeddingBatcher(model);
+				assertEmbeddingsPacking(model);
 				assertBatch(model);
 				assertJavaSampler(model);
+				assertJavaBulkSamplers(model);
 				assertChat(model);
 			}
 		} catch (Exception | AssertionError e) {
@@ -86,6 +105,74 @@ class A2SmokeTests {
 		}
 	}
 
+	void assertMetrics() {
+		LlamaCppHistogram histogram = new LlamaCppHistogram();
+		assert histogram.getValueAtPercentile(50) == 0;
+		for (long value = 1; value <= 1000; value++)
+			histogram.record(value);
+		assert histogram.getCount() == 1000;
+		assert histogram.getTotal() == 500500;
+		assert histogram.getMin() == 1 && histogram.getMax() == 1000;
+		// small values are exact, larger ones within the relative precision
+		assert histogram.getValueAtPercentile(10) == 100;
+		assert testPercentile(histogram, 50, 500);
+		assert testPercentile(histogram, 99, 990);
+		assert histogram.getValueAtPercentile(100) == 1000;
+		assert histogram.copy().getValueAtPercentile(50) == histogram.getValueAtPercentile(50);
+		try {
+			histogram.record(-1);
+			assert false : "A negative value must be rejected";
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		LlamaCppMetrics metrics = new LlamaCppMetrics();
+		LlamaCppMetrics.Request request = metrics.newRequest();
+		request.started();
+		request.promptProcessed(10);
+		// two sequences, the second one generating only two tokens
+		long now = System.nanoTime();
+		long ms = 1_000_000;
+		request.generated(new long[] { now + ms, now + 3 * ms, now + 6 * ms }, 3, 2);
+		request.completed();
+		LlamaCppMetrics.Snapshot snapshot = metrics.snapshot();
+		assert snapshot.getRequestCount() == 1;
+		assert snapshot.getPromptTokenCount() == 10;
+		assert snapshot.getGeneratedTokenCount() == 5;
+		assert snapshot.getQueueWait().getCount() == 1;
+		assert snapshot.getTimeToFirstToken().getCount() == 1;
+		assert snapshot.getTimeToFirstToken().getMin() >= ms;
+		// two tokens after 2 ms, then one after 3 ms
+		assert snapshot.getInterTokenLatency().getCount() == 3;
+		assert testPercentile(snapshot.getInterTokenLatency(), 50, 2 * ms);
+		assert snapshot.getInterTokenLatency().getMax() == 3 * ms;
+
+		String prometheus = snapshot.toPrometheus();
+		logger.log(INFO, prometheus);
+		assert prometheus.contains("# TYPE jjml_llama_requests_total counter\njjml_llama_requests_total 1\n");
+		assert prometheus.contains("# TYPE jjml_llama_inter_token_latency_seconds summary\n");
+		assert prometheus.contains("jjml_llama_inter_token_latency_seconds_count 3\n");
+		for (String line : prometheus.split("\n")) {
+			if (line.startsWith("# HELP ") || line.startsWith("# TYPE "))
+				continue;
+			assert line.matches("jjml_llama_[a-z_]+(\\{quantile=\"0\\.[0-9]+\"\\})? \\S+") : line;
+			Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+		}
+		String p50 = "jjml_llama_inter_token_latency_seconds{quantile=\"0.5\"} ";
+		int index = prometheus.indexOf(p50) + p50.length();
+		double p50Seconds = Double.parseDouble(prometheus.substring(index, prometheus.indexOf('\n', index)));
+		assert Math.abs(p50Seconds - 0.002) < 0.002 / 64;
+		logger.log(INFO, "Metrics smoke tests PASSED");
+	}
+
+	/** Whether this percentile is within the precision of the histogram. */
+	boolean testPercentile(LlamaCppHistogram histogram, double percentile, long expected) {
+		long value = histogram.getValueAtPercentile(percentile);
+		assert value >= expected && value <= expected + expected / 64 : "p" + percentile + " is " + value
+				+ " instead of " + expected;
+		return true;
+	}
+
 	void assertVocabulary(LlamaCppVocabulary vocabulary) {
 		int size = 256;
 
@@ -124,6 +211,34 @@ class A2SmokeTests {
 		logger.log(INFO, "Vocabulary smoke tests PASSED");
 	}
 
+	void assertVocabularyCache(LlamaCppModel model) {
+		LlamaCppVocabulary vocabulary = model.getVocabulary();
+		vocabulary.setTokenizationCache(1024 * 1024);
+		try ( //
+				LlamaCppContext context = new LlamaCppContext(model, defaultContextParams() //
+						.with(n_ctx, 6144) //
+						.with(n_batch, 64)); //
+				LlamaCppSamplerChain chain = LlamaCppSamplers.newDefaultSampler(model, false); //
+		) {
+			assertVocabulary(vocabulary);
+
+			// buffers returned by tokenize() must be usable as before
+			LlamaCppBatchProcessor processor = new LlamaCppBatchProcessor(context, chain);
+			for (int i = 0; i < 2; i++) {
+				String str = processor.processBatch("Write HELLO\n", new String[] { "HELLO" }, "\n");
+				logger.log(INFO, "<=\n" + str);
+			}
+			LlamaCppTokenizationCache cache = vocabulary.getTokenizationCache();
+			logger.log(INFO, cache);
+			assert cache.getHitCount() > 0;
+			assert vocabulary.tokenizeReadOnly("Hello World!", false, true).isReadOnly();
+			assert !vocabulary.tokenize("Hello World!").isReadOnly();
+		} finally {
+			vocabulary.setTokenizationCache(0);
+		}
+		logger.log(INFO, "Vocabulary cache smoke tests PASSED");
+	}
+
 	boolean testTokenizeDetokenize(LlamaCppVocabulary vocabulary, ByteBuffer in, IntBuffer buf, String msg) {
 		if (in != null)
 			in.clear();
@@ -160,6 +275,92 @@ class A2SmokeTests {
 		logger.log(INFO, "Load default context smoke tests PASSED");
 	}
 
+	void assertJsonSchemaGrammar(LlamaCppModel model) {
+		String stringRules = "" //
+				+ "string ::= \"\\\"\" char* \"\\\"\"\n" //
+				+ "char ::= [^\"\\\\\\x7F\\x00-\\x1F] | \"\\\\\" ([\"\\\\/bfnrt] | \"u\" [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F])\n";
+		String integerRules = "" //
+				+ "integer ::= \"-\"? integral-part\n" //
+				+ "integral-part ::= [0] | [1-9] [0-9]*\n";
+
+		// required and optional properties
+		assert testJsonSchemaGrammar(model, "{\"type\":\"object\",\"properties\":{" //
+				+ "\"id\":{\"type\":\"integer\"}," //
+				+ "\"name\":{\"type\":\"string\"}," //
+				+ "\"tags\":{\"type\":\"array\",\"items\":{\"type\":\"string\"}}," //
+				+ "\"done\":{\"type\":\"boolean\"}" //
+				+ "},\"required\":[\"id\"]}", //
+				"root ::= \"{\" root-id-kv ( \",\" ( root-name-kv root-name-kv-rest | root-tags-kv root-tags-kv-rest | root-done-kv ) )? \"}\"\n" //
+						+ integerRules //
+						+ "root-id-kv ::= \"\\\"id\\\":\" integer\n" //
+						+ stringRules //
+						+ "root-name-kv ::= \"\\\"name\\\":\" string\n" //
+						+ "root-tags ::= \"[\" ( string ( \",\" string )* )? \"]\"\n" //
+						+ "root-tags-kv ::= \"\\\"tags\\\":\" root-tags\n" //
+						+ "boolean ::= \"true\" | \"false\"\n" //
+						+ "root-done-kv ::= \"\\\"done\\\":\" boolean\n" //
+						+ "root-tags-kv-rest ::= ( \",\" root-done-kv )?\n" //
+						+ "root-name-kv-rest ::= ( \",\" root-tags-kv )? root-tags-kv-rest\n");
+		// recursive definition
+		assert testJsonSchemaGrammar(model, "{\"$ref\":\"#/$defs/node\",\"$defs\":{\"node\":{" //
+				+ "\"type\":\"object\",\"properties\":{" //
+				+ "\"value\":{\"type\":\"integer\"}," //
+				+ "\"next\":{\"anyOf\":[{\"$ref\":\"#/$defs/node\"},{\"type\":\"null\"}]}" //
+				+ "},\"required\":[\"value\",\"next\"]}}}", //
+				"root ::= node\n" //
+						+ "node ::= \"{\" node-def-value-kv \",\" node-def-next-kv \"}\"\n" //
+						+ integerRules //
+						+ "node-def-value-kv ::= \"\\\"value\\\":\" integer\n" //
+						+ "null ::= \"null\"\n" //
+						+ "node-def-next ::= node | null\n" //
+						+ "node-def-next-kv ::= \"\\\"next\\\":\" node-def-next\n");
+		// type union
+		assert testJsonSchemaGrammar(model, "{\"type\":[\"integer\",\"null\"]}", //
+				"root ::= integer | null\n" //
+						+ integerRules //
+						+ "null ::= \"null\"\n");
+		// bounded array of bounded strings
+		assert testJsonSchemaGrammar(model, "{\"type\":\"array\"," //
+				+ "\"items\":{\"type\":\"string\",\"minLength\":1,\"maxLength\":3}," //
+				+ "\"minItems\":1,\"maxItems\":2}", //
+				"root ::= \"[\" root-item ( \",\" root-item )? \"]\"\n" //
+						+ stringRules.substring(stringRules.indexOf("char ::=")) //
+						+ "root-item ::= \"\\\"\" char{1,3} \"\\\"\"\n");
+		// merged objects
+		assert testJsonSchemaGrammar(model, "{\"allOf\":[" //
+				+ "{\"type\":\"object\",\"properties\":{\"x\":{\"type\":\"number\"}},\"required\":[\"x\"]}," //
+				+ "{\"properties\":{\"y\":{\"enum\":[\"a\",1]}}}" //
+				+ "]}", //
+				"root ::= \"{\" root-x-kv ( \",\" ( root-y-kv ) )? \"}\"\n" //
+						+ "number ::= \"-\"? integral-part (\".\" [0-9]+)? ([eE] [-+]? [0-9]+)?\n" //
+						+ "integral-part ::= [0] | [1-9] [0-9]*\n" //
+						+ "root-x-kv ::= \"\\\"x\\\":\" number\n" //
+						+ "root-y ::= \"\\\"a\\\"\" | \"1\"\n" //
+						+ "root-y-kv ::= \"\\\"y\\\":\" root-y\n");
+		// invalid keyword values
+		for (String invalid : new String[] { "1.5", "\"3\"", "-1", "10000000000" }) {
+			try {
+				JsonSchemaGrammar.toGrammar("{\"type\":\"string\",\"maxLength\":" + invalid + "}");
+				assert false : "maxLength " + invalid + " should be rejected";
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		logger.log(INFO, "JSON Schema grammar smoke tests PASSED");
+	}
+
+	boolean testJsonSchemaGrammar(LlamaCppModel model, String schema, String expected) {
+		logger.log(INFO, schema);
+		String grammar = JsonSchemaGrammar.toGrammar(schema);
+		logger.log(INFO, "\n" + grammar);
+		assert grammar.equals(expected) : "Expected:\n" + expected;
+		// the grammar must be accepted by llama.cpp
+		try (LlamaCppNativeSampler sampler = JsonSchemaGrammar.newSampler(model, schema)) {
+			assert sampler.getAsLong() != 0;
+		}
+		return true;
+	}
+
 	void assertEmbeddings(LlamaCppModel model) {
 		int batchSize = 512;
 		try (LlamaCppContext context = new LlamaCppContext(model, LlamaCppContext.defaultContextParams() //
@@ -186,6 +387,172 @@ class A2SmokeTests {
 		logger.log(INFO, "Embeddings smoke tests PASSED");
 	}
 
+	void assertEmbeddingsToBuffer(LlamaCppModel model) {
+		int batchSize = 512;
+		try (LlamaCppContext context = new LlamaCppContext(model, LlamaCppContext.defaultContextParams() //
+				.with(embeddings, true) //
+				.with(n_ctx, 6144) //
+				.with(n_batch, batchSize) //
+				.with(n_ubatch, batchSize) // must be same for embeddings
+		);) {
+			IntBuffer[] inputs = model.getVocabulary().tokenizeMultiple(List.of( //
+					"Hello world!", //
+					"Good night and good luck."));
+			List<PoolingType> poolingTypes = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(context.getPoolingType())
+					? List.of(PoolingType.LLAMA_POOLING_TYPE_NONE, PoolingType.LLAMA_POOLING_TYPE_MEAN)
+					: List.of(context.getPoolingType());
+			for (PoolingType poolingType : poolingTypes) {
+				LlamaCppEmbeddingProcessor embeddingProcessor = new LlamaCppEmbeddingProcessor(context, poolingType);
+				assert testEmbeddingsToBuffer(embeddingProcessor, inputs, EmbeddingNormalization.EUCLIDEAN);
+				assert testEmbeddingsToBuffer(embeddingProcessor, inputs, EmbeddingNormalization.NONE);
+			}
+		}
+		logger.log(INFO, "Embeddings to buffer smoke tests PASSED");
+	}
+
+	void assertEmbeddingBatcher(LlamaCppModel model) throws Exception {
+		int batchSize = 512;
+		try (LlamaCppContext context = new LlamaCppContext(model, LlamaCppContext.defaultContextParams() //
+				.with(embeddings, true) //
+				.with(n_ctx, 6144) //
+				.with(n_batch, batchSize) //
+				.with(n_ubatch, batchSize) // must be same for embeddings
+				.with(n_seq_max, 4) //
+		);) {
+			LlamaCppEmbeddingProcessor embeddingProcessor = new LlamaCppEmbeddingProcessor(context);
+			List<String> prompts = new ArrayList<>();
+			for (int i = 0; i < 16; i++)
+				prompts.add("Request " + i + (i % 3 == 0 ? ", which is a bit longer than the others." : ""));
+
+			// computed before, since the context cannot be used concurrently
+			List<float[][]> expected = new ArrayList<>();
+			for (String prompt : prompts)
+				expected.add(embeddingProcessor.processEmbeddings(List.of(prompt), EmbeddingNormalization.EUCLIDEAN));
+
+			List<CompletableFuture<float[][]>> futures = new ArrayList<>();
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try (LlamaCppEmbeddingBatcher batcher = new LlamaCppEmbeddingBatcher(embeddingProcessor,
+					EmbeddingNormalization.EUCLIDEAN, 50, TimeUnit.MILLISECONDS)) {
+				for (String prompt : prompts)
+					futures.add(CompletableFuture.supplyAsync(() -> batcher.submit(prompt), executor)
+							.thenCompose((f) -> f));
+				for (int i = 0; i < prompts.size(); i++)
+					assert testEmbeddings(expected.get(i), futures.get(i).get(1, TimeUnit.MINUTES), 1e-4f) //
+							: "Batched embeddings of '" + prompts.get(i) + "' differ";
+			} finally {
+				executor.shutdown();
+			}
+		}
+		logger.log(INFO, "Embedding batcher smoke tests PASSED");
+	}
+
+	void assertEmbeddingsPacking(LlamaCppModel model) {
+		int batchSize = 32;
+		try (LlamaCppContext context = new LlamaCppContext(model, LlamaCppContext.defaultContextParams() //
+				.with(embeddings, true) //
+				.with(n_ctx, 6144) //
+				.with(n_batch, batchSize) //
+				.with(n_ubatch, batchSize) // must be same for embeddings
+				.with(n_seq_max, 4) //
+		);) {
+			assert context.getMaxSequenceCount() > 1;
+			IntBuffer[] inputs = model.getVocabulary().tokenizeMultiple(List.of( //
+					"Hello world!", //
+					"Good night and good luck. ".repeat(8), // split in windows
+					"Good night.", //
+					"Bonjour le monde !"));
+			assert inputs[1].remaining() > batchSize : "Long input has only " + inputs[1].remaining() + " tokens";
+			int n_embd = model.getEmbeddingSize();
+
+			List<PoolingType> poolingTypes = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(context.getPoolingType())
+					? List.of(PoolingType.LLAMA_POOLING_TYPE_NONE, PoolingType.LLAMA_POOLING_TYPE_MEAN)
+					: List.of(context.getPoolingType());
+			for (PoolingType poolingType : poolingTypes) {
+				LlamaCppEmbeddingProcessor embeddingProcessor = new LlamaCppEmbeddingProcessor(context, poolingType);
+				boolean perToken = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(poolingType);
+
+				// packed together, into a buffer
+				FloatBuffer buf = ByteBuffer.allocateDirect(remaining(inputs) * n_embd * Float.BYTES)
+						.order(ByteOrder.nativeOrder()).asFloatBuffer();
+				int[] offsets = new int[inputs.length + 1];
+				embeddingProcessor.processEmbeddings(inputs, EmbeddingNormalization.EUCLIDEAN, buf, offsets);
+
+				for (int i = 0; i < inputs.length; i++) {
+					// each input alone
+					float[][] expected = embeddingProcessor.processEmbeddings(new IntBuffer[] { inputs[i] },
+							EmbeddingNormalization.EUCLIDEAN);
+					assert expected.length == (perToken ? inputs[i].remaining() : 1);
+					assert offsets[i + 1] - offsets[i] == expected.length * n_embd;
+					FloatBuffer embeddings = buf.duplicate();
+					embeddings.position(offsets[i]);
+					float[][] actual = new float[expected.length][n_embd];
+					for (int j = 0; j < expected.length; j++)
+						embeddings.get(actual[j]);
+					assert testEmbeddings(expected, actual, 1e-4f)
+							: "Packed embeddings of input " + i + " differ with pooling " + poolingType;
+				}
+			}
+		}
+		logger.log(INFO, "Embeddings packing smoke tests PASSED");
+	}
+
+	private static int remaining(IntBuffer[] buffers) {
+		int res = 0;
+		for (IntBuffer buffer : buffers)
+			res += buffer.remaining();
+		return res;
+	}
+
+	/** Whether these embeddings are the same, within this tolerance. */
+	boolean testEmbeddings(float[][] expected, float[][] actual, float tolerance) {
+		if (expected.length != actual.length)
+			return false;
+		for (int j = 0; j < expected.length; j++) {
+			if (expected[j].length != actual[j].length)
+				return false;
+			for (int k = 0; k < expected[j].length; k++)
+				if (Math.abs(actual[j][k] - expected[j][k]) > tolerance * Math.max(1f, Math.abs(expected[j][k])))
+					return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the embeddings written to a direct buffer, at a non-zero position,
+	 * are the same as the ones returned as arrays, and are normalized.
+	 */
+	boolean testEmbeddingsToBuffer(LlamaCppEmbeddingProcessor embeddingProcessor, IntBuffer[] inputs,
+			EmbeddingNormalization normalization) {
+		int n_embd = embeddingProcessor.getContext().getModel().getEmbeddingSize();
+		boolean perToken = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(embeddingProcessor.getPoolingType());
+		float[][] expected = embeddingProcessor.processEmbeddings(inputs, normalization);
+
+		int start = 3;
+		FloatBuffer buf = ByteBuffer.allocateDirect((start + expected.length * n_embd) * Float.BYTES)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		buf.position(start);
+		int[] offsets = new int[inputs.length + 1];
+		int count = embeddingProcessor.processEmbeddings(inputs, normalization, buf, offsets);
+		assert count == expected.length;
+		assert buf.position() == start + count * n_embd;
+		assert offsets[0] == 0 && offsets[inputs.length] == count * n_embd;
+		for (int i = 0; i < inputs.length; i++)
+			assert offsets[i + 1] - offsets[i] == (perToken ? inputs[i].remaining() : 1) * n_embd;
+
+		for (int j = 0; j < count; j++) {
+			double norm = 0;
+			for (int k = 0; k < n_embd; k++) {
+				float value = buf.get(start + j * n_embd + k);
+				assert Math.abs(value - expected[j][k]) <= 1e-5f * Math.max(1f, Math.abs(expected[j][k])) //
+						: "Embedding " + j + " differs at " + k + ": " + value + " instead of " + expected[j][k];
+				norm += value * value;
+			}
+			if (EmbeddingNormalization.EUCLIDEAN.equals(normalization))
+				assert Math.abs(Math.sqrt(norm) - 1) < 1e-4 : "L2 norm of embedding " + j + " is " + Math.sqrt(norm);
+		}
+		return true;
+	}
+
 	void assertBatch(LlamaCppModel model) {
 		Integer[] sequenceIds = { 1, 10, 100 };
 		try ( //
@@ -247,6 +614,65 @@ class A2SmokeTests {
 		logger.log(INFO, "Java sampler smoke tests PASSED");
 	}
 
+	void assertJavaBulkSamplers(LlamaCppModel model) {
+		String prompt = "Write HELLO\n"//
+				+ "HELLO\n"//
+				+ "Write WORLD\n"//
+				+ "WORLD\n"//
+				+ "Write TEST\n" //
+		;
+		assert testSamplers(model, prompt, //
+				new LlamaCppSamplerChain(LlamaCppSamplers.newSamplerGreedy()), //
+				new LlamaCppSamplerChain(newJavaSampler(new LlamaCppJavaBulkSampler.Greedy())));
+		// same filtering then same seeded distribution, so that the whole
+		// candidates (and not only the best one) have to be the same
+		int seed = 42;
+		assert testSamplers(model, prompt, //
+				new LlamaCppSamplerChain( //
+						LlamaCppSamplers.newSamplerTopK(40), //
+						LlamaCppSamplers.newSamplerMinP(0.05f, 1), //
+						LlamaCppSamplers.newSamplerTemp(0.5f), // exact inverse
+						LlamaCppSamplers.newSamplerDist(seed)), //
+				new LlamaCppSamplerChain( //
+						newJavaSampler(new LlamaCppJavaBulkSampler.TopK(40)), //
+						newJavaSampler(new LlamaCppJavaBulkSampler.MinP(0.05f, 1)), //
+						newJavaSampler(new LlamaCppJavaBulkSampler.Temperature(0.5f)), //
+						LlamaCppSamplers.newSamplerDist(seed)));
+		// unsorted min-p
+		assert testSamplers(model, prompt, //
+				new LlamaCppSamplerChain( //
+						LlamaCppSamplers.newSamplerMinP(0.1f, 1), //
+						LlamaCppSamplers.newSamplerDist(seed)), //
+				new LlamaCppSamplerChain( //
+						newJavaSampler(new LlamaCppJavaBulkSampler.MinP(0.1f, 1)), //
+						LlamaCppSamplers.newSamplerDist(seed)));
+		logger.log(INFO, "Java bulk samplers smoke tests PASSED");
+	}
+
+	/** Whether both sampler chains generate the same output. */
+	boolean testSamplers(LlamaCppModel model, String prompt, LlamaCppSamplerChain nativeChain,
+			LlamaCppSamplerChain javaChain) {
+		String expected = generate(model, prompt, nativeChain);
+		String actual = generate(model, prompt, javaChain);
+		if (!expected.equals(actual)) {
+			logger.log(Level.ERROR, "Expected\n" + expected + "\nbut got\n" + actual);
+			return false;
+		}
+		return true;
+	}
+
+	private String generate(LlamaCppModel model, String prompt, LlamaCppSamplerChain chain) {
+		try ( //
+				LlamaCppContext context = new LlamaCppContext(model, defaultContextParams() //
+						.with(n_ctx, 2048) //
+						.with(n_batch, 64)); //
+				chain; //
+				LlamaCppBatchProcessor processor = new LlamaCppBatchProcessor(context, chain); //
+		) {
+			return processor.processBatch(prompt);
+		}
+	}
+
 	void assertChat(LlamaCppModel model) {
 		try (//
 				LlamaCppContext context = new LlamaCppContext(model, defaultContextParams() //
@@ -20,12 +20,27 @@ import java.util.concurrent.CompletionStage;
  * 
  * @see llama.h - llama_batch
  */
-public class LlamaCppBatchProcessor {
+public class LlamaCppBatchProcessor implements AutoCloseable {
 	private final LlamaCppContext context;
 	private final LlamaCppVocabulary vocabulary;
 
 	private LlamaCppSamplerChain samplerChain;
 	private LlamaCppNativeSampler validatingSampler;
+	/** Not null if sampling is done in Java for all sequences at once. */
+	private final LlamaCppBatchSampling batchSampling;
+
+	/** Per-sequence clones of the samplers, if sampling in parallel. */
+	private final LlamaCppSamplerChain[] sequenceSamplers;
+	private final LlamaCppNativeSampler[] sequenceValidatingSamplers;
+	private final long[] sequenceSamplerPointers;
+	private final long[] sequenceValidatingSamplerPointers;
+
+	/** Reused native candidates, one per sequence if sampling in parallel. */
+	private final ByteBuffer[] candidatesBuffers;
+	private final int candidatesShortlist;
+
+	/** Size of a native llama_token_data (id, logit, p). */
+	private final static int LLAMA_TOKEN_DATA_BYTES = Integer.BYTES + 2 * Float.BYTES;
 
 	/** Marker that end-of-generation has been reached for this sequence. */
 	private final int NO_OUTPUT_ID;
@@ -38,14 +53,54 @@ public class LlamaCppBatchProcessor {
 	private final /* const */ int[] sequenceIds;
 	private final int[] outputIds;
 
+	private final LlamaCppMetrics metrics = new LlamaCppMetrics();
+	/** Held during a whole request, so that requests wait for each other. */
+	private final Object requestLock = new Object();
+
 	public LlamaCppBatchProcessor(LlamaCppContext context, LlamaCppSamplerChain samplerChain) {
 		this(context, samplerChain, null, Collections.singleton(0));
 	}
 
 	public LlamaCppBatchProcessor(LlamaCppContext context, LlamaCppSamplerChain samplerChain,
 			LlamaCppNativeSampler validatingSampler, Set<Integer> sequenceIds) {
+		this(context, samplerChain, validatingSampler, sequenceIds, false);
+	}
+
+	/**
+	 * A processor which can sample the sequences in parallel. In that case, each
+	 * sequence gets its own clone of the sampler chain (and of the validating
+	 * sampler), so that their states are independent, and the sequences are
+	 * sampled by a native worker pool sized from the threads of the context.
+	 * Since a clone would draw the same random numbers as the chain, the clones
+	 * are reseeded: with a random seed if the chain has no fixed seed, otherwise
+	 * with the seed of the chain plus the index of the sequence, so that
+	 * parallel sampling is reproducible but the sequences are not identical.
+	 * 
+	 * @throws IllegalArgumentException if parallel sampling is requested but the
+	 *                                  samplers cannot be cloned, typically
+	 *                                  because they are implemented in Java.
+	 */
+	public LlamaCppBatchProcessor(LlamaCppContext context, LlamaCppSamplerChain samplerChain,
+			LlamaCppNativeSampler validatingSampler, Set<Integer> sequenceIds, boolean parallelSampling)
+			throws IllegalArgumentException {
+		this(context, Objects.requireNonNull(samplerChain), validatingSampler, null, sequenceIds,
+				parallelSampling);
+	}
+
+	/**
+	 * A processor whose sampling is done by a single Java upcall for all the
+	 * active sequences after each decode. Grammars are not supported in this
+	 * mode.
+	 */
+	public LlamaCppBatchProcessor(LlamaCppContext context, LlamaCppJavaBatchSampler batchSampler,
+			Set<Integer> sequenceIds) {
+		this(context, null, null, Objects.requireNonNull(batchSampler), sequenceIds, false);
+	}
+
+	private LlamaCppBatchProcessor(LlamaCppContext context, LlamaCppSamplerChain samplerChain,
+			LlamaCppNativeSampler validatingSampler, LlamaCppJavaBatchSampler batchSampler,
+			Set<Integer> sequenceIds, boolean parallelSampling) {
 		Objects.requireNonNull(context);
-		Objects.requireNonNull(samplerChain);
 		Objects.requireNonNull(sequenceIds);
 
 		this.context = context;
@@ -67,24 +122,77 @@ public class LlamaCppBatchProcessor {
 			this.sequenceIds[i] = lst.get(i);
 		this.outputIds = new int[parallelCount];
 		Arrays.fill(outputIds, NO_OUTPUT_ID);
+
+		this.batchSampling = batchSampler != null
+				? new LlamaCppBatchSampling(batchSampler, parallelCount, context.getModel().getVocabularySize())
+				: null;
+
+		if (parallelSampling && parallelCount > 1) {
+			if (!samplerChain.isClonable() || (validatingSampler != null && !validatingSampler.isClonable()))
+				throw new IllegalArgumentException("Samplers cannot be cloned, parallel sampling is not possible");
+			this.sequenceSamplers = new LlamaCppSamplerChain[parallelCount];
+			this.sequenceSamplerPointers = new long[parallelCount];
+			this.sequenceValidatingSamplers = validatingSampler != null ? new LlamaCppNativeSampler[parallelCount]
+					: null;
+			this.sequenceValidatingSamplerPointers = validatingSampler != null ? new long[parallelCount] : null;
+			try {
+				for (int i = 0; i < parallelCount; i++) {
+					sequenceSamplers[i] = (LlamaCppSamplerChain) samplerChain.clone();
+					if (samplerChain.getSeed() == LlamaCppSamplers.LLAMA_DEFAULT_SEED)
+						sequenceSamplers[i].reset(); // draws a new random seed
+					else
+						sequenceSamplers[i].reseed(samplerChain.getSeed() + i);
+					sequenceSamplerPointers[i] = sequenceSamplers[i].getAsLong();
+					if (validatingSampler != null) {
+						sequenceValidatingSamplers[i] = (LlamaCppNativeSampler) validatingSampler.clone();
+						sequenceValidatingSamplerPointers[i] = sequenceValidatingSamplers[i].getAsLong();
+					}
+				}
+			} catch (CloneNotSupportedException e) {
+				throw new IllegalArgumentException("Cannot clone samplers", e);
+			}
+		} else {
+			this.sequenceSamplers = null;
+			this.sequenceSamplerPointers = null;
+			this.sequenceValidatingSamplers = null;
+			this.sequenceValidatingSamplerPointers = null;
+		}
+
+		if (samplerChain != null) {
+			int buffersCount = sequenceSamplers != null ? parallelCount : 1;
+			int vocabularySize = context.getModel().getVocabularySize();
+			this.candidatesBuffers = new ByteBuffer[buffersCount];
+			for (int i = 0; i < buffersCount; i++)
+				candidatesBuffers[i] = ByteBuffer.allocateDirect(vocabularySize * LLAMA_TOKEN_DATA_BYTES);
+			this.candidatesShortlist = samplerChain.getCandidatesShortlist();
+		} else {
+			this.candidatesBuffers = null;
+			this.candidatesShortlist = 0;
+		}
 	}
 
 	/*
 	 * NATIVE METHODS
 	 */
-	private static native int doWrite(long contextPointer, long samplerChainPointer, int contextPosition,
-			IntBuffer[] input, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds, boolean lastLogit);
+	private static native int doWrite(long contextPointer, long samplerChainPointer, long[] sequenceSamplerPointers,
+			int contextPosition, IntBuffer[] input, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds,
+			boolean lastLogit);
 
-	private static native int doWriteArrays(long contextPointer, long samplerChainPointer, int contextPosition,
-			int[][] input, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds, boolean lastLogit);
+	private static native int doWriteArrays(long contextPointer, long samplerChainPointer,
+			long[] sequenceSamplerPointers, int contextPosition, int[][] input, int[] offsets, int[] lengths,
+			int[] sequenceIds, int[] outputIds, boolean lastLogit);
 
 	private static native int doRead(long contextPointer, long samplerChainPointer, long grammarSamplerPointer,
-			int contextPosition, IntBuffer[] output, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds,
-			CompletionHandler<Integer, Integer> completionHandler);
+			long[] sequenceSamplerPointers, long[] sequenceGrammarSamplerPointers, ByteBuffer[] candidatesBuffers,
+			int candidatesShortlist, int contextPosition, IntBuffer[] output, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds,
+			LlamaCppBatchSampling batchSampling, CompletionHandler<Integer, Integer> completionHandler,
+			long[] tokenTimes);
 
 	private static native int doReadToArrays(long contextPointer, long samplerChainPointer, long grammarSamplerPointer,
-			int contextPosition, int[][] output, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds,
-			CompletionHandler<Integer, Integer> completionHandler);
+			long[] sequenceSamplerPointers, long[] sequenceGrammarSamplerPointers, ByteBuffer[] candidatesBuffers,
+			int candidatesShortlist, int contextPosition, int[][] output, int[] offsets, int[] lengths, int[] sequenceIds, int[] outputIds,
+			LlamaCppBatchSampling batchSampling, CompletionHandler<Integer, Integer> completionHandler,
+			long[] tokenTimes);
 
 	/*
 	 * LOW-LEVEL ACCESS
@@ -133,24 +241,45 @@ public class LlamaCppBatchProcessor {
 		if (!(inputs.length == 1 || inputs.length == parallelCount))
 			throw new IllegalArgumentException("There must be"
 					+ (parallelCount > 1 ? " either one or " + parallelCount + " inputs" : " only one input"));
+		LlamaCppEvents.Decode event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Decode() : null;
+		if (event != null)
+			event.begin();
 		int[] offsets = new int[inputs.length];
 		int[] lengths = new int[inputs.length];
 		int[][] arrays = new int[inputs.length][];
 		boolean allDirect = areAllBuffersDirect(inputs, offsets, lengths);
+		int tokenCount = event != null && event.isEnabled() ? remaining(inputs) : 0;
 
 		if (allDirect) {
-			contextPosition = doWrite(context.getAsLong(), samplerChain.getAsLong(), contextPosition, inputs, offsets,
-					lengths, sequenceIds, outputIds, lastLogits);
+			contextPosition = doWrite(context.getAsLong(), samplerChainPointer(), sequenceSamplerPointers,
+					contextPosition, inputs, offsets, lengths, sequenceIds, outputIds, lastLogits);
 		} else {
 			buffersToArrays(inputs, offsets, lengths, arrays, true);
-			contextPosition = doWriteArrays(context.getAsLong(), samplerChain.getAsLong(), contextPosition, arrays,
-					offsets, lengths, sequenceIds, outputIds, lastLogits);
+			contextPosition = doWriteArrays(context.getAsLong(), samplerChainPointer(), sequenceSamplerPointers,
+					contextPosition, arrays, offsets, lengths, sequenceIds, outputIds, lastLogits);
+		}
+		if (event != null && event.shouldCommit()) {
+			event.write = true;
+			event.sequenceCount = parallelCount;
+			event.tokenCount = tokenCount;
+			event.batchSize = context.getBatchSize();
+			event.contextPosition = contextPosition;
+			event.commit();
 		}
 
 		if (lastLogits && contextPosition > 0) {// end of user input
-			samplerChain.reset();
+			if (samplerChain != null)
+				samplerChain.reset();
 			if (validatingSampler != null)
 				validatingSampler.reset();
+			if (batchSampling != null)
+				batchSampling.reset();
+			if (sequenceSamplers != null)
+				for (LlamaCppNativeSampler sampler : sequenceSamplers)
+					sampler.reset();
+			if (sequenceValidatingSamplers != null)
+				for (LlamaCppNativeSampler sampler : sequenceValidatingSamplers)
+					sampler.reset();
 		}
 	}
 
@@ -161,10 +290,30 @@ public class LlamaCppBatchProcessor {
 	 * @throws UnsupportedOperationException If there is more than one sequence.
 	 */
 	protected CompletableFuture<Boolean> readBatchAsync(IntBuffer output) {
+		return readBatchAsync(output, null);
+	}
+
+	/**
+	 * Convenience method when there is only one sequence, calling
+	 * {@link #readBatchAsync(IntBuffer[], CompletableFuture[], long[])}.
+	 * 
+	 * @throws UnsupportedOperationException If there is more than one sequence.
+	 */
+	protected CompletableFuture<Boolean> readBatchAsync(IntBuffer output, long[] tokenTimes) {
 		if (getParallelCount() != 1)
 			throw new UnsupportedOperationException(
 					"There are " + getParallelCount() + " sequences, while only one is allowed");
-		return readBatchAsync(new IntBuffer[] { output }, null);
+		return readBatchAsync(new IntBuffer[] { output }, null, tokenTimes);
+	}
+
+	/**
+	 * Asynchronously read generated tokens from the context, calling
+	 * {@link #readBatchAsync(IntBuffer[], CompletableFuture[], long[])} without
+	 * token times.
+	 */
+	protected CompletableFuture<Boolean> readBatchAsync(IntBuffer[] outputs,
+			CompletableFuture<Boolean>[] generationCompleted) throws IllegalArgumentException {
+		return readBatchAsync(outputs, generationCompleted, null);
 	}
 
 	/**
@@ -179,6 +328,13 @@ public class LlamaCppBatchProcessor {
 	 *                            that generation of this sequence was completed
 	 *                            properly, that is an end-og-generation token was
 	 *                            sampled. Can be <code>null</code>.
+	 * @param tokenTimes          if not <code>null</code>, filled with the
+	 *                            {@link System#nanoTime()} at which the tokens at
+	 *                            each index of the outputs (relative to their
+	 *                            positions before the read) have been generated,
+	 *                            the tokens of all sequences being generated
+	 *                            together at each decoding step. Indices beyond
+	 *                            its length are not timed.
 	 * @return A {@link CompletableFuture} which will complete when all sequences
 	 *         have completed the reading of this batch. If the completion value is
 	 *         <code>true</code>, it means that all sequences have completed
@@ -187,7 +343,7 @@ public class LlamaCppBatchProcessor {
 	 *                                  {@link #getParallelCount()}.
 	 */
 	protected CompletableFuture<Boolean> readBatchAsync(IntBuffer[] outputs,
-			CompletableFuture<Boolean>[] generationCompleted) throws IllegalArgumentException {
+			CompletableFuture<Boolean>[] generationCompleted, long[] tokenTimes) throws IllegalArgumentException {
 		if (outputs.length != parallelCount)
 			throw new IllegalArgumentException("There must be " + parallelCount + " outputs");
 		if (generationCompleted != null && generationCompleted.length != parallelCount)
@@ -227,15 +383,35 @@ public class LlamaCppBatchProcessor {
 			// We synchronize in order to make sure there won't be other write or read
 			// updating the state (contextPosition, output IDs etc.)
 			synchronized (LlamaCppBatchProcessor.this) {
+				LlamaCppEvents.Decode event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Decode() : null;
+				if (event != null)
+					event.begin();
+				int remainingBefore = event != null && event.isEnabled() ? remaining(outputs) : 0;
+				long readStart = System.nanoTime();
 				if (allDirect) {
-					contextPosition = doRead(context.getAsLong(), samplerChain.getAsLong(),
-							validatingSampler != null ? validatingSampler.getAsLong() : 0, contextPosition, outputs,
-							offsets, lengths, sequenceIds, outputIds, completionHandler);
+					contextPosition = doRead(context.getAsLong(), samplerChainPointer(),
+							validatingSampler != null ? validatingSampler.getAsLong() : 0, sequenceSamplerPointers,
+							sequenceValidatingSamplerPointers, candidatesBuffers, candidatesShortlist, contextPosition,
+							outputs, offsets, lengths, sequenceIds, outputIds, batchSampling, completionHandler,
+							tokenTimes);
 				} else {
 					buffersToArrays(outputs, offsets, lengths, arrays, false);
-					contextPosition = doReadToArrays(context.getAsLong(), samplerChain.getAsLong(),
-							validatingSampler != null ? validatingSampler.getAsLong() : 0, contextPosition, arrays,
-							offsets, lengths, sequenceIds, outputIds, completionHandler);
+					contextPosition = doReadToArrays(context.getAsLong(), samplerChainPointer(),
+							validatingSampler != null ? validatingSampler.getAsLong() : 0, sequenceSamplerPointers,
+							sequenceValidatingSamplerPointers, candidatesBuffers, candidatesShortlist, contextPosition,
+							arrays, offsets, lengths, sequenceIds, outputIds, batchSampling, completionHandler,
+							tokenTimes);
+				}
+				if (tokenTimes != null) // native times are relative to the read
+					for (int i = 0; i < tokenTimes.length; i++)
+						tokenTimes[i] += readStart;
+				if (event != null && event.shouldCommit()) {
+					event.write = false;
+					event.sequenceCount = parallelCount;
+					event.tokenCount = remainingBefore - remaining(outputs);
+					event.batchSize = context.getBatchSize();
+					event.contextPosition = contextPosition;
+					event.commit();
 				}
 
 				// check whether generation is completed for all sequences
@@ -276,6 +452,15 @@ public class LlamaCppBatchProcessor {
 		return allDirect;
 	}
 
+	/** The sum of the remaining tokens of these buffers, which can be null. */
+	private static int remaining(IntBuffer[] buffers) {
+		int res = 0;
+		for (IntBuffer buf : buffers)
+			if (buf != null)
+				res += buf.remaining();
+		return res;
+	}
+
 	/**
 	 * Common routine to fill arrays, to be used when not all buffers are direct.
 	 */
@@ -312,7 +497,23 @@ public class LlamaCppBatchProcessor {
 		return processBatch(prompt, null, null);
 	}
 
+	/**
+	 * Processes a prompt, optionally followed by different parameters for each
+	 * sequence and by a common post prompt, and generates until all sequences
+	 * are completed. Concurrent calls are processed one after the other, the time
+	 * waited being recorded as queue wait by the metrics.
+	 */
 	public String processBatch(String prompt, String[] parameters, String postPrompt) {
+		LlamaCppMetrics.Request request = metrics.newRequest();
+		synchronized (requestLock) {
+			request.started();
+			return processBatch(request, prompt, parameters, postPrompt);
+		}
+	}
+
+	private String processBatch(LlamaCppMetrics.Request request, String prompt, String[] parameters,
+			String postPrompt) {
+		int promptStart = contextPosition;
 		IntBuffer promptTokens = vocabulary.tokenize(prompt);
 		assert promptTokens.position() == 0;
 		int tokenCount = promptTokens.limit();
@@ -411,10 +612,14 @@ public class LlamaCppBatchProcessor {
 			writeBatch(new IntBuffer[] { input }, true);
 		}
 
+		request.promptProcessed(contextPosition - promptStart);
+
 		StringBuffer[] outputStrings = new StringBuffer[parallelCount];
 		for (int i = 0; i < outputStrings.length; i++)
 			outputStrings[i] = new StringBuffer();
 
+		long[] tokenTimes = new long[outputMax];
+		int[] tokenCounts = new int[parallelCount];
 		boolean reading = true;
 		reads: while (reading) {
 			IntBuffer[] outputs = new IntBuffer[parallelCount];
@@ -430,14 +635,13 @@ public class LlamaCppBatchProcessor {
 				buf.position(buf.position() + output.limit());
 			}
 
-			long begin = System.nanoTime();
-
 			CompletableFuture<Boolean>[] generationCompleted = newGenerationCompletableFutures();
-			CompletableFuture<Boolean> allCompleted = readBatchAsync(outputs, generationCompleted);
+			CompletableFuture<Boolean> allCompleted = readBatchAsync(outputs, generationCompleted, tokenTimes);
 			allCompleted.join();
 
-			long end = System.nanoTime();
-			// System.out.println("Read batch in " + (end - begin) / 1 + " ns.");
+			for (int i = 0; i < parallelCount; i++)
+				tokenCounts[i] = outputs[i] != null ? outputs[i].position() : 0;
+			request.generated(tokenTimes, tokenCounts);
 
 			int sequencesLeft = 0;
 			for (int i = 0; i < outputIds.length; i++) {
@@ -468,6 +672,7 @@ public class LlamaCppBatchProcessor {
 			// TODO check context size and break the loop
 			// TODO timeout?
 		}
+		request.completed();
 		StringJoiner res = new StringJoiner(
 				"\n\n\n---------------------------------------------------------------\n\n\n");
 		for (int i = 0; i < outputStrings.length; i++)
@@ -476,6 +681,20 @@ public class LlamaCppBatchProcessor {
 
 	}
 
+	/**
+	 * Frees the per-sequence samplers, if sampling in parallel. The context and
+	 * the samplers passed at construction are not closed.
+	 */
+	@Override
+	public void close() {
+		if (sequenceSamplers != null)
+			for (LlamaCppNativeSampler sampler : sequenceSamplers)
+				sampler.close();
+		if (sequenceValidatingSamplers != null)
+			for (LlamaCppNativeSampler sampler : sequenceValidatingSamplers)
+				sampler.close();
+	}
+
 	/*
 	 * ACCESSORS
 	 */
@@ -485,6 +704,46 @@ public class LlamaCppBatchProcessor {
 		return parallelCount;
 	}
 
+	/**
+	 * The request-level latency and throughput metrics of this processor. They
+	 * are recorded by {@link #processBatch(String, String[], String)} and can be
+	 * recorded by subclasses or users of the low-level methods.
+	 */
+	public LlamaCppMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * A snapshot of the performance counters of the context and of the sampler
+	 * chain. When sampling in parallel, the sampling time and count also include
+	 * those of the per-sequence clones of the chain.
+	 */
+	public LlamaCppPerformance getPerformance() {
+		if (samplerChain == null)
+			return context.getPerformance();
+		double[] samplerData = samplerChain.getPerformanceData();
+		if (sequenceSamplers != null)
+			for (LlamaCppSamplerChain sampler : sequenceSamplers) {
+				double[] data = sampler.getPerformanceData();
+				for (int i = 0; i < samplerData.length; i++)
+					samplerData[i] += data[i];
+			}
+		return context.getPerformance(samplerData);
+	}
+
+	/**
+	 * Resets the performance counters of the context and of the sampler chain,
+	 * including its per-sequence clones.
+	 */
+	public void resetPerformance() {
+		context.resetPerformance();
+		if (samplerChain != null)
+			samplerChain.resetPerformance();
+		if (sequenceSamplers != null)
+			for (LlamaCppSamplerChain sampler : sequenceSamplers)
+				sampler.resetPerformance();
+	}
+
 	/** The context currently being exclusively used by this processor. */
 	protected LlamaCppContext getContext() {
 		return context;
@@ -497,6 +756,11 @@ public class LlamaCppBatchProcessor {
 	/*
 	 * UTILITIES
 	 */
+	/** The native sampler chain, or 0 if sampling is done by a batch sampler. */
+	private long samplerChainPointer() {
+		return samplerChain != null ? samplerChain.getAsLong() : 0;
+	}
+
 	protected CompletableFuture<Boolean>[] newGenerationCompletableFutures() {
 		@SuppressWarnings("unchecked") // required by type erasing
 		CompletableFuture<Boolean>[] generationCompleted = createArr(CompletableFuture.class);
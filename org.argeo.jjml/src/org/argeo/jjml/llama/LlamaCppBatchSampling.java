@@ -0,0 +1,69 @@
+package org.argeo.jjml.llama;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Objects;
+
+/**
+ * The state shared with the native side when using a
+ * {@link LlamaCppJavaBatchSampler}. It is created once per processor, so that
+ * there is no allocation when sampling.
+ */
+final class LlamaCppBatchSampling {
+	private final LlamaCppJavaBatchSampler sampler;
+	private final int parallelCount;
+	private final int vocabularySize;
+
+	// shared with native
+	/** Rows, sequence indices and positions, one after the other. */
+	private final int[] indices;
+	private final int[] selected;
+	/** Set by native, only when the logits have moved or grown. */
+	private ByteBuffer logits;
+
+	// views passed to the sampler
+	private ByteBuffer logitsSource;
+	private FloatBuffer logitsView;
+	private final int[] rows;
+	private final int[] sequenceIndices;
+	private final int[] positions;
+
+	LlamaCppBatchSampling(LlamaCppJavaBatchSampler sampler, int parallelCount, int vocabularySize) {
+		Objects.requireNonNull(sampler);
+		this.sampler = sampler;
+		this.parallelCount = parallelCount;
+		this.vocabularySize = vocabularySize;
+
+		this.indices = new int[3 * parallelCount];
+		this.selected = new int[parallelCount];
+		this.rows = new int[parallelCount];
+		this.sequenceIndices = new int[parallelCount];
+		this.positions = new int[parallelCount];
+	}
+
+	/** Called from native after each decode. */
+	void sample(int count) {
+		LlamaCppEvents.Sample event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Sample() : null;
+		if (event != null)
+			event.begin();
+		if (logits != logitsSource) {
+			logitsView = logits.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			logitsSource = logits;
+		}
+		System.arraycopy(indices, 0, rows, 0, count);
+		System.arraycopy(indices, parallelCount, sequenceIndices, 0, count);
+		System.arraycopy(indices, 2 * parallelCount, positions, 0, count);
+		sampler.sample(logitsView, vocabularySize, count, rows, sequenceIndices, positions, selected);
+		if (event != null && event.shouldCommit()) {
+			event.sampler = sampler.getClass().getName();
+			event.sequenceCount = count;
+			event.candidateCount = vocabularySize;
+			event.commit();
+		}
+	}
+
+	void reset() {
+		sampler.reset();
+	}
+}
@@ -0,0 +1,277 @@
+package org.argeo.jjml.llama;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The candidates passed to a {@link LlamaCppJavaBulkSampler}, as separate
+ * direct buffers of token ids, logits and probabilities (structure of arrays).
+ * Only the first {@link #size()} elements are valid.
+ * <p>
+ * The buffers are allocated natively and are reused from one sampling to the
+ * next, so that there is no allocation in the hot path. Helper methods
+ * working on the whole candidates access the buffers in place, with absolute
+ * gets and puts, only the retained candidates being copied to reused arrays
+ * when they are reordered.
+ * </p>
+ */
+public class LlamaCppCandidates {
+	private final LlamaCppJavaBulkSampler sampler;
+
+	// set by native
+	private IntBuffer ids;
+	private FloatBuffer logits;
+	private FloatBuffer probs;
+
+	// read by native after apply
+	private int size;
+	private boolean sorted;
+	private long selected;
+
+	// reused work arrays, for reordering
+	private int[] idsArr = new int[0];
+	private float[] logitsArr = new float[0];
+	private float[] probsArr = new float[0];
+	private long[] keys = new long[0];
+
+	LlamaCppCandidates(LlamaCppJavaBulkSampler sampler) {
+		Objects.requireNonNull(sampler);
+		this.sampler = sampler;
+	}
+
+	/*
+	 * NATIVE CALLBACKS
+	 */
+	/** Called from native when the buffers have been (re)allocated. */
+	void setBuffers(ByteBuffer ids, ByteBuffer logits, ByteBuffer probs) {
+		this.ids = ids.order(ByteOrder.nativeOrder()).asIntBuffer();
+		this.logits = logits.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		this.probs = probs.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		int capacity = this.ids.capacity();
+		idsArr = new int[capacity];
+		logitsArr = new float[capacity];
+		probsArr = new float[capacity];
+		keys = new long[capacity];
+	}
+
+	/** Called from native after the buffers have been filled. */
+	long apply(int size, long selected, boolean sorted) {
+		this.size = size;
+		this.sorted = sorted;
+		this.selected = selected;
+		LlamaCppEvents.Sample event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Sample() : null;
+		if (event != null)
+			event.begin();
+		long res = sampler.apply(this);
+		if (event != null && event.shouldCommit()) {
+			event.sampler = sampler.getName();
+			event.sequenceCount = 1;
+			event.candidateCount = size;
+			event.commit();
+		}
+		return res;
+	}
+
+	void accept(int token) {
+		sampler.accept(token);
+	}
+
+	void reset() {
+		sampler.reset();
+	}
+
+	String getName() {
+		return sampler.getName();
+	}
+
+	/*
+	 * BULK OPERATIONS
+	 */
+	/**
+	 * Sorts the candidates by decreasing logits and keeps only the first
+	 * <code>k</code> of them. This is a partial sort when <code>k</code> is
+	 * smaller than the size.
+	 */
+	public void sortDescending(int k) {
+		if (k <= 0)
+			throw new IllegalArgumentException("Number of candidates to keep must be positive");
+		k = Math.min(k, size);
+		if (sorted) {
+			size = k;
+			return;
+		}
+
+		// keys sort in ascending order by decreasing logit, then by index
+		if (k == size) {
+			for (int i = 0; i < size; i++)
+				keys[i] = sortKey(logits.get(i), i);
+			Arrays.sort(keys, 0, size);
+		} else {
+			// max-heap of the k smallest keys
+			for (int i = 0; i < k; i++)
+				keys[i] = sortKey(logits.get(i), i);
+			for (int i = k / 2 - 1; i >= 0; i--)
+				siftDown(keys, i, k);
+			for (int i = k; i < size; i++) {
+				long key = sortKey(logits.get(i), i);
+				if (key < keys[0]) {
+					keys[0] = key;
+					siftDown(keys, 0, k);
+				}
+			}
+			Arrays.sort(keys, 0, k);
+		}
+
+		// only the retained candidates are copied
+		for (int i = 0; i < k; i++) {
+			int index = (int) keys[i];
+			idsArr[i] = ids.get(index);
+			logitsArr[i] = logits.get(index);
+			probsArr[i] = probs.get(index);
+		}
+		for (int i = 0; i < k; i++) {
+			ids.put(i, idsArr[i]);
+			logits.put(i, logitsArr[i]);
+			probs.put(i, probsArr[i]);
+		}
+		size = k;
+		sorted = true;
+	}
+
+	/** Computes the probabilities of the candidates from their logits. */
+	public void softmax() {
+		float max = sorted ? logits.get(0) : logits.get(argmax());
+		float sum = 0;
+		for (int i = 0; i < size; i++) {
+			float p = (float) Math.exp(logits.get(i) - max);
+			probs.put(i, p);
+			sum += p;
+		}
+		float inv = 1f / sum;
+		for (int i = 0; i < size; i++)
+			probs.put(i, probs.get(i) * inv);
+	}
+
+	/** Multiplies all logits by this factor. */
+	public void scaleLogits(float factor) {
+		for (int i = 0; i < size; i++)
+			logits.put(i, logits.get(i) * factor);
+	}
+
+	/** The index of the candidate with the highest logit. */
+	public int argmax() {
+		if (size == 0)
+			throw new IllegalStateException("No candidates");
+		if (sorted)
+			return 0;
+		int res = 0;
+		float best = logits.get(0);
+		for (int i = 1; i < size; i++) {
+			float logit = logits.get(i);
+			if (logit > best) {
+				best = logit;
+				res = i;
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Keeps only the candidates whose logits are higher or equal to this
+	 * threshold, preserving their order.
+	 *
+	 * @return the new size
+	 */
+	public int retainLogitsAbove(float threshold) {
+		// compaction in place, since count <= i
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			float logit = logits.get(i);
+			if (logit >= threshold) {
+				if (count != i) {
+					ids.put(count, ids.get(i));
+					logits.put(count, logit);
+					probs.put(count, probs.get(i));
+				}
+				count++;
+			}
+		}
+		size = count;
+		return size;
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/** A key whose natural order is by decreasing logit, then by index. */
+	private static long sortKey(float logit, int index) {
+		int bits = Float.floatToIntBits(logit);
+		int ordered = bits ^ ((bits >> 31) & 0x7fffffff); // same order as the float
+		return ((long) ~ordered << 32) | (index & 0xffffffffL);
+	}
+
+	private static void siftDown(long[] heap, int i, int length) {
+		long value = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= length)
+				break;
+			if (child + 1 < length && heap[child + 1] > heap[child])
+				child++;
+			if (heap[child] <= value)
+				break;
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = value;
+	}
+
+	/*
+	 * ACCESSORS
+	 */
+	/** The number of valid candidates. */
+	public int size() {
+		return size;
+	}
+
+	/** Reduces the number of candidates. */
+	public void truncate(int newSize) {
+		if (newSize < 0 || newSize > size)
+			throw new IndexOutOfBoundsException("New size " + newSize + " is not within [0," + size + "]");
+		size = newSize;
+	}
+
+	/** The index selected by a previous sampler, or a negative number. */
+	public long selected() {
+		return selected;
+	}
+
+	/** Whether the candidates are sorted by decreasing logits. */
+	public boolean isSorted() {
+		return sorted;
+	}
+
+	/** Should be set to <code>false</code> if the order has been modified. */
+	public void setSorted(boolean sorted) {
+		this.sorted = sorted;
+	}
+
+	/** The token ids, whose limit is the capacity of the native buffer. */
+	public IntBuffer ids() {
+		return ids;
+	}
+
+	/** The logits, whose limit is the capacity of the native buffer. */
+	public FloatBuffer logits() {
+		return logits;
+	}
+
+	/** The probabilities, whose limit is the capacity of the native buffer. */
+	public FloatBuffer probs() {
+		return probs;
+	}
+}
@@ -0,0 +1,154 @@
+package org.argeo.jjml.llama;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+
+/**
+ * Tokenization of UTF-8 streams of arbitrary size (typically corpus files) with
+ * constant memory. The input is cut in chunks at safe boundaries (preferably
+ * after a new line, otherwise before a white space, and never inside a UTF-8
+ * sequence), which are tokenized directly from and to direct buffers. Tokens
+ * are written to the output channel as 32-bit integers in native byte order,
+ * so that the result can be memory-mapped as an {@link IntBuffer}.
+ * <p>
+ * Since each chunk is tokenized separately, the tokens around chunk boundaries
+ * may differ from those of a tokenization of the whole input (e.g. with models
+ * adding a space prefix). Special tokens (such as BOS) are only added at the
+ * beginning of the stream. It is not thread-safe.
+ */
+public class LlamaCppChannelTokenizer {
+	/** Default chunk size, in bytes. */
+	public final static int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	private final LlamaCppVocabulary vocabulary;
+	private final int chunkSize;
+	private final boolean addSpecial;
+	private final boolean parseSpecial;
+
+	private ByteBuffer input;
+	private ByteBuffer output;
+	private IntBuffer tokens;
+
+	/** Tokenizes without adding special tokens, but parsing them. */
+	public LlamaCppChannelTokenizer(LlamaCppVocabulary vocabulary) {
+		this(vocabulary, DEFAULT_CHUNK_SIZE, false, true);
+	}
+
+	/**
+	 * @param chunkSize    the maximum size of a chunk, in bytes
+	 * @param addSpecial   whether special tokens are added at the beginning of
+	 *                     the stream
+	 * @param parseSpecial whether special tokens are parsed
+	 */
+	public LlamaCppChannelTokenizer(LlamaCppVocabulary vocabulary, int chunkSize, boolean addSpecial,
+			boolean parseSpecial) {
+		this.vocabulary = Objects.requireNonNull(vocabulary);
+		if (chunkSize < 4) // at least one UTF-8 sequence
+			throw new IllegalArgumentException("Chunk size " + chunkSize + " is too small");
+		this.chunkSize = chunkSize;
+		this.addSpecial = addSpecial;
+		this.parseSpecial = parseSpecial;
+	}
+
+	/**
+	 * Tokenizes a channel until its end.
+	 *
+	 * @return the number of tokens written
+	 */
+	public long tokenize(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		if (input == null)
+			input = ByteBuffer.allocateDirect(chunkSize);
+		ByteBuffer buf = input.clear();
+		long count = 0;
+		boolean first = true;
+		boolean endOfInput = false;
+		while (!endOfInput) {
+			while (buf.hasRemaining())
+				if (in.read(buf) < 0) {
+					endOfInput = true;
+					break;
+				}
+			buf.flip();
+			int end = endOfInput ? buf.limit() : cut(buf);
+			int limit = buf.limit();
+			buf.limit(end);
+			count += tokenizeChunk(buf, out, first);
+			buf.limit(limit);
+			buf.compact();
+			first = false;
+		}
+		return count;
+	}
+
+	/**
+	 * Tokenizes a region of a file, which is memory-mapped chunk by chunk, so
+	 * that the bytes are not copied.
+	 *
+	 * @return the number of tokens written
+	 */
+	public long tokenize(FileChannel file, long position, long size, WritableByteChannel out) throws IOException {
+		long end = position + size;
+		long count = 0;
+		boolean first = true;
+		while (position < end) {
+			long remaining = end - position;
+			MappedByteBuffer buf = file.map(MapMode.READ_ONLY, position, Math.min(remaining, chunkSize));
+			if (remaining > chunkSize)
+				buf.limit(cut(buf));
+			position += buf.limit();
+			count += tokenizeChunk(buf, out, first);
+			first = false;
+		}
+		return count;
+	}
+
+	/** Tokenizes the remaining bytes of this buffer. */
+	private long tokenizeChunk(ByteBuffer utf8, WritableByteChannel out, boolean first) throws IOException {
+		if (!utf8.hasRemaining())
+			return 0;
+		if (tokens == null) {
+			// there cannot be more tokens than bytes, except for special tokens
+			output = ByteBuffer.allocateDirect((chunkSize + 16) * Integer.BYTES).order(ByteOrder.nativeOrder());
+			tokens = output.asIntBuffer();
+		}
+		tokens.clear();
+		vocabulary.tokenizeUtf8(utf8, tokens, first && addSpecial, parseSpecial);
+		int count = tokens.position();
+		output.clear().limit(count * Integer.BYTES);
+		while (output.hasRemaining())
+			out.write(output);
+		return count;
+	}
+
+	/**
+	 * The position at which this full chunk can be cut: after the last new line,
+	 * otherwise before the last white space, otherwise before the last UTF-8
+	 * sequence. New lines and white spaces are only looked for in the second half
+	 * of the chunk, so that chunks are not too small.
+	 */
+	static int cut(ByteBuffer buf) {
+		int start = buf.position();
+		int limit = buf.limit();
+		int middle = start + (limit - start) / 2;
+		for (int i = limit - 1; i > middle; i--)
+			if (buf.get(i) == '\n')
+				return i + 1;
+		for (int i = limit - 1; i > middle; i--) {
+			byte b = buf.get(i);
+			if (b == ' ' || b == '\t' || b == '\r')
+				return i;
+		}
+		for (int i = limit - 1; i > start; i--)
+			if ((buf.get(i) & 0xC0) != 0x80) // not a continuation byte
+				return i;
+		return limit;
+	}
+}
@@ -80,6 +80,16 @@ public class LlamaCppContext implements LongSupplier, AutoCloseable {
 
 	private native int doGetMaxSequenceCount();
 
+	private native void doGetPerformance(double[] data);
+
+	private native void doGetTimings(long[] timings);
+
+	private native void doResetPerformance();
+
+	private native void doSetTimingsEnabled(boolean enabled);
+
+	private native boolean doIsTimingsEnabled();
+
 	/*
 	 * LIFECYCLE
 	 */
@@ -88,6 +98,56 @@ public class LlamaCppContext implements LongSupplier, AutoCloseable {
 		doDestroy();
 	}
 
+	/*
+	 * PERFORMANCE
+	 */
+	/** A snapshot of the performance counters of this context. */
+	public LlamaCppPerformance getPerformance() {
+		return getPerformance((LlamaCppSamplerChain) null);
+	}
+
+	/**
+	 * A snapshot of the performance counters of this context and of this sampler
+	 * chain, typically the one of the batch processor using this context. When
+	 * sampling in parallel, the per-sequence clones of the chain are the ones
+	 * sampling, so that {@link LlamaCppBatchProcessor#getPerformance()} should be
+	 * used instead.
+	 *
+	 * @param samplerChain the chain, can be null
+	 */
+	public LlamaCppPerformance getPerformance(LlamaCppSamplerChain samplerChain) {
+		return getPerformance(samplerChain != null ? samplerChain.getPerformanceData() : null);
+	}
+
+	/** A snapshot with these sampling time and count, which can be null. */
+	LlamaCppPerformance getPerformance(double[] samplerData) {
+		double[] contextData = new double[LlamaCppPerformance.CONTEXT_DATA_SIZE];
+		doGetPerformance(contextData);
+		long[] timings = new long[LlamaCppPerformance.Phase.values().length * LlamaCppPerformance.TIMINGS_STRIDE];
+		doGetTimings(timings);
+		return new LlamaCppPerformance(contextData, samplerData, timings);
+	}
+
+	/** Resets the performance counters and the timings of this context. */
+	public void resetPerformance() {
+		doResetPerformance();
+	}
+
+	/**
+	 * Whether the durations of the write, read and sample phases of the batch
+	 * processors using this context are recorded natively. It is disabled by
+	 * default and can be changed at any time.
+	 *
+	 * @see LlamaCppPerformance#getTimings(LlamaCppPerformance.Phase)
+	 */
+	public void setTimingsEnabled(boolean enabled) {
+		doSetTimingsEnabled(enabled);
+	}
+
+	public boolean isTimingsEnabled() {
+		return doIsTimingsEnabled();
+	}
+
 	/*
 	 * PACKAGE COORDINATION
 	 */
@@ -0,0 +1,189 @@
+package org.argeo.jjml.llama;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Incremental de-tokenization of a stream of tokens, typically the tokens
+ * generated for one sequence. The UTF-8 pieces of the tokens are concatenated
+ * in a reusable buffer and only complete characters are emitted, the bytes of a
+ * character split across tokens (or across reads) being kept until it is
+ * completed. Contrary to {@link LlamaCppVocabulary#deTokenize(IntBuffer)},
+ * pieces are not post-processed (e.g. leading space removal), so that the
+ * result does not depend on how the stream has been split. Pieces are read from
+ * the {@link LlamaCppTokenPieces} of the vocabulary, without native calls.
+ * <p>
+ * It is not thread-safe, and the returned {@link CharBuffer}s are only valid
+ * until the next call.
+ */
+public class LlamaCppDeTokenizer {
+	private final static int DEFAULT_CAPACITY = 256;
+
+	private final LlamaCppTokenPieces pieces;
+	private final boolean special;
+	private final CharsetDecoder decoder;
+
+	/** UTF-8 bytes in write mode, pending ones being at the beginning. */
+	private ByteBuffer bytes;
+	private CharBuffer chars;
+
+	/** A de-tokenizer which does not render control tokens. */
+	public LlamaCppDeTokenizer(LlamaCppVocabulary vocabulary) {
+		this(vocabulary, false);
+	}
+
+	/**
+	 * @param special whether control tokens (such as end of turn) are rendered
+	 */
+	public LlamaCppDeTokenizer(LlamaCppVocabulary vocabulary, boolean special) {
+		this.pieces = vocabulary.getPieces();
+		this.special = special;
+		this.decoder = UTF_8.newDecoder() //
+				.onMalformedInput(CodingErrorAction.REPLACE) //
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bytes = ByteBuffer.allocateDirect(DEFAULT_CAPACITY);
+		this.chars = CharBuffer.allocate(DEFAULT_CAPACITY);
+	}
+
+	/*
+	 * CHARACTERS
+	 */
+	/** The complete characters made available by this token. */
+	public CharBuffer deTokenize(int token) {
+		appendPiece(token);
+		return decode(false);
+	}
+
+	/**
+	 * The complete characters made available by these tokens, which are all
+	 * consumed.
+	 */
+	public CharBuffer deTokenize(IntBuffer tokens) {
+		appendPieces(tokens);
+		return decode(false);
+	}
+
+	/**
+	 * Signals the end of the stream. Pending bytes of incomplete characters are
+	 * emitted as replacement characters, and this de-tokenizer can be reused.
+	 */
+	public CharBuffer flush() {
+		return decode(true);
+	}
+
+	/*
+	 * UTF-8
+	 */
+	/**
+	 * Writes the UTF-8 bytes of the complete characters made available by these
+	 * tokens, which are all consumed. Bytes are not validated.
+	 *
+	 * @return the number of bytes written
+	 * @throws IndexOutOfBoundsException if the output is too small, in which case
+	 *                                   nothing is written but the tokens are
+	 *                                   consumed, so that the bytes can be
+	 *                                   retrieved by calling this method again
+	 *                                   with a larger buffer
+	 */
+	public int deTokenize(IntBuffer tokens, ByteBuffer utf8) throws IndexOutOfBoundsException {
+		appendPieces(tokens);
+		return write(utf8, completeLength());
+	}
+
+	/**
+	 * Signals the end of the stream, writing the pending bytes as they are.
+	 *
+	 * @return the number of bytes written
+	 */
+	public int flush(ByteBuffer utf8) throws IndexOutOfBoundsException {
+		return write(utf8, bytes.position());
+	}
+
+	/*
+	 * STATE
+	 */
+	/** Whether bytes of an incomplete character are pending. */
+	public boolean hasPending() {
+		return bytes.position() != 0;
+	}
+
+	/** Discards pending bytes. */
+	public void reset() {
+		bytes.clear();
+		decoder.reset();
+	}
+
+	/*
+	 * INTERNALS
+	 */
+	private void appendPiece(int token) {
+		int length = pieces.length(token, special);
+		if (length > bytes.remaining())
+			grow(length);
+		if (length != 0)
+			bytes.put(pieces.piece(token));
+	}
+
+	private void appendPieces(IntBuffer tokens) {
+		int length = pieces.length(tokens, special);
+		if (length > bytes.remaining())
+			grow(length);
+		pieces.deTokenize(tokens, bytes, special);
+	}
+
+	/** Ensures that at least this number of bytes can be written. */
+	private void grow(int required) {
+		ByteBuffer newBytes = ByteBuffer.allocateDirect(Math.max(2 * bytes.capacity(), bytes.position() + required));
+		bytes.flip();
+		newBytes.put(bytes);
+		bytes = newBytes;
+	}
+
+	/**
+	 * The length of the pending bytes which can be emitted, that is, excluding a
+	 * trailing incomplete UTF-8 sequence.
+	 */
+	private int completeLength() {
+		int limit = bytes.position();
+		for (int i = limit - 1; i >= Math.max(0, limit - 4); i--) {
+			int b = bytes.get(i) & 0xFF;
+			if ((b & 0xC0) == 0x80) // continuation byte
+				continue;
+			int expected = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+			return limit - i < expected ? i : limit;
+		}
+		return limit; // empty, or invalid continuation bytes only
+	}
+
+	private CharBuffer decode(boolean endOfInput) {
+		int end = endOfInput ? bytes.position() : completeLength();
+		int total = bytes.position();
+		// a UTF-8 byte gives at most one UTF-16 char
+		if (chars.capacity() < end)
+			chars = CharBuffer.allocate(Math.max(2 * chars.capacity(), end));
+		chars.clear();
+		bytes.flip().limit(end);
+		decoder.decode(bytes, chars, true);
+		decoder.flush(chars);
+		decoder.reset();
+		bytes.limit(total);
+		bytes.compact();
+		return chars.flip();
+	}
+
+	private int write(ByteBuffer utf8, int end) throws IndexOutOfBoundsException {
+		if (end > utf8.remaining())
+			throw new IndexOutOfBoundsException(end);
+		int total = bytes.position();
+		bytes.flip().limit(end);
+		utf8.put(bytes);
+		bytes.limit(total);
+		bytes.compact();
+		return end;
+	}
+}
@@ -0,0 +1,185 @@
+package org.argeo.jjml.llama;
+
+import static java.lang.System.Logger.Level.ERROR;
+
+import java.lang.System.Logger;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.argeo.jjml.llama.params.PoolingType;
+
+/**
+ * Computes embeddings for many concurrent callers, by packing their requests
+ * into batches. Requests are queued and processed by a single thread, which
+ * adds them to the current batch until it is full (in tokens, or in sequences),
+ * or until the oldest request has waited for the maximum latency. Each batch is
+ * computed with a single call to the underlying
+ * {@link LlamaCppEmbeddingProcessor}. Requests longer than a batch are
+ * processed alone. If a batch fails with an exception, only its requests are
+ * completed exceptionally, but an {@link Error} closes the batcher.
+ */
+public class LlamaCppEmbeddingBatcher implements AutoCloseable {
+	private final static Logger logger = System.getLogger(LlamaCppEmbeddingBatcher.class.getName());
+
+	private final LlamaCppEmbeddingProcessor processor;
+	private final IntSupplier normalization;
+	private final long maxWaitNanos;
+
+	private final int maxTokens;
+	private final int maxSequences;
+
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+	private final Thread thread;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param normalization typically an
+	 *                      {@link org.argeo.jjml.llama.params.EmbeddingNormalization}
+	 * @param maxWait       the maximum time a request waits for a batch to be
+	 *                      filled
+	 */
+	public LlamaCppEmbeddingBatcher(LlamaCppEmbeddingProcessor processor, IntSupplier normalization, long maxWait,
+			TimeUnit unit) {
+		this.processor = Objects.requireNonNull(processor);
+		this.normalization = Objects.requireNonNull(normalization);
+		this.maxWaitNanos = unit.toNanos(maxWait);
+		LlamaCppContext context = processor.getContext();
+		// as packed natively, so that a full batch is decoded at once
+		this.maxTokens = Math.min(context.getBatchSize(),
+				Math.min(context.getPhysicalBatchSize(), context.getContextSize()));
+		this.maxSequences = Math.max(1, context.getMaxSequenceCount());
+		thread = new Thread(this::run, "Embedding batcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Requests the embeddings of these tokens, which are copied.
+	 *
+	 * @return a future completed with one embedding, or one per token if pooling
+	 *         type is none
+	 */
+	public CompletableFuture<float[][]> submit(IntBuffer tokens) {
+		Request request = new Request(tokens);
+		if (closed) {
+			request.future.completeExceptionally(new IllegalStateException("Embedding batcher is closed"));
+		} else if (!request.tokens.hasRemaining()) {
+			request.future.completeExceptionally(new IllegalArgumentException("Input is empty"));
+		} else {
+			queue.add(request);
+			if (closed && queue.remove(request)) // closed concurrently
+				request.future.completeExceptionally(new IllegalStateException("Embedding batcher is closed"));
+		}
+		return request.future;
+	}
+
+	/** @see #submit(IntBuffer) */
+	public CompletableFuture<float[][]> submit(CharSequence str) {
+		// tokens are copied anyway
+		return submit(processor.getContext().getModel().getVocabulary().tokenizeReadOnly(str, false, true));
+	}
+
+	/*
+	 * BATCHING
+	 */
+	private void run() {
+		Request pending = null;
+		List<Request> batch = new ArrayList<>();
+		try {
+			while (!closed) {
+				Request first = pending != null ? pending : queue.take();
+				pending = null;
+				batch.add(first);
+				int tokenCount = first.tokens.remaining();
+				long deadline = first.submitted + maxWaitNanos;
+				while (batch.size() < maxSequences && tokenCount < maxTokens) {
+					long remaining = deadline - System.nanoTime();
+					Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null)
+						break;
+					if (tokenCount + next.tokens.remaining() > maxTokens) {
+						pending = next;
+						break;
+					}
+					batch.add(next);
+					tokenCount += next.tokens.remaining();
+				}
+				process(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} finally {
+			// also if the worker failed, so that no request is accepted anymore
+			closed = true;
+			if (pending != null)
+				batch.add(pending);
+			queue.drainTo(batch);
+			for (Request request : batch)
+				request.future.completeExceptionally(new IllegalStateException("Embedding batcher is closed"));
+		}
+	}
+
+	private void process(List<Request> batch) {
+		IntBuffer[] inputs = new IntBuffer[batch.size()];
+		for (int i = 0; i < inputs.length; i++)
+			inputs[i] = batch.get(i).tokens;
+		float[][] embeddings;
+		try {
+			embeddings = processor.processEmbeddings(inputs, normalization);
+		} catch (Throwable e) {
+			logger.log(ERROR, "Cannot compute a batch of " + inputs.length + " embeddings", e);
+			for (Request request : batch)
+				request.future.completeExceptionally(e);
+			if (e instanceof Error) // stops the worker, closing the batcher
+				throw (Error) e;
+			return;
+		}
+		boolean perToken = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(processor.getPoolingType());
+		int offset = 0;
+		for (Request request : batch) {
+			int count = perToken ? request.tokens.remaining() : 1;
+			float[][] res = new float[count][];
+			System.arraycopy(embeddings, offset, res, 0, count);
+			offset += count;
+			request.future.complete(res);
+		}
+	}
+
+	/*
+	 * LIFECYCLE
+	 */
+	/**
+	 * Stops processing. Queued requests, and possibly the batch being filled, are
+	 * completed exceptionally.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static class Request {
+		final IntBuffer tokens;
+		final long submitted = System.nanoTime();
+		final CompletableFuture<float[][]> future = new CompletableFuture<>();
+
+		Request(IntBuffer tokens) {
+			int[] arr = new int[tokens.remaining()];
+			tokens.duplicate().get(arr);
+			this.tokens = IntBuffer.wrap(arr);
+		}
+	}
+}
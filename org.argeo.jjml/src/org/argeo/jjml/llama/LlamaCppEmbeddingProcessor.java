@@ -1,71 +1,228 @@
 package org.argeo.jjml.llama;
 
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntSupplier;
 
+import org.argeo.jjml.llama.params.EmbeddingNormalization;
 import org.argeo.jjml.llama.params.PoolingType;
 
-/** Computes embeddings. */
+/**
+ * Computes embeddings. The pooling type is the one of the context, unless the
+ * context has no pooling, in which case another pooling type can be chosen for
+ * the processor.
+ * <p>
+ * Inputs are packed natively in batches by decreasing length, within the batch
+ * size and the maximum number of sequences of the context. Inputs longer than a
+ * batch are split in windows, whose embeddings are combined (weighted mean, or
+ * first or last window for CLS or LAST pooling).
+ */
 public class LlamaCppEmbeddingProcessor {
 	private final LlamaCppContext context;
+	private final PoolingType poolingType;
 
 	public LlamaCppEmbeddingProcessor(LlamaCppContext context) {
+		this(context, context.getPoolingType());
+	}
+
+	/**
+	 * @param poolingType the pooling type, which can only differ from the one of
+	 *                    the context if it has no pooling
+	 */
+	public LlamaCppEmbeddingProcessor(LlamaCppContext context, PoolingType poolingType) {
 		this.context = context;
+		if (PoolingType.LLAMA_POOLING_TYPE_UNSPECIFIED.equals(poolingType))
+			throw new IllegalArgumentException("Pooling type must be specified");
+		if (!poolingType.equals(context.getPoolingType())
+				&& !PoolingType.LLAMA_POOLING_TYPE_NONE.equals(context.getPoolingType()))
+			throw new IllegalArgumentException("Pooling type " + poolingType
+					+ " can only be used with a context without pooling, not " + context.getPoolingType());
+		this.poolingType = poolingType;
 	}
 
-	private static native void doProcessEmbeddings(long contextPointer, int[][] tokens, float[] emb);
+	private static native void doProcessEmbeddings(long contextPointer, int[][] tokens, float[] emb, int pooling,
+			int normalization);
+
+	private static native void doProcessEmbeddingsToBuffer(long contextPointer, int[][] tokens, FloatBuffer emb,
+			int offset, int pooling, int normalization);
+
+	private static native void doProcessDirectEmbeddings(long contextPointer, IntBuffer[] tokens, int[] offsets,
+			int[] lengths, float[] emb, int pooling, int normalization);
+
+	private static native void doProcessDirectEmbeddingsToBuffer(long contextPointer, IntBuffer[] tokens,
+			int[] offsets, int[] lengths, FloatBuffer emb, int offset, int pooling, int normalization);
 
 	public float[][] processEmbeddings(List<String> prompts) {
-		IntBuffer[] tokenLists = new IntBuffer[prompts.size()];
-		for (int i = 0; i < prompts.size(); i++) {
-			String prompt = prompts.get(i);
-			IntBuffer tokenList = context.getModel().getVocabulary().tokenize(prompt);
-			tokenLists[i] = tokenList;
-		}
-		return processEmbeddings(tokenLists);
+		return processEmbeddings(prompts, EmbeddingNormalization.NONE);
+	}
+
+	/**
+	 * @param normalization typically an {@link EmbeddingNormalization}
+	 */
+	public float[][] processEmbeddings(List<String> prompts, IntSupplier normalization) {
+		IntBuffer[] tokenLists = context.getModel().getVocabulary().tokenizeMultiple(prompts);
+		return processEmbeddings(tokenLists, normalization);
 	}
 
 	public float[][] processEmbeddings(IntBuffer[] inputs) {
+		return processEmbeddings(inputs, EmbeddingNormalization.NONE);
+	}
+
+	/**
+	 * @param normalization typically an {@link EmbeddingNormalization}
+	 */
+	public float[][] processEmbeddings(IntBuffer[] inputs, IntSupplier normalization) {
+		LlamaCppEvents.Embed event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Embed() : null;
+		if (event != null)
+			event.begin();
+		int n_embd = context.getModel().getEmbeddingSize();
+		int n_embd_count = embeddingCount(inputs);
+
+		float[] emb = new float[n_embd_count * n_embd];
+		int[] offsets = new int[inputs.length];
+		int[] lengths = new int[inputs.length];
+		if (areAllDirect(inputs, offsets, lengths))
+			doProcessDirectEmbeddings(context.getAsLong(), inputs, offsets, lengths, emb, poolingType.getAsInt(),
+					normalization.getAsInt());
+		else
+			doProcessEmbeddings(context.getAsLong(), toArrays(inputs), emb, poolingType.getAsInt(),
+					normalization.getAsInt());
+
+		float[][] res = new float[n_embd_count][];
+		for (int j = 0; j < n_embd_count; j++)
+			res[j] = Arrays.copyOfRange(emb, j * n_embd, (j + 1) * n_embd);
+		commit(event, inputs, n_embd_count, n_embd);
+		return res;
+	}
+
+	/**
+	 * Computes embeddings directly into a direct buffer, without normalization.
+	 * 
+	 * @see #processEmbeddings(IntBuffer[], IntSupplier, FloatBuffer, int[])
+	 */
+	public int processEmbeddings(IntBuffer[] inputs, FloatBuffer embeddings, int[] offsets)
+			throws IndexOutOfBoundsException {
+		return processEmbeddings(inputs, EmbeddingNormalization.NONE, embeddings, offsets);
+	}
+
+	/**
+	 * Computes embeddings directly into a direct buffer in native byte order,
+	 * typically a memory-mapped file region, without copy on the Java heap. The
+	 * embeddings are written contiguously starting at the position of the
+	 * output, which is moved accordingly.
+	 * 
+	 * @param normalization typically an {@link EmbeddingNormalization}
+	 * @param offsets       if not <code>null</code>, an array of size
+	 *                      <code>inputs.length + 1</code> which is filled with
+	 *                      the offsets (in floats, relative to the initial
+	 *                      position of the output) of the embeddings of each
+	 *                      input, the last one being the total size (there are as
+	 *                      many embeddings per input as tokens if pooling type is
+	 *                      none)
+	 * @return the number of embeddings written
+	 * @throws IndexOutOfBoundsException if the output is too small, the message
+	 *                                   being the required size
+	 */
+	public int processEmbeddings(IntBuffer[] inputs, IntSupplier normalization, FloatBuffer embeddings,
+			int[] offsets) throws IndexOutOfBoundsException {
+		if (!embeddings.isDirect())
+			throw new IllegalArgumentException("Output must be a direct buffer");
+		if (embeddings.isReadOnly())
+			throw new IllegalArgumentException("Output buffer is read-only");
+		if (!ByteOrder.nativeOrder().equals(embeddings.order()))
+			throw new IllegalArgumentException("Float buffer does not use native byte order");
+		if (offsets != null && offsets.length != inputs.length + 1)
+			throw new IllegalArgumentException("Offsets must have size " + (inputs.length + 1));
+		LlamaCppEvents.Embed event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Embed() : null;
+		if (event != null)
+			event.begin();
+		int n_embd = context.getModel().getEmbeddingSize();
+		int n_embd_count = embeddingCount(inputs);
+		int size = n_embd_count * n_embd;
+		if (size > embeddings.remaining())
+			throw new IndexOutOfBoundsException(size);
+
+		int[] inputOffsets = new int[inputs.length];
+		int[] inputLengths = new int[inputs.length];
+		if (areAllDirect(inputs, inputOffsets, inputLengths))
+			doProcessDirectEmbeddingsToBuffer(context.getAsLong(), inputs, inputOffsets, inputLengths, embeddings,
+					embeddings.position(), poolingType.getAsInt(), normalization.getAsInt());
+		else
+			doProcessEmbeddingsToBuffer(context.getAsLong(), toArrays(inputs), embeddings, embeddings.position(),
+					poolingType.getAsInt(), normalization.getAsInt());
+		embeddings.position(embeddings.position() + size);
+
+		if (offsets != null) {
+			boolean perToken = PoolingType.LLAMA_POOLING_TYPE_NONE.equals(poolingType);
+			offsets[0] = 0;
+			for (int i = 0; i < inputs.length; i++)
+				offsets[i + 1] = offsets[i] + (perToken ? inputs[i].remaining() : 1) * n_embd;
+		}
+		commit(event, inputs, n_embd_count, n_embd);
+		return n_embd_count;
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/** The number of embeddings for these inputs. */
+	private int embeddingCount(IntBuffer[] inputs) {
 		// logic taken from llama.cpp's examples/embedding
-		PoolingType poolingType = context.getPoolingType();
-		int n_embd_count = 0;
 		if (PoolingType.LLAMA_POOLING_TYPE_NONE.equals(poolingType)) {
-			for (IntBuffer tokenList : inputs) {
+			int n_embd_count = 0;
+			for (IntBuffer tokenList : inputs)
 				n_embd_count += tokenList.remaining();
-			}
+			return n_embd_count;
 		} else {
-			n_embd_count = inputs.length;
+			return inputs.length;
 		}
+	}
 
-		int n_embd = context.getModel().getEmbeddingSize();
-
-		float[] emb = new float[n_embd_count * n_embd];
-		Arrays.fill(emb, 0);
+	/**
+	 * Whether all inputs are direct buffers in native byte order (typically
+	 * slices of a {@link LlamaCppTokenStore}), which are then read natively
+	 * without copy, filling their offsets and lengths.
+	 */
+	private static boolean areAllDirect(IntBuffer[] inputs, int[] offsets, int[] lengths) {
+		for (int i = 0; i < inputs.length; i++) {
+			IntBuffer input = inputs[i];
+			if (!input.isDirect() || !ByteOrder.nativeOrder().equals(input.order()))
+				return false;
+			offsets[i] = input.position();
+			lengths[i] = input.remaining();
+		}
+		return true;
+	}
 
+	private static int[][] toArrays(IntBuffer[] inputs) {
 		int[][] tokens = new int[inputs.length][];
 		for (int i = 0; i < inputs.length; i++) {
-			// FIXME check buffer type
-			tokens[i] = inputs[i].array();
+			IntBuffer input = inputs[i];
+			if (input.hasArray() && input.arrayOffset() == 0 && input.position() == 0
+					&& input.limit() == input.array().length) {
+				tokens[i] = input.array();
+			} else {// copy, e.g. direct buffers or slices
+				tokens[i] = new int[input.remaining()];
+				input.duplicate().get(tokens[i]);
+			}
 		}
-		doProcessEmbeddings(context.getAsLong(), tokens, emb);
+		return tokens;
+	}
 
-		// TODO optimize storage, returned values, and copy
-		float[][] res = new float[n_embd_count][];
-		for (int j = 0;;) { // at least one iteration (one prompt)
-			float[] arr = new float[n_embd];
-			for (int i = 0;;) { // at least one iteration (n_embd > 0)
-				arr[i] = emb[j * n_embd + i];
-				i++;
-				if (i == n_embd)
-					break;
-			}
-			res[j] = arr;
-			j++;
-			if (j == n_embd_count)
-				break;
+	private static void commit(LlamaCppEvents.Embed event, IntBuffer[] inputs, int n_embd_count, int n_embd) {
+		if (event != null && event.shouldCommit()) {
+			int tokenCount = 0;
+			for (IntBuffer tokenList : inputs)
+				tokenCount += tokenList.remaining();
+			event.sequenceCount = inputs.length;
+			event.tokenCount = tokenCount;
+			event.embeddingCount = n_embd_count;
+			event.embeddingSize = n_embd;
+			event.commit();
 		}
-		return res;
 	}
 
 	/*
@@ -74,4 +231,8 @@ public class LlamaCppEmbeddingProcessor {
 	protected LlamaCppContext getContext() {
 		return context;
 	}
+
+	public PoolingType getPoolingType() {
+		return poolingType;
+	}
 }
@@ -0,0 +1,147 @@
+package org.argeo.jjml.llama;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events. They are disabled by default and can be enabled
+ * with a custom <code>.jfc</code> settings file, or programmatically, e.g.
+ * <code>recording.enable("org.argeo.jjml.llama.Decode")</code>. When disabled,
+ * emitting them only costs a check which the JIT removes.
+ * <p>
+ * The <code>jdk.jfr</code> module is an optional dependency, so that events
+ * must only be created if {@link #AVAILABLE} is <code>true</code>. When running
+ * on the module path, it may have to be added with
+ * <code>--add-modules jdk.jfr</code>.
+ * </p>
+ */
+final class LlamaCppEvents {
+	private final static String PREFIX = "org.argeo.jjml.llama.";
+	private final static String CATEGORY = "llama.cpp";
+
+	/** Whether the <code>jdk.jfr</code> module is present and readable. */
+	final static boolean AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr")
+			.map(LlamaCppEvents.class.getModule()::canRead).orElse(false);
+
+	@Name(PREFIX + "Load")
+	@Label("Load Model")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Load extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Model Size")
+		@DataAmount
+		long modelSize;
+
+		@Label("GPU Layers")
+		int gpuLayers;
+
+		@Label("Failed")
+		@Description("Whether loading failed or was cancelled")
+		boolean failed;
+	}
+
+	@Name(PREFIX + "Tokenize")
+	@Label("Tokenize")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Tokenize extends Event {
+		@Label("Text Length")
+		@Description("In chars or in UTF-8 bytes, depending on the input")
+		int textLength;
+
+		@Label("Token Count")
+		int tokenCount;
+	}
+
+	@Name(PREFIX + "DeTokenize")
+	@Label("De-Tokenize")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class DeTokenize extends Event {
+		@Label("Token Count")
+		int tokenCount;
+
+		@Label("Text Length")
+		@Description("In chars or in UTF-8 bytes, depending on the output")
+		int textLength;
+	}
+
+	@Name(PREFIX + "Decode")
+	@Label("Decode")
+	@Description("A write of user input or a read of generated tokens by a batch processor")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Decode extends Event {
+		@Label("Write")
+		@Description("Whether tokens were written (user input) or read (generated)")
+		boolean write;
+
+		@Label("Sequence Count")
+		int sequenceCount;
+
+		@Label("Token Count")
+		@Description("Tokens written or generated, for all sequences")
+		int tokenCount;
+
+		@Label("Batch Size")
+		@Description("Logical batch size of the context")
+		int batchSize;
+
+		@Label("Context Position")
+		int contextPosition;
+	}
+
+	@Name(PREFIX + "Sample")
+	@Label("Sample")
+	@Description("A call to a sampler implemented in Java, native sampling being part of the Decode events")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Sample extends Event {
+		@Label("Sampler")
+		String sampler;
+
+		@Label("Sequence Count")
+		int sequenceCount;
+
+		@Label("Candidate Count")
+		@Description("Candidates per sequence")
+		int candidateCount;
+	}
+
+	@Name(PREFIX + "Embed")
+	@Label("Compute Embeddings")
+	@Category({ "jjml", CATEGORY })
+	@Enabled(false)
+	@StackTrace(false)
+	static class Embed extends Event {
+		@Label("Sequence Count")
+		int sequenceCount;
+
+		@Label("Token Count")
+		int tokenCount;
+
+		@Label("Embedding Count")
+		int embeddingCount;
+
+		@Label("Embedding Size")
+		int embeddingSize;
+	}
+
+	/** singleton */
+	private LlamaCppEvents() {
+	}
+}
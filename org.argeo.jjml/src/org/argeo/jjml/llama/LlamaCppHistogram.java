@@ -0,0 +1,178 @@
+package org.argeo.jjml.llama;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative long values with a bounded relative
+ * error, in the spirit of HdrHistogram. Values below
+ * 2<sup>precisionBits</sup> are counted exactly, larger values in log-linear
+ * buckets whose width is at most 1/2<sup>precisionBits-1</sup> of their
+ * value. Recording does not allocate and does not lock.
+ */
+public class LlamaCppHistogram {
+	/** Default precision, that is a relative error below 1.6%. */
+	public final static int DEFAULT_PRECISION_BITS = 7;
+
+	private final int precisionBits;
+	private final int subBucketCount;
+	private final int subBucketHalf;
+
+	private final AtomicLongArray counts;
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final LongAccumulator min = new LongAccumulator(Math::min, Long.MAX_VALUE);
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	public LlamaCppHistogram() {
+		this(DEFAULT_PRECISION_BITS);
+	}
+
+	/**
+	 * @param precisionBits the number of significant bits, between 1 and 16
+	 */
+	public LlamaCppHistogram(int precisionBits) {
+		if (precisionBits < 1 || precisionBits > 16)
+			throw new IllegalArgumentException("Precision must be between 1 and 16 bits");
+		this.precisionBits = precisionBits;
+		this.subBucketCount = 1 << precisionBits;
+		this.subBucketHalf = subBucketCount >> 1;
+		this.counts = new AtomicLongArray(subBucketCount + (Long.SIZE - precisionBits) * subBucketHalf);
+	}
+
+	/*
+	 * RECORDING
+	 */
+	/**
+	 * Records a value.
+	 *
+	 * @throws IllegalArgumentException if the value is negative
+	 */
+	public void record(long value) throws IllegalArgumentException {
+		record(value, 1);
+	}
+
+	/**
+	 * Records the same value multiple times.
+	 *
+	 * @throws IllegalArgumentException if the value or the count is negative
+	 */
+	public void record(long value, long times) throws IllegalArgumentException {
+		if (value < 0)
+			throw new IllegalArgumentException("Value " + value + " is negative");
+		if (times < 0)
+			throw new IllegalArgumentException("Count " + times + " is negative");
+		if (times == 0)
+			return;
+		counts.addAndGet(index(value), times);
+		count.add(times);
+		total.add(value * times);
+		min.accumulate(value);
+		max.accumulate(value);
+	}
+
+	/** Resets all the counts. Not atomic with regard to concurrent recording. */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++)
+			counts.set(i, 0);
+		count.reset();
+		total.reset();
+		min.reset();
+		max.reset();
+	}
+
+	/** A copy of this histogram, typically to be used as a snapshot. */
+	public LlamaCppHistogram copy() {
+		LlamaCppHistogram res = new LlamaCppHistogram(precisionBits);
+		for (int i = 0; i < counts.length(); i++) {
+			long c = counts.get(i);
+			if (c != 0)
+				res.counts.set(i, c);
+		}
+		res.count.add(count.sum());
+		res.total.add(total.sum());
+		res.min.accumulate(min.get());
+		res.max.accumulate(max.get());
+		return res;
+	}
+
+	/*
+	 * STATISTICS
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/** The sum of all recorded values. */
+	public long getTotal() {
+		return total.sum();
+	}
+
+	/** The smallest recorded value, or 0 if none was recorded. */
+	public long getMin() {
+		return getCount() == 0 ? 0 : min.get();
+	}
+
+	/** The largest recorded value, or 0 if none was recorded. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/** The mean of the recorded values, or 0 if none was recorded. */
+	public double getMean() {
+		long n = getCount();
+		return n == 0 ? 0 : (double) getTotal() / n;
+	}
+
+	/**
+	 * The value below or equal to which this percentage of the recorded values
+	 * fall, within the precision of this histogram, and capped by the largest
+	 * recorded value.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the value, or 0 if none was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("Percentile " + percentile + " is not between 0 and 100");
+		long n = getCount();
+		if (n == 0)
+			return 0;
+		long threshold = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long cumulated = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			cumulated += counts.get(i);
+			if (cumulated >= threshold)
+				return Math.min(getMax(), highestEquivalentValue(i));
+		}
+		return getMax();
+	}
+
+	/*
+	 * BUCKETS
+	 */
+	int index(long value) {
+		if (value < subBucketCount)
+			return (int) value;
+		int highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int shift = highestBit - precisionBits + 1;
+		return subBucketCount + (shift - 1) * subBucketHalf + (int) ((value >>> shift) - subBucketHalf);
+	}
+
+	long highestEquivalentValue(int index) {
+		if (index < subBucketCount)
+			return index;
+		int k = index - subBucketCount;
+		int shift = k / subBucketHalf + 1;
+		long subBucket = k % subBucketHalf + subBucketHalf;
+		long next = (subBucket + 1) << shift;
+		return next <= 0 ? Long.MAX_VALUE : next - 1; // overflow
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ", min=" + getMin() + ", p50=" + getValueAtPercentile(50) + ", p99="
+				+ getValueAtPercentile(99) + ", max=" + getMax();
+	}
+}
@@ -0,0 +1,40 @@
+package org.argeo.jjml.llama;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A sampler implemented in Java which selects the next token of all the
+ * active sequences of a {@link LlamaCppBatchProcessor} at once, after each
+ * decode. Contrary to {@link LlamaCppJavaSampler}, there is a single upcall
+ * per decode step, whatever the number of sequences, and the buffers are
+ * reused.
+ *
+ * @see LlamaCppBatchProcessor#LlamaCppBatchProcessor(LlamaCppContext,
+ *      LlamaCppJavaBatchSampler, java.util.Set)
+ */
+@FunctionalInterface
+public interface LlamaCppJavaBatchSampler {
+	/**
+	 * Selects the next token of each active sequence. The arguments are only
+	 * valid during the call and must not be kept.
+	 *
+	 * @param logits          the logits of the last decode, as consecutive rows
+	 *                        of vocabulary size
+	 * @param vocabularySize  the size of a row of logits
+	 * @param count           the number of active sequences, that is the number
+	 *                        of valid elements in the following arrays
+	 * @param rows            the row of logits of each active sequence
+	 * @param sequenceIndices the index of each active sequence within the
+	 *                        processor
+	 * @param positions       the position in the context of the token to select
+	 * @param selected        where to write the selected token of each active
+	 *                        sequence
+	 */
+	void sample(FloatBuffer logits, int vocabularySize, int count, int[] rows, int[] sequenceIndices, int[] positions,
+			int[] selected);
+
+	/** Called when user input is completed. Does nothing by default. */
+	default void reset() {
+
+	}
+}
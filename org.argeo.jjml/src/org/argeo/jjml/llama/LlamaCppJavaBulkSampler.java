@@ -0,0 +1,168 @@
+package org.argeo.jjml.llama;
+
+/**
+ * A llama.cpp sampler implemented in Java, working on the candidates as
+ * separate buffers of ids, logits and probabilities. Use
+ * {@link LlamaCppSamplers#newJavaSampler(LlamaCppJavaBulkSampler)} in order to
+ * get the related {@link LlamaCppNativeSampler} to be added to a sampler chain.
+ * <p>
+ * Compared to {@link LlamaCppJavaSampler}, the candidates are reused from one
+ * call to the next and can be processed with bulk operations.
+ * </p>
+ */
+public interface LlamaCppJavaBulkSampler {
+	/**
+	 * Apply sampling. The candidates can be reordered (in which case they must be
+	 * flagged as not sorted) and truncated.
+	 *
+	 * @return the selected index (not a token) or a negative number if unchanged.
+	 * @throws IndexOutOfBoundsException (from native) if the selected index is
+	 *                                   not lower than the size of the
+	 *                                   candidates
+	 */
+	long apply(LlamaCppCandidates candidates);
+
+	/** Does nothing by default. */
+	default void accept(int token) {
+
+	}
+
+	/** Does nothing by default. */
+	default void reset() {
+
+	}
+
+	default String getName() {
+		return getClass().getName();
+	}
+
+	/*
+	 * STANDARD SAMPLERS
+	 */
+	/** Selects the candidate with the highest logit. */
+	static class Greedy implements LlamaCppJavaBulkSampler {
+		public Greedy() {
+		}
+
+		@Override
+		public long apply(LlamaCppCandidates candidates) {
+			return candidates.argmax();
+		}
+	}
+
+	/** Keeps the <code>k</code> candidates with the highest logits. */
+	static class TopK implements LlamaCppJavaBulkSampler {
+		private final int k;
+
+		public TopK(int k) {
+			this.k = k;
+		}
+
+		@Override
+		public long apply(LlamaCppCandidates candidates) {
+			if (k > 0 && candidates.size() > 0)
+				candidates.sortDescending(k);
+			return -1;
+		}
+	}
+
+	/**
+	 * Keeps the most probable candidates whose cumulative probability reaches
+	 * <code>p</code>.
+	 */
+	static class TopP implements LlamaCppJavaBulkSampler {
+		private final float p;
+		private final int minKeep;
+
+		public TopP(float p, int minKeep) {
+			this.p = p;
+			this.minKeep = minKeep;
+		}
+
+		@Override
+		public long apply(LlamaCppCandidates candidates) {
+			int size = candidates.size();
+			if (p >= 1f || size == 0)
+				return -1;
+			candidates.sortDescending(size);
+			candidates.softmax();
+			float cumulative = 0;
+			for (int i = 0; i < size; i++) {
+				cumulative += candidates.probs().get(i);
+				if (cumulative >= p && i + 1 >= minKeep) {
+					candidates.truncate(i + 1);
+					break;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Keeps the candidates whose probability is at least <code>p</code> times
+	 * the probability of the most likely one.
+	 */
+	static class MinP implements LlamaCppJavaBulkSampler {
+		private final float p;
+		private final int minKeep;
+
+		public MinP(float p, int minKeep) {
+			this.p = p;
+			this.minKeep = minKeep;
+		}
+
+		@Override
+		public long apply(LlamaCppCandidates candidates) {
+			int size = candidates.size();
+			if (p <= 0f || size <= 1)
+				return -1;
+			float maxLogit = candidates.logits().get(candidates.argmax());
+			float threshold = maxLogit + (float) Math.log(p);
+			if (candidates.isSorted()) {
+				int count = 1;
+				while (count < size && candidates.logits().get(count) >= threshold)
+					count++;
+				candidates.truncate(Math.min(Math.max(count, minKeep), size));
+			} else {
+				int count = 0;
+				for (int i = 0; i < size; i++)
+					if (candidates.logits().get(i) >= threshold)
+						count++;
+				if (count >= minKeep)
+					candidates.retainLogitsAbove(threshold);
+				else
+					candidates.sortDescending(minKeep);
+			}
+			return -1;
+		}
+	}
+
+	/** Divides the logits by the temperature. */
+	static class Temperature implements LlamaCppJavaBulkSampler {
+		private final float temp;
+
+		public Temperature(float temp) {
+			this.temp = temp;
+		}
+
+		@Override
+		public long apply(LlamaCppCandidates candidates) {
+			if (candidates.size() == 0)
+				return -1;
+			if (temp <= 0f) {
+				// only the most likely candidate remains possible
+				int best = candidates.argmax();
+				if (best != 0) {
+					candidates.ids().put(0, candidates.ids().get(best));
+					candidates.logits().put(0, candidates.logits().get(best));
+					candidates.probs().put(0, candidates.probs().get(best));
+				}
+				candidates.truncate(1);
+				candidates.setSorted(true);
+			} else {
+				candidates.scaleLogits(1f / temp);
+			}
+			return -1;
+		}
+	}
+}
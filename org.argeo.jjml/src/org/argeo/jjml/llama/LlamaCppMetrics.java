@@ -0,0 +1,281 @@
+package org.argeo.jjml.llama;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request-level latency and throughput metrics of a
+ * {@link LlamaCppBatchProcessor}. Durations are in nanoseconds and throughputs
+ * in milli-tokens per second, so that they can be recorded in
+ * {@link LlamaCppHistogram}s. Generated tokens are timed at each decoding
+ * step, as recorded natively during a read (see
+ * {@link LlamaCppBatchProcessor#readBatchAsync(java.nio.IntBuffer[], java.util.concurrent.CompletableFuture[], long[])}),
+ * so that time to first token and inter-token latency do not depend on the
+ * size of the reads.
+ */
+public class LlamaCppMetrics {
+	private final LlamaCppHistogram queueWait = new LlamaCppHistogram();
+	private final LlamaCppHistogram timeToFirstToken = new LlamaCppHistogram();
+	private final LlamaCppHistogram interTokenLatency = new LlamaCppHistogram();
+	private final LlamaCppHistogram promptThroughput = new LlamaCppHistogram();
+	private final LlamaCppHistogram generationThroughput = new LlamaCppHistogram();
+
+	private final LongAdder requestCount = new LongAdder();
+	private final LongAdder promptTokenCount = new LongAdder();
+	private final LongAdder generatedTokenCount = new LongAdder();
+
+	public LlamaCppMetrics() {
+	}
+
+	/**
+	 * Starts tracking a request, the arrival time being now.
+	 *
+	 * @see Request#started()
+	 */
+	public Request newRequest() {
+		return new Request(System.nanoTime());
+	}
+
+	/** An immutable copy of the current state. */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/** Resets all metrics. Not atomic with regard to concurrent requests. */
+	public void reset() {
+		queueWait.reset();
+		timeToFirstToken.reset();
+		interTokenLatency.reset();
+		promptThroughput.reset();
+		generationThroughput.reset();
+		requestCount.reset();
+		promptTokenCount.reset();
+		generatedTokenCount.reset();
+	}
+
+	private static long milliTokensPerSecond(long tokens, long durationNs) {
+		if (durationNs <= 0)
+			return 0;
+		return tokens * TimeUnit.SECONDS.toNanos(1) * 1000 / durationNs;
+	}
+
+	/**
+	 * The timings of a single request, which must not be used by multiple
+	 * threads concurrently.
+	 */
+	public class Request {
+		private final long arrival;
+		private long start;
+		private long promptEnd = 0;
+		private long last = 0;
+		private long generated = 0;
+		private boolean completed = false;
+
+		private Request(long arrival) {
+			this.arrival = arrival;
+			this.start = arrival;
+		}
+
+		/**
+		 * Signals that the request leaves the queue where it has waited for the
+		 * processor, recording the time since its arrival. Queue wait is not
+		 * recorded if it is not called.
+		 */
+		public void started() {
+			start = System.nanoTime();
+			queueWait.record(start - arrival);
+		}
+
+		/** Signals that the prompt has been decoded. */
+		public void promptProcessed(int tokenCount) {
+			promptEnd = System.nanoTime();
+			last = promptEnd;
+			promptTokenCount.add(tokenCount);
+			promptThroughput.record(milliTokensPerSecond(tokenCount, promptEnd - start));
+		}
+
+		/**
+		 * Signals that generated tokens have been made available now, as if they
+		 * had been generated at once.
+		 */
+		public void generated(int tokenCount) {
+			generated(System.nanoTime(), tokenCount);
+		}
+
+		/**
+		 * Signals the tokens generated by a read, one decoding step after the other.
+		 *
+		 * @param tokenTimes  the times of each decoding step, as filled by the read
+		 * @param tokenCounts the number of tokens generated by each sequence
+		 */
+		public void generated(long[] tokenTimes, int... tokenCounts) {
+			int steps = 0;
+			for (int count : tokenCounts)
+				steps = Math.max(steps, count);
+			if (steps > tokenTimes.length)
+				throw new IllegalArgumentException(
+						"Only " + tokenTimes.length + " token times for " + steps + " decoding steps");
+			for (int step = 0; step < steps; step++) {
+				int sequences = 0;
+				for (int count : tokenCounts)
+					if (count > step)
+						sequences++;
+				generated(tokenTimes[step], sequences);
+			}
+		}
+
+		/**
+		 * Signals that tokens have been generated at this time, as returned by
+		 * {@link System#nanoTime()}, typically one per sequence at a given decoding
+		 * step.
+		 */
+		public void generated(long time, int tokenCount) {
+			if (tokenCount <= 0)
+				return;
+			if (generated == 0)
+				timeToFirstToken.record(Math.max(0, time - arrival));
+			else
+				interTokenLatency.record(Math.max(0, time - last), tokenCount);
+			last = time;
+			generated += tokenCount;
+			generatedTokenCount.add(tokenCount);
+		}
+
+		/** Signals that generation is completed. Subsequent calls are ignored. */
+		public void completed() {
+			if (completed)
+				return;
+			completed = true;
+			requestCount.increment();
+			if (generated > 0)
+				generationThroughput.record(
+						milliTokensPerSecond(generated, last - (promptEnd != 0 ? promptEnd : start)));
+		}
+	}
+
+	/** An immutable copy of the metrics. */
+	public static class Snapshot {
+		private final LlamaCppHistogram queueWait;
+		private final LlamaCppHistogram timeToFirstToken;
+		private final LlamaCppHistogram interTokenLatency;
+		private final LlamaCppHistogram promptThroughput;
+		private final LlamaCppHistogram generationThroughput;
+		private final long requestCount;
+		private final long promptTokenCount;
+		private final long generatedTokenCount;
+
+		private Snapshot(LlamaCppMetrics metrics) {
+			queueWait = metrics.queueWait.copy();
+			timeToFirstToken = metrics.timeToFirstToken.copy();
+			interTokenLatency = metrics.interTokenLatency.copy();
+			promptThroughput = metrics.promptThroughput.copy();
+			generationThroughput = metrics.generationThroughput.copy();
+			requestCount = metrics.requestCount.sum();
+			promptTokenCount = metrics.promptTokenCount.sum();
+			generatedTokenCount = metrics.generatedTokenCount.sum();
+		}
+
+		/** Time waited by the requests before being processed, in ns. */
+		public LlamaCppHistogram getQueueWait() {
+			return queueWait;
+		}
+
+		/** Time between arrival and first generated token, in ns. */
+		public LlamaCppHistogram getTimeToFirstToken() {
+			return timeToFirstToken;
+		}
+
+		/** Time between consecutive tokens of a sequence, in ns. */
+		public LlamaCppHistogram getInterTokenLatency() {
+			return interTokenLatency;
+		}
+
+		/** Prompt tokens decoded per second for each request, in milli-tokens/s. */
+		public LlamaCppHistogram getPromptThroughput() {
+			return promptThroughput;
+		}
+
+		/** Tokens generated per second for each request, in milli-tokens/s. */
+		public LlamaCppHistogram getGenerationThroughput() {
+			return generationThroughput;
+		}
+
+		/** Number of completed requests. */
+		public long getRequestCount() {
+			return requestCount;
+		}
+
+		public long getPromptTokenCount() {
+			return promptTokenCount;
+		}
+
+		public long getGeneratedTokenCount() {
+			return generatedTokenCount;
+		}
+
+		/**
+		 * Writes these metrics in the Prometheus text exposition format, durations
+		 * being converted to seconds and throughputs to tokens per second.
+		 *
+		 * @param prefix prefix of the metrics names, e.g. <code>jjml_llama</code>
+		 */
+		public void writePrometheus(Appendable out, String prefix) throws IOException {
+			writeCounter(out, prefix + "_requests_total", "Completed requests", requestCount);
+			writeCounter(out, prefix + "_prompt_tokens_total", "Prompt tokens decoded", promptTokenCount);
+			writeCounter(out, prefix + "_generated_tokens_total", "Tokens generated", generatedTokenCount);
+			writeSummary(out, prefix + "_queue_wait_seconds", "Time waited before being processed", queueWait, 1e-9);
+			writeSummary(out, prefix + "_time_to_first_token_seconds", "Time to first token", timeToFirstToken, 1e-9);
+			writeSummary(out, prefix + "_inter_token_latency_seconds", "Time between consecutive tokens of a sequence",
+					interTokenLatency, 1e-9);
+			writeSummary(out, prefix + "_prompt_tokens_per_second", "Prompt throughput per request",
+					promptThroughput, 1e-3);
+			writeSummary(out, prefix + "_generation_tokens_per_second", "Generation throughput per request",
+					generationThroughput, 1e-3);
+		}
+
+		/** The Prometheus text exposition format, with the jjml_llama prefix. */
+		public String toPrometheus() {
+			StringBuilder sb = new StringBuilder();
+			try {
+				writePrometheus(sb, "jjml_llama");
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot write to string builder", e);
+			}
+			return sb.toString();
+		}
+
+		private static void writeCounter(Appendable out, String name, String help, long value) throws IOException {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(" counter\n");
+			out.append(name).append(' ').append(Long.toString(value)).append('\n');
+		}
+
+		private static void writeSummary(Appendable out, String name, String help, LlamaCppHistogram histogram,
+				double scale) throws IOException {
+			out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			out.append("# TYPE ").append(name).append(" summary\n");
+			for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+				out.append(name).append("{quantile=\"").append(Double.toString(quantile)).append("\"} ");
+				out.append(format(histogram.getValueAtPercentile(quantile * 100) * scale)).append('\n');
+			}
+			out.append(name).append("_sum ").append(format(histogram.getTotal() * scale)).append('\n');
+			out.append(name).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+		}
+
+		private static String format(double value) {
+			return String.format(Locale.ROOT, "%.9g", value);
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT,
+					"%d requests, TTFT p50 %.1f ms, ITL p50 %.1f ms, prompt %.1f t/s, generation %.1f t/s",
+					requestCount, timeToFirstToken.getValueAtPercentile(50) / 1e6,
+					interTokenLatency.getValueAtPercentile(50) / 1e6, promptThroughput.getMean() / 1e3,
+					generationThroughput.getMean() / 1e3);
+		}
+	}
+}
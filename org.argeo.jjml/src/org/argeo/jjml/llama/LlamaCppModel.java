@@ -60,6 +60,7 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 	private final String description;
 	private final long modelSize;
 	private final int endOfGenerationToken;
+	private final LlamaCppTokenAttributes tokenAttributes;
 
 	LlamaCppModel(long pointer, Path localPath, ModelParams initParams) {
 		this.pointer = pointer;
@@ -84,6 +85,9 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 		description = doGetDescription();
 		modelSize = doGetModelSize();
 		endOfGenerationToken = doGetEndOfGenerationToken();
+		int[] attributes = new int[vocabularySize];
+		doGetTokenAttributes(attributes);
+		tokenAttributes = new LlamaCppTokenAttributes(attributes, doGetEndOfGenerationTokens());
 	}
 
 	/*
@@ -117,6 +121,10 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 
 	private native int doGetEndOfGenerationToken();
 
+	private native void doGetTokenAttributes(int[] attributes);
+
+	private native int[] doGetEndOfGenerationTokens();
+
 	/*
 	 * USABLE METHODS
 	 */
@@ -214,6 +222,11 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 		return endOfGenerationToken;
 	}
 
+	/** The attributes of all tokens, such as end of generation or control. */
+	public LlamaCppTokenAttributes getTokenAttributes() {
+		return tokenAttributes;
+	}
+
 	/*
 	 * STATIC UTILITIES
 	 */
@@ -232,6 +245,14 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 		return res;
 	}
 
+	/**
+	 * Loads only the vocabulary of a model, without its weights, typically for
+	 * tokenization services. Such a model cannot be used to create a context.
+	 */
+	public static LlamaCppModel loadVocabularyOnly(Path localPath) throws IOException {
+		return load(localPath, defaultModelParams().with(ModelParam.vocab_only, true));
+	}
+
 	/**
 	 * Loads a model synchronously. For more fine-grained control (following
 	 * progress, cancelling, executor used) use
@@ -259,15 +280,30 @@ public class LlamaCppModel implements LongSupplier, AutoCloseable {
 
 		FutureTask<LlamaCppModel> future = new FutureTask<>(() -> {
 			checkInitParams(initParams);
-			long begin = System.currentTimeMillis();
-			long pointer = doInit(localPath.toString(), initParams, (progress) -> {
-				if (progressCallback != null)
-					progressCallback.accept(progress);
-				return !Thread.interrupted();
-			});
-			logger.log(Level.INFO, "Model initialization took " + (System.currentTimeMillis() - begin) + " ms");
-			LlamaCppModel model = new LlamaCppModel(pointer, localPath, initParams);
-			return model;
+			LlamaCppEvents.Load event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Load() : null;
+			if (event != null)
+				event.begin();
+			LlamaCppModel model = null;
+			try {
+				long begin = System.currentTimeMillis();
+				long pointer = doInit(localPath.toString(), initParams, (progress) -> {
+					if (progressCallback != null)
+						progressCallback.accept(progress);
+					return !Thread.interrupted();
+				});
+				logger.log(Level.INFO, "Model initialization took " + (System.currentTimeMillis() - begin) + " ms");
+				model = new LlamaCppModel(pointer, localPath, initParams);
+				return model;
+			} finally {
+				if (event != null && event.shouldCommit()) {
+					event.path = localPath.toString();
+					event.gpuLayers = initParams.n_gpu_layers();
+					event.failed = model == null;
+					if (model != null)
+						event.modelSize = model.getModelSize();
+					event.commit();
+				}
+			}
 		});
 
 		if (executor == null) {
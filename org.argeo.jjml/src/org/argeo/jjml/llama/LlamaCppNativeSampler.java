@@ -6,10 +6,18 @@ import java.util.function.LongSupplier;
 public class LlamaCppNativeSampler implements LongSupplier, AutoCloseable, Cloneable {
 	private final long pointer;
 
+	/** The seed, if this is a distribution sampler with a fixed one. */
+	private final int seed;
+
 	private LlamaCppSamplerChain samplerChain = null;
 
 	public LlamaCppNativeSampler(long pointer) {
+		this(pointer, LlamaCppSamplers.LLAMA_DEFAULT_SEED);
+	}
+
+	LlamaCppNativeSampler(long pointer, int seed) {
 		this.pointer = pointer;
+		this.seed = seed;
 	}
 
 	private native void doReset();
@@ -18,6 +26,10 @@ public class LlamaCppNativeSampler implements LongSupplier, AutoCloseable, Clone
 
 	private native long doClone();
 
+	private native boolean doIsClonable();
+
+	private native void doReseed(int seed);
+
 	@Override
 	public void close() throws RuntimeException {
 		if (samplerChain == null)
@@ -34,13 +46,40 @@ public class LlamaCppNativeSampler implements LongSupplier, AutoCloseable, Clone
 
 	@Override
 	protected Object clone() throws CloneNotSupportedException {
+		// llama.cpp would abort the whole process
+		if (!isClonable())
+			throw new CloneNotSupportedException("Sampler " + pointer + " cannot be cloned");
 		return new LlamaCppNativeSampler(doClone());
 	}
 
+	/**
+	 * Whether this sampler (and, for a chain, all its samplers) can be cloned.
+	 * Samplers implemented in Java cannot.
+	 */
+	public boolean isClonable() {
+		return doIsClonable();
+	}
+
 	public void reset() {
 		doReset();
 	}
 
+	/**
+	 * Replaces the distribution samplers of this chain by new ones with this
+	 * seed.
+	 */
+	void reseed(int seed) {
+		doReseed(seed);
+	}
+
+	/**
+	 * The fixed seed of this sampler, or {@link LlamaCppSamplers#LLAMA_DEFAULT_SEED}
+	 * if it is random or not relevant.
+	 */
+	int getSeed() {
+		return seed;
+	}
+
 	void setSamplerChain(LlamaCppSamplerChain currentChain) {
 		this.samplerChain = currentChain;
 	}
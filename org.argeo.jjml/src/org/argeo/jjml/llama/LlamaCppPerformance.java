@@ -0,0 +1,247 @@
+package org.argeo.jjml.llama;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A snapshot of the performance counters of a {@link LlamaCppContext}, and
+ * optionally of a {@link LlamaCppSamplerChain}. Times are in milliseconds,
+ * unless specified otherwise.
+ *
+ * @see llama.h - llama_perf_context, llama_perf_sampler
+ */
+public final class LlamaCppPerformance {
+	/** Size of the context data, as set by native. */
+	static final int CONTEXT_DATA_SIZE = 7;
+	/** Size of the sampler data, as set by native. */
+	static final int SAMPLER_DATA_SIZE = 2;
+	/** Number of log2 buckets of a timing histogram, as set by native. */
+	static final int TIMINGS_BUCKETS = 64;
+	/** Size of the data of each phase: count, total, max and buckets. */
+	static final int TIMINGS_STRIDE = 3 + TIMINGS_BUCKETS;
+
+	/** The phases of a batch processor whose durations can be recorded. */
+	public enum Phase {
+		/** Decoding user input. */
+		WRITE,
+		/** Decoding a generated token for each sequence. */
+		READ,
+		/** Sampling a token for each sequence, after each decode. */
+		SAMPLE;
+	}
+
+	// context
+	private final double startTime;
+	private final double loadTime;
+	private final double promptEvalTime;
+	private final double evalTime;
+	private final int promptEvalCount;
+	private final int evalCount;
+	private final long decodeCount;
+
+	// sampler
+	private final double sampleTime;
+	private final int sampleCount;
+
+	private final Timings[] timings;
+
+	LlamaCppPerformance(double[] contextData, double[] samplerData, long[] timingsData) {
+		assert contextData.length == CONTEXT_DATA_SIZE;
+		startTime = contextData[0];
+		loadTime = contextData[1];
+		promptEvalTime = contextData[2];
+		evalTime = contextData[3];
+		promptEvalCount = (int) contextData[4];
+		evalCount = (int) contextData[5];
+		decodeCount = (long) contextData[6];
+
+		if (samplerData != null) {
+			assert samplerData.length == SAMPLER_DATA_SIZE;
+			sampleTime = samplerData[0];
+			sampleCount = (int) samplerData[1];
+		} else {
+			sampleTime = 0;
+			sampleCount = 0;
+		}
+
+		assert timingsData.length == Phase.values().length * TIMINGS_STRIDE;
+		timings = new Timings[Phase.values().length];
+		for (Phase phase : Phase.values())
+			timings[phase.ordinal()] = new Timings(phase, timingsData, phase.ordinal() * TIMINGS_STRIDE);
+	}
+
+	/*
+	 * CONTEXT
+	 */
+	/** Time at which the context was created. */
+	public double getStartTime() {
+		return startTime;
+	}
+
+	public double getLoadTime() {
+		return loadTime;
+	}
+
+	/** Time spent decoding batches of more than one token. */
+	public double getPromptEvalTime() {
+		return promptEvalTime;
+	}
+
+	/** Time spent decoding batches of a single token. */
+	public double getEvalTime() {
+		return evalTime;
+	}
+
+	public int getPromptEvalCount() {
+		return promptEvalCount;
+	}
+
+	public int getEvalCount() {
+		return evalCount;
+	}
+
+	/**
+	 * The number of calls to llama_decode, each resulting in at least one graph
+	 * computation.
+	 */
+	public long getDecodeCount() {
+		return decodeCount;
+	}
+
+	/** Prompt tokens evaluated per second, or 0 if none was. */
+	public double getPromptEvalTokensPerSecond() {
+		return tokensPerSecond(promptEvalCount, promptEvalTime);
+	}
+
+	/** Generated tokens evaluated per second, or 0 if none was. */
+	public double getEvalTokensPerSecond() {
+		return tokensPerSecond(evalCount, evalTime);
+	}
+
+	/*
+	 * SAMPLER
+	 */
+	/** Time spent in the sampler chain, 0 if no chain was provided. */
+	public double getSampleTime() {
+		return sampleTime;
+	}
+
+	/** Number of tokens sampled by the chain, 0 if no chain was provided. */
+	public int getSampleCount() {
+		return sampleCount;
+	}
+
+	/** Tokens sampled per second, or 0 if none was. */
+	public double getSampleTokensPerSecond() {
+		return tokensPerSecond(sampleCount, sampleTime);
+	}
+
+	/*
+	 * TIMINGS
+	 */
+	/**
+	 * The durations recorded natively for this phase, which are empty unless
+	 * timings have been enabled.
+	 *
+	 * @see LlamaCppContext#setTimingsEnabled(boolean)
+	 */
+	public Timings getTimings(Phase phase) {
+		Objects.requireNonNull(phase);
+		return timings[phase.ordinal()];
+	}
+
+	private static double tokensPerSecond(int count, double timeMs) {
+		return timeMs > 0 ? 1e3 * count / timeMs : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"prompt eval: %d tokens in %.2f ms (%.2f t/s), eval: %d tokens in %.2f ms (%.2f t/s), %d decodes, sample: %d tokens in %.2f ms",
+				promptEvalCount, promptEvalTime, getPromptEvalTokensPerSecond(), evalCount, evalTime,
+				getEvalTokensPerSecond(), decodeCount, sampleCount, sampleTime);
+	}
+
+	/**
+	 * A histogram of durations in nanoseconds, with log2 buckets: bucket 0
+	 * counts zero durations and bucket i durations in [2^(i-1), 2^i) ns.
+	 */
+	public static final class Timings {
+		private final Phase phase;
+		private final long count;
+		private final long total;
+		private final long max;
+		private final long[] buckets;
+
+		Timings(Phase phase, long[] data, int offset) {
+			this.phase = phase;
+			this.count = data[offset];
+			this.total = data[offset + 1];
+			this.max = data[offset + 2];
+			this.buckets = Arrays.copyOfRange(data, offset + 3, offset + TIMINGS_STRIDE);
+		}
+
+		public Phase getPhase() {
+			return phase;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/** Sum of the durations, in ns. */
+		public long getTotal() {
+			return total;
+		}
+
+		/** Longest duration, in ns. */
+		public long getMax() {
+			return max;
+		}
+
+		/** Mean duration in ns, or 0 if none was recorded. */
+		public double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		/**
+		 * An upper bound of the duration in ns below which this fraction of the
+		 * durations fall, that is the upper limit of the bucket where it is reached,
+		 * capped by the longest duration.
+		 *
+		 * @param fraction between 0 and 1
+		 */
+		public long getPercentile(double fraction) {
+			if (fraction < 0 || fraction > 1)
+				throw new IllegalArgumentException("Fraction " + fraction + " is not between 0 and 1");
+			if (count == 0)
+				return 0;
+			long threshold = (long) Math.ceil(fraction * count);
+			long cumulated = 0;
+			for (int i = 0; i < buckets.length; i++) {
+				cumulated += buckets[i];
+				if (cumulated >= threshold && cumulated > 0) {
+					if (i == 0)
+						return 0;
+					else if (i == buckets.length - 1) // unbounded
+						return max;
+					else
+						return Math.min(max, (1L << i) - 1);
+				}
+			}
+			return max;
+		}
+
+		/** The count of each log2 bucket. */
+		public long[] getBuckets() {
+			return buckets.clone();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: %d in %.3f ms, mean %.1f us, p50 < %.1f us, p99 < %.1f us, max %.1f us", phase,
+					count, total / 1e6, getMean() / 1e3, getPercentile(0.5) / 1e3, getPercentile(0.99) / 1e3,
+					max / 1e3);
+		}
+	}
+}
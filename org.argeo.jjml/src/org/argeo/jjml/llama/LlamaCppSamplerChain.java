@@ -1,5 +1,7 @@
 package org.argeo.jjml.llama;
 
+import org.argeo.jjml.llama.params.DefaultSamplerChainParams;
+
 /**
  * A native llama.cpp sampler chain.
  * 
@@ -16,6 +18,16 @@ public class LlamaCppSamplerChain extends LlamaCppNativeSampler {
 
 	private native int doGetSize();
 
+	private native void doGetPerformance(double[] data);
+
+	private native void doResetPerformance();
+
+	/** Number of highest logits the chain can be restricted to, 0 for all. */
+	private int candidatesShortlist = 0;
+
+	/** The fixed seed of the distribution sampler, if any. */
+	private int seed = LlamaCppSamplers.LLAMA_DEFAULT_SEED;
+
 	public LlamaCppSamplerChain() {
 		super(doInit());
 	}
@@ -26,6 +38,20 @@ public class LlamaCppSamplerChain extends LlamaCppNativeSampler {
 			addSampler(sampler);
 	}
 
+	/** A native clone of this chain, with its own performance counters. */
+	private LlamaCppSamplerChain(long pointer, LlamaCppSamplerChain original) {
+		super(pointer);
+		this.seed = original.seed;
+		this.candidatesShortlist = original.candidatesShortlist;
+	}
+
+	/** Clones this chain and all its samplers, as a new chain. */
+	@Override
+	protected Object clone() throws CloneNotSupportedException {
+		LlamaCppNativeSampler cloned = (LlamaCppNativeSampler) super.clone();
+		return new LlamaCppSamplerChain(cloned.getAsLong(), this);
+	}
+
 	public void addSampler(LlamaCppNativeSampler sampler) {
 		// we cannot have a sampler shared between chain (or added twice), as it would
 		// cause problems when the chain is closed.
@@ -36,6 +62,55 @@ public class LlamaCppSamplerChain extends LlamaCppNativeSampler {
 
 		doAddSampler(sampler);
 		sampler.setSamplerChain(this);
+		if (sampler.getSeed() != LlamaCppSamplers.LLAMA_DEFAULT_SEED)
+			seed = sampler.getSeed();
+		// the added sampler may require other candidates (e.g. by raising logits)
+		candidatesShortlist = 0;
+	}
+
+	@Override
+	int getSeed() {
+		return seed;
+	}
+
+	/**
+	 * The number of candidates with the highest logits to which this chain can be
+	 * restricted without changing its result, or 0 if all candidates are
+	 * required.
+	 */
+	public int getCandidatesShortlist() {
+		return candidatesShortlist;
+	}
+
+	/**
+	 * Declares that this chain can be restricted to this number of candidates
+	 * with the highest logits, typically because it starts with non-negative
+	 * penalties followed by a top-k sampler. It is set by
+	 * {@link LlamaCppSamplers#newDefaultSampler(LlamaCppModel, DefaultSamplerChainParams)}
+	 * when applicable. It is reset to 0 when a sampler is added afterwards.
+	 *
+	 * @param candidatesShortlist the number of candidates, or 0 for all
+	 */
+	public void setCandidatesShortlist(int candidatesShortlist) {
+		if (candidatesShortlist < 0)
+			throw new IllegalArgumentException("Shortlist size cannot be negative");
+		this.candidatesShortlist = candidatesShortlist;
+	}
+
+	/**
+	 * Resets the sampling time and count of this chain.
+	 * 
+	 * @see LlamaCppContext#getPerformance(LlamaCppSamplerChain)
+	 */
+	public void resetPerformance() {
+		doResetPerformance();
+	}
+
+	/** The sampling time and count, to be used by {@link LlamaCppPerformance}. */
+	double[] getPerformanceData() {
+		double[] data = new double[LlamaCppPerformance.SAMPLER_DATA_SIZE];
+		doGetPerformance(data);
+		return data;
 	}
 
 }
@@ -8,6 +8,8 @@ import org.argeo.jjml.llama.params.DefaultSamplerChainParams;
  * @see llama.h - llama_sampler_init_*
  */
 public class LlamaCppSamplers {
+	/** The seed of a distribution sampler which is random at each reset. */
+	public final static int LLAMA_DEFAULT_SEED = 0xFFFFFFFF;
 
 	/*
 	 * NATIVE
@@ -48,6 +50,8 @@ public class LlamaCppSamplers {
 
 	private static native long doInitJavaSampler(LlamaCppJavaSampler javaSampler);
 
+	private static native long doInitJavaBulkSampler(LlamaCppCandidates candidates);
+
 	/*
 	 * DEFAULT CHAINS
 	 */
@@ -85,9 +89,32 @@ public class LlamaCppSamplers {
 			chain.addSampler(LlamaCppSamplers.newSamplerGreedy());
 //			chain.addSampler(LlamaCppSamplers.newJavaSampler(new LlamaCppJavaSampler.SimpleGreedy()));
 		}
+		chain.setCandidatesShortlist(candidatesShortlist(params));
 		return chain;
 	}
 
+	/**
+	 * The number of highest logits a default chain can be restricted to. Penalties
+	 * which can only lower logits change at most <code>penalty_last_n</code>
+	 * candidates, so that the top-k candidates after penalties are among the
+	 * <code>k + penalty_last_n</code> highest logits before penalties.
+	 */
+	static int candidatesShortlist(DefaultSamplerChainParams params) {
+		boolean lowersOnly = params.penalty_repeat() >= 1f && params.penalty_freq() >= 0f
+				&& params.penalty_present() >= 0f;
+		int lastN = params.penalty_last_n();
+		if (!lowersOnly || lastN < 0)
+			return 0;
+		int topK;
+		if (params.temp() > 0)
+			topK = params.top_k();
+		else
+			topK = Math.max(1, params.n_probs()); // greedy
+		if (topK <= 0)
+			return 0;
+		return topK + lastN;
+	}
+
 	/*
 	 * FACTORY
 	 */
@@ -147,14 +174,23 @@ public class LlamaCppSamplers {
 //	}
 
 	public static LlamaCppNativeSampler newSamplerDist(int seed) {
-		return new LlamaCppNativeSampler(doInitDist(seed));
+		return new LlamaCppNativeSampler(doInitDist(seed), seed);
 	}
 
 	public static LlamaCppNativeSampler newSamplerDist() {
 		return new LlamaCppNativeSampler(doInitDist());
 	}
 
-	public static LlamaCppNativeSampler newSamplerGrammar(LlamaCppModel model, String grammar, String root) {
+	/**
+	 * A grammar sampler. The grammar is parsed only once per model, grammar and
+	 * root, and the compiled grammar is then cloned for each new sampler, so that
+	 * it is cheap to create one per sequence. The cache keeps the 64 most recently
+	 * used grammars, and is freed when the model is closed.
+	 *
+	 * @throws IllegalArgumentException if the grammar cannot be parsed
+	 */
+	public static LlamaCppNativeSampler newSamplerGrammar(LlamaCppModel model, String grammar, String root)
+			throws IllegalArgumentException {
 		return new LlamaCppNativeSampler(doInitGrammar(model, grammar, root));
 	}
 
@@ -162,6 +198,14 @@ public class LlamaCppSamplers {
 		return new LlamaCppNativeSampler(doInitJavaSampler(javaSampler));
 	}
 
+	/**
+	 * A sampler implemented in Java, receiving the candidates as reused buffers
+	 * of ids, logits and probabilities.
+	 */
+	public static LlamaCppNativeSampler newJavaSampler(LlamaCppJavaBulkSampler javaSampler) {
+		return new LlamaCppNativeSampler(doInitJavaBulkSampler(new LlamaCppCandidates(javaSampler)));
+	}
+
 	/** singleton */
 	private LlamaCppSamplers() {
 	}
@@ -0,0 +1,96 @@
+package org.argeo.jjml.llama;
+
+import java.util.BitSet;
+import java.util.Objects;
+
+/**
+ * Attributes of all the tokens of a model, precomputed as bit sets, so that
+ * Java samplers, stop logic or grammar helpers can filter tokens without native
+ * calls. It is immutable and thread-safe.
+ *
+ * @see LlamaCppModel#getTokenAttributes()
+ */
+public final class LlamaCppTokenAttributes {
+	/** Token attributes which are tracked. */
+	public enum Attribute {
+		/** End of generation, as in <code>llama_token_is_eog</code>. */
+		END_OF_GENERATION(0), //
+		UNKNOWN(1 << 0), //
+		NORMAL(1 << 2), //
+		CONTROL(1 << 3), //
+		USER_DEFINED(1 << 4), //
+		BYTE(1 << 5), //
+		;
+
+		/** Mask in <code>enum llama_token_attr</code>, 0 if not there. */
+		private final int mask;
+
+		Attribute(int mask) {
+			this.mask = mask;
+		}
+	}
+
+	private final int size;
+	/** Bit sets words, indexed by {@link Attribute#ordinal()}. */
+	private final long[][] words;
+	private final int[] endOfGenerationTokens;
+
+	/**
+	 * @param attributes            the <code>llama_token_attr</code> bit field of
+	 *                              each token
+	 * @param endOfGenerationTokens the end of generation tokens
+	 */
+	LlamaCppTokenAttributes(int[] attributes, int[] endOfGenerationTokens) {
+		this.size = attributes.length;
+		this.endOfGenerationTokens = endOfGenerationTokens.clone();
+		Attribute[] values = Attribute.values();
+		words = new long[values.length][(size + Long.SIZE - 1) / Long.SIZE];
+		for (int token = 0; token < size; token++) {
+			for (Attribute attribute : values) {
+				if ((attributes[token] & attribute.mask) != 0)
+					words[attribute.ordinal()][token >>> 6] |= 1L << token;
+			}
+		}
+		long[] eog = words[Attribute.END_OF_GENERATION.ordinal()];
+		for (int token : endOfGenerationTokens)
+			eog[token >>> 6] |= 1L << token;
+	}
+
+	/** The number of tokens. */
+	public int size() {
+		return size;
+	}
+
+	/** Whether this token has this attribute. */
+	public boolean is(Attribute attribute, int token) {
+		Objects.checkIndex(token, size);
+		return (words[attribute.ordinal()][token >>> 6] & (1L << token)) != 0;
+	}
+
+	public boolean isEndOfGeneration(int token) {
+		return is(Attribute.END_OF_GENERATION, token);
+	}
+
+	public boolean isControl(int token) {
+		return is(Attribute.CONTROL, token);
+	}
+
+	/** A copy of the tokens having this attribute. */
+	public BitSet get(Attribute attribute) {
+		return BitSet.valueOf(words[attribute.ordinal()]);
+	}
+
+	/**
+	 * A copy of the words of the bit set of the tokens having this attribute,
+	 * token <code>i</code> being bit <code>i % 64</code> of word
+	 * <code>i / 64</code>, as in {@link BitSet#toLongArray()}.
+	 */
+	public long[] toLongArray(Attribute attribute) {
+		return words[attribute.ordinal()].clone();
+	}
+
+	/** A copy of the end of generation tokens. */
+	public int[] getEndOfGenerationTokens() {
+		return endOfGenerationTokens.clone();
+	}
+}
@@ -0,0 +1,148 @@
+package org.argeo.jjml.llama;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The UTF-8 pieces of all the tokens of a vocabulary, stored off-heap and
+ * immutable, so that de-tokenization, length computation or stop strings
+ * matching can be performed on the Java side without native calls. Pieces are
+ * raw: they are not post-processed like with
+ * {@link LlamaCppVocabulary#deTokenize(IntBuffer)} (e.g. leading space
+ * removal), so that they can be concatenated in a stream.
+ * <p>
+ * Control tokens (such as end of turn) are rendered in the table, and skipped
+ * when <code>special</code> is false. It is thread-safe.
+ *
+ * @see LlamaCppVocabulary#getPieces()
+ */
+public final class LlamaCppTokenPieces {
+	/** As in <code>enum llama_token_attr</code>. */
+	private final static int ATTR_CONTROL = 1 << 3;
+
+	private final ByteBuffer pieces;
+	private final IntBuffer offsets;
+	private final IntBuffer attributes;
+	private final int size;
+
+	LlamaCppTokenPieces(ByteBuffer pieces, IntBuffer offsets, IntBuffer attributes) {
+		this.pieces = pieces.asReadOnlyBuffer();
+		this.offsets = offsets.asReadOnlyBuffer();
+		this.attributes = attributes.asReadOnlyBuffer();
+		this.size = attributes.capacity();
+		assert offsets.capacity() == size + 1;
+	}
+
+	/*
+	 * TABLE
+	 */
+	/** The number of tokens. */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * The concatenated pieces of all the tokens, as a read-only buffer.
+	 *
+	 * @see #getOffsets()
+	 */
+	public ByteBuffer getPieces() {
+		return pieces.duplicate();
+	}
+
+	/**
+	 * The offsets of the pieces of all the tokens, as a read-only buffer whose
+	 * last value is the total size, so that the piece of token <code>i</code>
+	 * spans from <code>offsets[i]</code> to <code>offsets[i+1]</code>.
+	 */
+	public IntBuffer getOffsets() {
+		return offsets.duplicate();
+	}
+
+	/**
+	 * The attributes of this token, as the <code>llama_token_attr</code> bit
+	 * field.
+	 */
+	public int getAttributes(int token) {
+		return attributes.get(token);
+	}
+
+	/** Whether this is a control token, typically not rendered. */
+	public boolean isControl(int token) {
+		return (attributes.get(token) & ATTR_CONTROL) != 0;
+	}
+
+	/*
+	 * SINGLE TOKEN
+	 */
+	/** The length in bytes of the UTF-8 piece of this token. */
+	public int length(int token, boolean special) {
+		if (!special && isControl(token))
+			return 0;
+		return offsets.get(token + 1) - offsets.get(token);
+	}
+
+	/** The UTF-8 piece of this token, as a read-only buffer. */
+	public ByteBuffer piece(int token) {
+		ByteBuffer res = pieces.duplicate();
+		res.limit(offsets.get(token + 1)).position(offsets.get(token));
+		return res.slice();
+	}
+
+	/*
+	 * MULTIPLE TOKENS
+	 */
+	/**
+	 * The length in bytes of the concatenated UTF-8 pieces of these tokens. The
+	 * position of the input is not changed.
+	 */
+	public int length(IntBuffer tokens, boolean special) {
+		int res = 0;
+		for (int i = tokens.position(); i < tokens.limit(); i++)
+			res += length(tokens.get(i), special);
+		return res;
+	}
+
+	/**
+	 * Writes the concatenated UTF-8 pieces of these tokens, which are all
+	 * consumed.
+	 *
+	 * @return the number of bytes written
+	 * @throws IndexOutOfBoundsException if the output is too small, in which case
+	 *                                   nothing is written or consumed
+	 */
+	public int deTokenize(IntBuffer tokens, ByteBuffer utf8, boolean special) throws IndexOutOfBoundsException {
+		int length = length(tokens, special);
+		if (length > utf8.remaining())
+			throw new IndexOutOfBoundsException(length);
+		ByteBuffer view = pieces.duplicate();
+		while (tokens.hasRemaining()) {
+			int token = tokens.get();
+			if (!special && isControl(token))
+				continue;
+			view.limit(offsets.get(token + 1)).position(offsets.get(token));
+			utf8.put(view);
+		}
+		return length;
+	}
+
+	/**
+	 * Whether the concatenated UTF-8 pieces of these tokens end with these
+	 * bytes, typically a stop string. The position of the input is not changed.
+	 */
+	public boolean endsWith(IntBuffer tokens, byte[] suffix, boolean special) {
+		int remaining = suffix.length;
+		for (int i = tokens.limit() - 1; i >= tokens.position() && remaining > 0; i--) {
+			int token = tokens.get(i);
+			if (!special && isControl(token))
+				continue;
+			int start = offsets.get(token);
+			for (int j = offsets.get(token + 1) - 1; j >= start && remaining > 0; j--) {
+				remaining--;
+				if (pieces.get(j) != suffix[remaining])
+					return false;
+			}
+		}
+		return remaining == 0;
+	}
+}
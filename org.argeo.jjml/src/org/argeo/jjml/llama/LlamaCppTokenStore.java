@@ -0,0 +1,218 @@
+package org.argeo.jjml.llama;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An append-only store of token sequences (typically tokenized documents),
+ * packed off-heap in native byte order. Sequences are returned as read-only
+ * zero-copy slices, which can be used directly as inputs of
+ * {@link LlamaCppBatchProcessor} or {@link LlamaCppEmbeddingProcessor},
+ * without the per-object overhead of many small heap buffers.
+ * <p>
+ * Tokens are stored in segments, a sequence never spanning two segments. A
+ * store can be written to a file, and read back memory-mapped, so that
+ * tokenization can be skipped. It is thread-safe.
+ */
+public class LlamaCppTokenStore {
+	/** Default segment capacity, in tokens. */
+	public final static int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	private final static int MAX_SEGMENT_SIZE = Integer.MAX_VALUE / Integer.BYTES;
+
+	/** "JJTS" */
+	private final static int MAGIC = 0x4A4A5453;
+	private final static int VERSION = 1;
+
+	private final int segmentSize;
+
+	private final List<IntBuffer> segments = new ArrayList<>();
+	/** The bytes of the segments, for writing. */
+	private final List<ByteBuffer> segmentBytes = new ArrayList<>();
+	/** Write position in the last segment, which is not writable if mapped. */
+	private IntBuffer current;
+
+	// index
+	private int size = 0;
+	private int[] segmentIndices = new int[16];
+	private int[] starts = new int[16];
+	private int[] lengths = new int[16];
+	private long tokenCount = 0;
+
+	public LlamaCppTokenStore() {
+		this(DEFAULT_SEGMENT_SIZE);
+	}
+
+	/** @param segmentSize the capacity of a segment, in tokens */
+	public LlamaCppTokenStore(int segmentSize) {
+		if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE)
+			throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+		this.segmentSize = segmentSize;
+	}
+
+	/*
+	 * STORE
+	 */
+	/**
+	 * Appends the remaining tokens of this buffer, which are all consumed.
+	 *
+	 * @return the index of the sequence in this store
+	 */
+	public synchronized int add(IntBuffer tokens) {
+		int length = tokens.remaining();
+		if (current == null || current.remaining() < length) {
+			int capacity = Math.max(segmentSize, length);
+			ByteBuffer bytes = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder());
+			current = bytes.asIntBuffer();
+			segments.add(current);
+			segmentBytes.add(bytes);
+		}
+		int start = current.position();
+		current.put(tokens);
+		index(segments.size() - 1, start, length);
+		return size - 1;
+	}
+
+	/** @see #add(IntBuffer) */
+	public int add(int[] tokens) {
+		return add(IntBuffer.wrap(tokens));
+	}
+
+	/** A read-only slice of this sequence of tokens. */
+	public synchronized IntBuffer get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(index);
+		IntBuffer segment = segments.get(segmentIndices[index]).duplicate();
+		segment.limit(starts[index] + lengths[index]).position(starts[index]);
+		return segment.slice().asReadOnlyBuffer();
+	}
+
+	/** The length of this sequence. */
+	public synchronized int length(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(index);
+		return lengths[index];
+	}
+
+	/** The number of sequences. */
+	public synchronized int size() {
+		return size;
+	}
+
+	/** The total number of tokens. */
+	public synchronized long getTokenCount() {
+		return tokenCount;
+	}
+
+	private void index(int segment, int start, int length) {
+		if (size == starts.length) {
+			int capacity = 2 * size;
+			segmentIndices = Arrays.copyOf(segmentIndices, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		segmentIndices[size] = segment;
+		starts[size] = start;
+		lengths[size] = length;
+		size++;
+		tokenCount += length;
+	}
+
+	/*
+	 * PERSISTENCE
+	 */
+	/**
+	 * Writes this store to a file, which can only be read back on a platform
+	 * with the same byte order. It must not be the file this store has been read
+	 * from.
+	 */
+	public synchronized void write(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate((4 + segments.size() + 3 * size) * Integer.BYTES)
+					.order(ByteOrder.nativeOrder());
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(segments.size());
+			header.putInt(size);
+			for (IntBuffer segment : segments)
+				header.putInt(usedLength(segment));
+			for (int i = 0; i < size; i++) {
+				header.putInt(segmentIndices[i]);
+				header.putInt(starts[i]);
+				header.putInt(lengths[i]);
+			}
+			header.flip();
+			writeFully(channel, header);
+			for (int s = 0; s < segments.size(); s++) {
+				ByteBuffer bytes = segmentBytes.get(s).duplicate();
+				bytes.limit(usedLength(segments.get(s)) * Integer.BYTES).position(0);
+				writeFully(channel, bytes);
+			}
+		}
+	}
+
+	/**
+	 * Reads a store from a file, its segments being memory-mapped. Sequences
+	 * added afterwards are stored in memory.
+	 */
+	public static LlamaCppTokenStore read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			ByteBuffer prefix = readFully(channel, 0, 4 * Integer.BYTES);
+			if (prefix.getInt() != MAGIC)
+				throw new IOException(path + " is not a token store, or uses another byte order");
+			int version = prefix.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported token store version " + version);
+			int segmentCount = prefix.getInt();
+			int size = prefix.getInt();
+			long position = 4 * Integer.BYTES;
+			ByteBuffer header = readFully(channel, position, (segmentCount + 3 * size) * Integer.BYTES);
+			position += header.limit();
+
+			LlamaCppTokenStore store = new LlamaCppTokenStore();
+			for (int s = 0; s < segmentCount; s++) {
+				int length = header.getInt();
+				ByteBuffer bytes = channel.map(MapMode.READ_ONLY, position, length * Integer.BYTES)
+						.order(ByteOrder.nativeOrder());
+				store.segments.add(bytes.asIntBuffer());
+				store.segmentBytes.add(bytes);
+				position += length * Integer.BYTES;
+			}
+			for (int i = 0; i < size; i++)
+				store.index(header.getInt(), header.getInt(), header.getInt());
+			// mapped segments are read-only, so current is null
+			return store;
+		}
+	}
+
+	/** The number of tokens written to this segment. */
+	private static int usedLength(IntBuffer segment) {
+		// mapped segments are read-only and full
+		return segment.isReadOnly() ? segment.limit() : segment.position();
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.nativeOrder());
+		while (buf.hasRemaining())
+			if (channel.read(buf, position + buf.position()) < 0)
+				throw new IOException("Unexpected end of token store");
+		return buf.flip();
+	}
+}
@@ -0,0 +1,147 @@
+package org.argeo.jjml.llama;
+
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A bounded cache of tokenization results, evicting the least recently used
+ * entries, typically for system prompts, templates or document chunks which are
+ * tokenized repeatedly. Entries are looked up by the hash of the text and the
+ * tokenization flags, and then compared with the text, so that collisions
+ * cannot return wrong tokens. Its size is an estimate of the heap used by the
+ * texts and the tokens. It is thread-safe.
+ *
+ * @see LlamaCppVocabulary#setTokenizationCache(long)
+ */
+public final class LlamaCppTokenizationCache {
+	private final long maxSize;
+
+	/** In access order. */
+	private final LinkedHashMap<Key, int[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	LlamaCppTokenizationCache(long maxSize) {
+		if (maxSize <= 0)
+			throw new IllegalArgumentException("Cache size must be positive");
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The cached tokens, or the tokens returned by the tokenizer, which are then
+	 * cached. The tokenizer is called without lock, so that it may be called
+	 * concurrently for the same text.
+	 *
+	 * @return a read-only buffer
+	 */
+	IntBuffer get(CharSequence text, boolean addSpecial, boolean parseSpecial, Supplier<int[]> tokenizer) {
+		Key key = new Key(text.toString(), addSpecial, parseSpecial);
+		int[] tokens;
+		synchronized (this) {
+			tokens = entries.get(key);
+			if (tokens != null)
+				hitCount++;
+			else
+				missCount++;
+		}
+		if (tokens == null) {
+			tokens = tokenizer.get();
+			put(key, tokens);
+		}
+		return IntBuffer.wrap(tokens).asReadOnlyBuffer();
+	}
+
+	private synchronized void put(Key key, int[] tokens) {
+		long entrySize = sizeOf(key, tokens);
+		if (entrySize > maxSize)
+			return;
+		int[] previous = entries.put(key, tokens);
+		if (previous != null)
+			size -= sizeOf(key, previous);
+		size += entrySize;
+		for (Iterator<Map.Entry<Key, int[]>> it = entries.entrySet().iterator(); size > maxSize && it.hasNext();) {
+			Map.Entry<Key, int[]> eldest = it.next();
+			size -= sizeOf(eldest.getKey(), eldest.getValue());
+			it.remove();
+		}
+	}
+
+	private static long sizeOf(Key key, int[] tokens) {
+		return Character.BYTES * (long) key.text.length() + Integer.BYTES * (long) tokens.length;
+	}
+
+	/*
+	 * STATISTICS
+	 */
+	/** The number of lookups which found cached tokens. */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** The number of lookups which required a tokenization. */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/** The number of cached entries. */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/** The estimated size of the cached texts and tokens, in bytes. */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/** The maximum estimated size, in bytes. */
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/** Removes all entries and resets the statistics. */
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+		hitCount = 0;
+		missCount = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Tokenization cache: " + entries.size() + " entries, " + size + "/" + maxSize + " bytes, " + hitCount
+				+ " hits, " + missCount + " misses";
+	}
+
+	private static class Key {
+		final String text;
+		final boolean addSpecial;
+		final boolean parseSpecial;
+		final int hash;
+
+		Key(String text, boolean addSpecial, boolean parseSpecial) {
+			this.text = text;
+			this.addSpecial = addSpecial;
+			this.parseSpecial = parseSpecial;
+			this.hash = 31 * (31 * text.hashCode() + Boolean.hashCode(addSpecial)) + Boolean.hashCode(parseSpecial);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hash == other.hash && addSpecial == other.addSpecial && parseSpecial == other.parseSpecial
+					&& text.equals(other.text);
+		}
+	}
+}
@@ -7,18 +7,35 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.List;
 import java.util.Objects;
 
+/**
+ * Tokenization and de-tokenization with the vocabulary of a model. Its methods
+ * are thread-safe and do not lock (unless a tokenization cache is set), so that
+ * it can be used concurrently by many threads (including virtual threads),
+ * provided that the buffers passed to a call are not used by another thread at
+ * the same time. For a tokenization service, a model can be loaded with its
+ * vocabulary only, that is without its weights.
+ * 
+ * @see LlamaCppModel#loadVocabularyOnly(java.nio.file.Path)
+ */
 public class LlamaCppVocabulary {
 	/**
 	 * Whether Java <-> UTF-8 conversion happens on the native side (true) or on the
 	 * Java side (false).
 	 */
-	private boolean stringMode = false;
+	private volatile boolean stringMode = false;
 
 	private final LlamaCppModel model;
 
+	private volatile LlamaCppTokenPieces pieces;
+
+	private volatile LlamaCppTokenizationCache tokenizationCache;
+
 	public LlamaCppVocabulary(LlamaCppModel model) {
 		this.model = model;
 	}
@@ -39,6 +56,22 @@ public class LlamaCppVocabulary {
 	private static native int doTokenizeUtf8(long pointer, ByteBuffer str, int offset, int length, IntBuffer tokens,
 			int pos, int size, boolean addSpecial, boolean parseSpecial);
 
+	/**
+	 * Tokenize multiple strings packed in a direct buffer, possibly in parallel.
+	 * 
+	 * @return the number of tokens written, or its opposite if the output is too
+	 *         small
+	 */
+	private static native int doTokenizeUtf8Multiple(long pointer, ByteBuffer str, int[] offsets, IntBuffer tokens,
+			int pos, int size, int[] tokenOffsets, boolean addSpecial, boolean parseSpecial, int threads);
+
+	/** Count the tokens of a string encoded in standard UTF-8. */
+	private static native int doCountTokensUtf8Bytes(long pointer, byte[] str, int offset, int length,
+			boolean addSpecial, boolean parseSpecial);
+
+	private static native int doCountTokensUtf8(long pointer, ByteBuffer str, int offset, int length,
+			boolean addSpecial, boolean parseSpecial);
+
 	/** De-tokenize as a string encoded in standard UTF-8. */
 	private static native byte[] doDeTokenizeArrayAsUtf8Bytes(long pointer, int[] tokens, int pos, int size,
 			boolean removeSpecial, boolean unparseSpecial);
@@ -49,6 +82,14 @@ public class LlamaCppVocabulary {
 	private static native int doDeTokenizeAsUtf8(long pointer, IntBuffer tokens, int pos, int size, ByteBuffer str,
 			int offset, int length, boolean removeSpecial, boolean unparseSpecial);
 
+	/**
+	 * Write the UTF-8 pieces of all tokens, with the related offsets and
+	 * attributes.
+	 * 
+	 * @return the number of bytes written, or the opposite of the required size
+	 */
+	private static native int doWritePieces(long pointer, ByteBuffer str, IntBuffer offsets, IntBuffer attributes);
+
 	/**
 	 * Tokenize a Java {@link String}. Its UTF-16 representation will be used
 	 * without copy on the native side, where it will be converted to UTF-8.
@@ -56,6 +97,9 @@ public class LlamaCppVocabulary {
 	private static native int[] doTokenizeStringAsArray(long pointer, String str, boolean addSpecial,
 			boolean parseSpecial);
 
+	/** Count the tokens of a Java {@link String}. */
+	private static native int doCountTokensString(long pointer, String str, boolean addSpecial, boolean parseSpecial);
+
 	/** De-tokenize as a Java {@link String}. */
 	private static native String doDeTokenizeArrayAsString(long pointer, int[] tokens, int pos, int size,
 			boolean removeSpecial, boolean unparseSpecial);
@@ -68,6 +112,20 @@ public class LlamaCppVocabulary {
 	 */
 
 	public void tokenize(CharSequence str, IntBuffer tokens, boolean addSpecial, boolean parseSpecial) {
+		LlamaCppTokenizationCache cache = tokenizationCache;
+		if (cache != null) {
+			IntBuffer cached = cache.get(str, addSpecial, parseSpecial,
+					() -> tokenizeAsArray(str, addSpecial, parseSpecial));
+			if (cached.remaining() > tokens.remaining())
+				throw new IndexOutOfBoundsException(cached.remaining());
+			tokens.put(cached);
+			return;
+		}
+
+		LlamaCppEvents.Tokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Tokenize() : null;
+		if (event != null)
+			event.begin();
+		int tokensStart = tokens.position();
 		if (stringMode) {
 			tokenizeUtf16(str, tokens, addSpecial, parseSpecial);
 		} else {
@@ -75,9 +133,49 @@ public class LlamaCppVocabulary {
 			ByteBuffer utf8 = UTF_8.encode(chars);
 			tokenizeUtf8(utf8, tokens, addSpecial, parseSpecial);
 		}
+		if (event != null && event.shouldCommit()) {
+			event.textLength = str.length();
+			event.tokenCount = tokens.position() - tokensStart;
+			event.commit();
+		}
 	}
 
+	/**
+	 * Tokenizes this string. The returned buffer is backed by a new array, also
+	 * if a tokenization cache is set (in which case the cached tokens are
+	 * copied).
+	 * 
+	 * @see #tokenizeReadOnly(CharSequence, boolean, boolean)
+	 */
 	public IntBuffer tokenize(CharSequence str, boolean addSpecial, boolean parseSpecial) {
+		LlamaCppTokenizationCache cache = tokenizationCache;
+		if (cache != null) {
+			IntBuffer cached = cache.get(str, addSpecial, parseSpecial,
+					() -> tokenizeAsArray(str, addSpecial, parseSpecial));
+			int[] arr = new int[cached.remaining()];
+			cached.get(arr);
+			return IntBuffer.wrap(arr);
+		}
+		return IntBuffer.wrap(tokenizeAsArray(str, addSpecial, parseSpecial));
+	}
+
+	/**
+	 * Tokenizes this string as a read-only buffer, which, if a tokenization cache
+	 * is set, shares the cached tokens without copy.
+	 * 
+	 * @see #setTokenizationCache(long)
+	 */
+	public IntBuffer tokenizeReadOnly(CharSequence str, boolean addSpecial, boolean parseSpecial) {
+		LlamaCppTokenizationCache cache = tokenizationCache;
+		if (cache != null)
+			return cache.get(str, addSpecial, parseSpecial, () -> tokenizeAsArray(str, addSpecial, parseSpecial));
+		return IntBuffer.wrap(tokenizeAsArray(str, addSpecial, parseSpecial)).asReadOnlyBuffer();
+	}
+
+	private int[] tokenizeAsArray(CharSequence str, boolean addSpecial, boolean parseSpecial) {
+		LlamaCppEvents.Tokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Tokenize() : null;
+		if (event != null)
+			event.begin();
 		int[] arr;
 		if (stringMode) {
 			arr = tokenizeUtf16(str.toString(), addSpecial, parseSpecial);
@@ -86,21 +184,39 @@ public class LlamaCppVocabulary {
 			ByteBuffer utf8 = UTF_8.encode(chars);
 			arr = tokenizeUtf8(utf8, addSpecial, parseSpecial);
 		}
-		// return IntBuffer.wrap(arr).asReadOnlyBuffer();
-		return IntBuffer.wrap(arr);
+		if (event != null && event.shouldCommit()) {
+			event.textLength = str.length();
+			event.tokenCount = arr.length;
+			event.commit();
+		}
+		return arr;
 	}
 
 	public void tokenize(ByteBuffer utf8, IntBuffer tokens, boolean addSpecial, boolean parseSpecial)
 			throws IndexOutOfBoundsException {
+		LlamaCppEvents.Tokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Tokenize() : null;
+		if (event != null)
+			event.begin();
+		int textLength = utf8.remaining();
+		int tokensStart = tokens.position();
 		if (stringMode) {
 			CharBuffer chars = UTF_8.decode(utf8);
 			tokenizeUtf16(chars.toString(), tokens, addSpecial, parseSpecial);
 		} else {
 			tokenizeUtf8(utf8, tokens, addSpecial, parseSpecial);
 		}
+		if (event != null && event.shouldCommit()) {
+			event.textLength = textLength;
+			event.tokenCount = tokens.position() - tokensStart;
+			event.commit();
+		}
 	}
 
 	public IntBuffer tokenize(ByteBuffer utf8, boolean addSpecial, boolean parseSpecial) {
+		LlamaCppEvents.Tokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Tokenize() : null;
+		if (event != null)
+			event.begin();
+		int textLength = utf8.remaining();
 		int[] arr;
 		if (stringMode) {
 			CharBuffer chars = UTF_8.decode(utf8);
@@ -108,11 +224,21 @@ public class LlamaCppVocabulary {
 		} else {
 			arr = tokenizeUtf8(utf8, addSpecial, parseSpecial);
 		}
+		if (event != null && event.shouldCommit()) {
+			event.textLength = textLength;
+			event.tokenCount = arr.length;
+			event.commit();
+		}
 		return IntBuffer.wrap(arr);
 	}
 
 	public void deTokenize(IntBuffer in, ByteBuffer utf8, boolean removeSpecial, boolean unparseSpecial)
 			throws IndexOutOfBoundsException {
+		LlamaCppEvents.DeTokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.DeTokenize() : null;
+		if (event != null)
+			event.begin();
+		int tokenCount = in.remaining();
+		int textStart = utf8.position();
 		if (stringMode) {
 			String s = deTokenizeUtf16(in, removeSpecial, unparseSpecial);
 			byte[] bytes = s.getBytes(UTF_8);
@@ -122,30 +248,162 @@ public class LlamaCppVocabulary {
 		} else {
 			deTokenizeUtf8(in, utf8, removeSpecial, unparseSpecial);
 		}
+		if (event != null && event.shouldCommit()) {
+			event.tokenCount = tokenCount;
+			event.textLength = utf8.position() - textStart;
+			event.commit();
+		}
 	}
 
 	public String deTokenize(IntBuffer in, boolean removeSpecial, boolean unparseSpecial) {
+		LlamaCppEvents.DeTokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.DeTokenize() : null;
+		if (event != null)
+			event.begin();
+		int tokenCount = in.remaining();
+		String res;
 		if (stringMode) {
-			return deTokenizeUtf16(in, removeSpecial, unparseSpecial);
+			res = deTokenizeUtf16(in, removeSpecial, unparseSpecial);
 		} else {
 			byte[] bytes = deTokenizeUtf8(in, removeSpecial, unparseSpecial);
-			return new String(bytes, UTF_8);
+			res = new String(bytes, UTF_8);
 		}
+		if (event != null && event.shouldCommit()) {
+			event.tokenCount = tokenCount;
+			event.textLength = res.length();
+			event.commit();
+		}
+		return res;
+	}
+
+	/**
+	 * Tokenizes multiple strings in a single native call, the work being spread
+	 * over native threads. This is significantly faster than tokenizing them one
+	 * by one when there are many short strings. Conversion to UTF-8 is expected to
+	 * have happened on the Java side, regardless of the string mode.
+	 * 
+	 * @param utf8         the strings encoded in UTF-8, packed in a direct
+	 *                     buffer
+	 * @param offsets      the index in <code>utf8</code> of the beginning of each
+	 *                     string, followed by the index of the end of the last
+	 *                     one, so that there are <code>n + 1</code> offsets for
+	 *                     <code>n</code> strings
+	 * @param tokens       a direct buffer to which the tokens are written, from its
+	 *                     position, which is then moved after the last token
+	 * @param tokenOffsets an array of the same length as <code>offsets</code>,
+	 *                     which will be filled with the index in
+	 *                     <code>tokens</code> of the beginning of the tokens of
+	 *                     each string, followed by the index of the end
+	 * @param threads      the maximum number of threads to use
+	 * @return the number of tokens written
+	 * @throws IndexOutOfBoundsException if <code>tokens</code> is too small, in
+	 *                                   which case nothing is written and the
+	 *                                   message is the required size
+	 */
+	public int tokenizeMultiple(ByteBuffer utf8, int[] offsets, IntBuffer tokens, int[] tokenOffsets,
+			boolean addSpecial, boolean parseSpecial, int threads) throws IndexOutOfBoundsException {
+		int count = tryTokenizeMultiple(utf8, offsets, tokens, tokenOffsets, addSpecial, parseSpecial, threads);
+		if (count < 0)
+			throw new IndexOutOfBoundsException(-count);
+		return count;
+	}
+
+	/** Returns the opposite of the required size if the output is too small. */
+	private int tryTokenizeMultiple(ByteBuffer utf8, int[] offsets, IntBuffer tokens, int[] tokenOffsets,
+			boolean addSpecial, boolean parseSpecial, int threads) {
+		if (!utf8.isDirect())
+			throw new IllegalArgumentException("Input must be a direct buffer");
+		if (!tokens.isDirect())
+			throw new IllegalArgumentException("Output must be a direct buffer");
+		checkOutput(tokens);
+		if (offsets.length != tokenOffsets.length)
+			throw new IllegalArgumentException("Offsets and token offsets must have the same length");
+		LlamaCppEvents.Tokenize event = LlamaCppEvents.AVAILABLE ? new LlamaCppEvents.Tokenize() : null;
+		if (event != null)
+			event.begin();
+		int count = doTokenizeUtf8Multiple(model.getAsLong(), utf8, offsets, tokens, tokens.position(),
+				tokens.remaining(), tokenOffsets, addSpecial, parseSpecial, threads);
+		if (count > 0)
+			tokens.position(tokens.position() + count);
+		if (count >= 0 && event != null && event.shouldCommit()) {
+			event.textLength = offsets.length > 0 ? offsets[offsets.length - 1] - offsets[0] : 0;
+			event.tokenCount = count;
+			event.commit();
+		}
+		return count;
 	}
 
 	/*
 	 * DEFAULTS
 	 */
+	/**
+	 * Tokenizes multiple strings with a single native call, using all available
+	 * processors.
+	 * 
+	 * @return the tokens of each string, as read-write slices of a single direct
+	 *         buffer
+	 * @see #tokenizeMultiple(ByteBuffer, int[], IntBuffer, int[], boolean,
+	 *      boolean, int)
+	 */
 	final public IntBuffer[] tokenizeMultiple(List<? extends CharSequence> prompts) {
-		IntBuffer[] tokenLists = new IntBuffer[prompts.size()];
-		for (int i = 0; i < prompts.size(); i++) {
-			CharSequence prompt = prompts.get(i);
-			IntBuffer tokenList = tokenize(prompt);
-			tokenLists[i] = tokenList;
-		}
+		int n = prompts.size();
+		int[] offsets = new int[n + 1];
+		ByteBuffer utf8 = packUtf8(prompts, offsets);
+		int[] tokenOffsets = new int[n + 1];
+		int threads = Runtime.getRuntime().availableProcessors();
+		// at most one token per byte, plus prefix space and special tokens
+		int capacity = utf8.limit() + 3 * n;
+		IntBuffer tokens;
+		int count;
+		do {
+			tokens = ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder())
+					.asIntBuffer();
+			count = tryTokenizeMultiple(utf8, offsets, tokens, tokenOffsets, false, true, threads);
+			capacity = -count;
+		} while (count < 0);
+
+		IntBuffer[] tokenLists = new IntBuffer[n];
+		for (int i = 0; i < n; i++)
+			tokenLists[i] = tokens.duplicate().limit(tokenOffsets[i + 1]).position(tokenOffsets[i]).slice();
 		return tokenLists;
 	}
 
+	/**
+	 * The number of tokens of this string, without returning them.
+	 */
+	public int countTokens(CharSequence str, boolean addSpecial, boolean parseSpecial) {
+		if (stringMode)
+			return doCountTokensString(model.getAsLong(), str.toString(), addSpecial, parseSpecial);
+		if (str instanceof String) {
+			byte[] bytes = ((String) str).getBytes(UTF_8);
+			return doCountTokensUtf8Bytes(model.getAsLong(), bytes, 0, bytes.length, addSpecial, parseSpecial);
+		} else {
+			return countTokens(UTF_8.encode(CharBuffer.wrap(str)), addSpecial, parseSpecial);
+		}
+	}
+
+	/**
+	 * The number of tokens of this string encoded in UTF-8, without returning
+	 * them. The position of the input is not changed.
+	 */
+	public int countTokens(ByteBuffer utf8, boolean addSpecial, boolean parseSpecial) {
+		checkInput(utf8);
+		if (utf8.isDirect()) {
+			return doCountTokensUtf8(model.getAsLong(), utf8, utf8.position(), utf8.remaining(), addSpecial,
+					parseSpecial);
+		} else if (utf8.hasArray()) {
+			return doCountTokensUtf8Bytes(model.getAsLong(), utf8.array(), utf8.arrayOffset() + utf8.position(),
+					utf8.remaining(), addSpecial, parseSpecial);
+		} else {// copy
+			byte[] copy = new byte[utf8.remaining()];
+			utf8.duplicate().get(copy);
+			return doCountTokensUtf8Bytes(model.getAsLong(), copy, 0, copy.length, addSpecial, parseSpecial);
+		}
+	}
+
+	final public int countTokens(CharSequence str) {
+		return countTokens(str, false, true);
+	}
+
 	final public IntBuffer tokenize(CharSequence str) {
 		return tokenize(str, false, true);
 	}
@@ -170,45 +428,41 @@ public class LlamaCppVocabulary {
 		checkInput(in);
 		// ensure position is 0
 		// ByteBuffer in = str.slice().limit(str.limit() - str.position());
-		synchronized (in) {
-			int[] tokenArr;
-			if (in.isDirect()) {
-				tokenArr = doTokenizeUtf8AsArray(model.getAsLong(), in, in.position(), in.remaining(), addSpecial,
-						parseSpecial);
-				in.position(in.limit());
-			} else if (in.hasArray() && !in.isReadOnly()) {
-				byte[] arr = in.array();
-				tokenArr = doTokenizeUtf8BytesAsArray(model.getAsLong(), arr, in.arrayOffset(), in.remaining(),
-						addSpecial, parseSpecial);
-				in.position(in.limit());
-			} else {// copy
-				byte[] copy = new byte[in.remaining()];
-				in.get(copy, in.position(), copy.length);
-				tokenArr = doTokenizeUtf8BytesAsArray(model.getAsLong(), copy, 0, copy.length, addSpecial,
-						parseSpecial);
-			}
-			return tokenArr;
+		int[] tokenArr;
+		if (in.isDirect()) {
+			tokenArr = doTokenizeUtf8AsArray(model.getAsLong(), in, in.position(), in.remaining(), addSpecial,
+					parseSpecial);
+			in.position(in.limit());
+		} else if (in.hasArray() && !in.isReadOnly()) {
+			byte[] arr = in.array();
+			tokenArr = doTokenizeUtf8BytesAsArray(model.getAsLong(), arr, in.arrayOffset() + in.position(),
+					in.remaining(), addSpecial, parseSpecial);
+			in.position(in.limit());
+		} else {// copy
+			byte[] copy = new byte[in.remaining()];
+			in.get(copy);
+			tokenArr = doTokenizeUtf8BytesAsArray(model.getAsLong(), copy, 0, copy.length, addSpecial,
+					parseSpecial);
 		}
+		return tokenArr;
 	}
 
 	void tokenizeUtf8(ByteBuffer str, IntBuffer tokens, boolean addSpecial, boolean parseSpecial)
 			throws IndexOutOfBoundsException {
 		checkInput(str);
 		checkOutput(tokens);
-		synchronized (tokens) {// we are writing into this buffer and changing its position
-			if (str.isDirect() && tokens.isDirect()) {// optimal
-				int count = doTokenizeUtf8(model.getAsLong(), str, str.position(), str.remaining(), tokens,
-						tokens.position(), tokens.remaining(), addSpecial, parseSpecial);
-				if (count < 0)
-					throw new IndexOutOfBoundsException(-count);
-				str.position(str.limit());
-				tokens.position(tokens.position() + count);
-			} else {
-				int[] tokenArr = tokenizeUtf8(str, addSpecial, parseSpecial);
-				if (tokenArr.length > tokens.remaining())
-					throw new IndexOutOfBoundsException(tokenArr.length);
-				tokens.put(tokenArr);
-			}
+		if (str.isDirect() && tokens.isDirect()) {// optimal
+			int count = doTokenizeUtf8(model.getAsLong(), str, str.position(), str.remaining(), tokens,
+					tokens.position(), tokens.remaining(), addSpecial, parseSpecial);
+			if (count < 0)
+				throw new IndexOutOfBoundsException(-count);
+			str.position(str.limit());
+			tokens.position(tokens.position() + count);
+		} else {
+			int[] tokenArr = tokenizeUtf8(str, addSpecial, parseSpecial);
+			if (tokenArr.length > tokens.remaining())
+				throw new IndexOutOfBoundsException(tokenArr.length);
+			tokens.put(tokenArr);
 		}
 	}
 
@@ -248,6 +502,62 @@ public class LlamaCppVocabulary {
 		}
 	}
 
+	/*
+	 * CACHE
+	 */
+	/**
+	 * Caches the tokenization of strings, which is useful when the same system
+	 * prompts, templates or documents are tokenized repeatedly. It is disabled by
+	 * default.
+	 * 
+	 * @param maxSize the maximum estimated heap size of the cache in bytes, or 0
+	 *                in order to disable it
+	 */
+	public void setTokenizationCache(long maxSize) {
+		tokenizationCache = maxSize > 0 ? new LlamaCppTokenizationCache(maxSize) : null;
+	}
+
+	/** The tokenization cache, or <code>null</code> if it is disabled. */
+	public LlamaCppTokenizationCache getTokenizationCache() {
+		return tokenizationCache;
+	}
+
+	/*
+	 * PIECES
+	 */
+	/**
+	 * The pieces of all the tokens of this vocabulary, built on first call.
+	 */
+	public LlamaCppTokenPieces getPieces() {
+		LlamaCppTokenPieces res = pieces;
+		if (res == null) {
+			synchronized (this) {
+				res = pieces;
+				if (res == null)
+					pieces = res = buildPieces();
+			}
+		}
+		return res;
+	}
+
+	private LlamaCppTokenPieces buildPieces() {
+		int size = model.getVocabularySize();
+		IntBuffer offsets = ByteBuffer.allocateDirect((size + 1) * Integer.BYTES).order(ByteOrder.nativeOrder())
+				.asIntBuffer();
+		IntBuffer attributes = ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder())
+				.asIntBuffer();
+		// most pieces are short
+		ByteBuffer utf8 = ByteBuffer.allocateDirect(8 * size);
+		int count = doWritePieces(model.getAsLong(), utf8, offsets, attributes);
+		if (count < 0) {
+			utf8 = ByteBuffer.allocateDirect(-count);
+			count = doWritePieces(model.getAsLong(), utf8, offsets, attributes);
+			assert count >= 0;
+		}
+		utf8.limit(count);
+		return new LlamaCppTokenPieces(utf8.slice(), offsets, attributes);
+	}
+
 	/*
 	 * UTF-16
 	 */
@@ -269,15 +579,13 @@ public class LlamaCppVocabulary {
 	void tokenizeUtf16(CharSequence str, IntBuffer tokens, boolean addSpecial, boolean parseSpecial) {
 		Objects.requireNonNull(str);
 		checkOutput(tokens);
-		synchronized (tokens) {// we are writing into this buffer and changing its position
 //			IntBuffer tokensToUse = tokens.slice().limit(tokens.limit() - tokens.position());
-			String in = str.toString();
-			assert str instanceof String ? in == str : true;
-			int[] tokenArr = doTokenizeStringAsArray(model.getAsLong(), in, addSpecial, parseSpecial);
-			if (tokenArr.length > (tokens.limit() - tokens.position()))
-				throw new IndexOutOfBoundsException(tokenArr.length);
-			tokens.put(tokenArr);
-		}
+		String in = str.toString();
+		assert str instanceof String ? in == str : true;
+		int[] tokenArr = doTokenizeStringAsArray(model.getAsLong(), in, addSpecial, parseSpecial);
+		if (tokenArr.length > (tokens.limit() - tokens.position()))
+			throw new IndexOutOfBoundsException(tokenArr.length);
+		tokens.put(tokenArr);
 	}
 
 	String deTokenizeUtf16(IntBuffer in, boolean removeSpecial, boolean unparseSpecial) {
@@ -305,6 +613,34 @@ public class LlamaCppVocabulary {
 	/*
 	 * UTILITIES
 	 */
+	/**
+	 * Encodes strings to UTF-8 in a single direct buffer.
+	 * 
+	 * @param offsets filled with the beginning of each string, followed by the end
+	 *                of the last one
+	 */
+	static ByteBuffer packUtf8(List<? extends CharSequence> strs, int[] offsets) {
+		long maxBytes = 0;
+		for (CharSequence str : strs)
+			maxBytes += str.length() * 3L; // a UTF-16 char is at most 3 bytes in UTF-8
+		if (maxBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Strings are too long to be packed");
+		ByteBuffer utf8 = ByteBuffer.allocateDirect((int) maxBytes);
+		CharsetEncoder encoder = UTF_8.newEncoder() //
+				.onMalformedInput(CodingErrorAction.REPLACE) //
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		for (int i = 0; i < strs.size(); i++) {
+			offsets[i] = utf8.position();
+			encoder.reset();
+			CoderResult result = encoder.encode(CharBuffer.wrap(strs.get(i)), utf8, true);
+			if (!result.isUnderflow())
+				throw new IllegalStateException("Cannot encode string " + i + ": " + result);
+			encoder.flush(utf8);
+		}
+		offsets[strs.size()] = utf8.position();
+		return utf8.flip();
+	}
+
 	private void checkInput(Buffer in) {
 		if (in instanceof IntBuffer)
 			if (!ByteOrder.nativeOrder().equals(((IntBuffer) in).order()))
@@ -324,11 +660,11 @@ public class LlamaCppVocabulary {
 	 * ACCESSORS
 	 */
 
-	synchronized boolean isStringMode() {
+	boolean isStringMode() {
 		return stringMode;
 	}
 
-	synchronized void setStringMode(boolean stringMode) {
+	void setStringMode(boolean stringMode) {
 		this.stringMode = stringMode;
 	}
 
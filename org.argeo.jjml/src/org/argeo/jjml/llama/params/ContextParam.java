@@ -19,11 +19,11 @@ public enum ContextParam {
 //		yarn_beta_slow, //
 //		yarn_orig_ctx, //
 //		defrag_thold, //
-//		type_k, //
-//		type_v, //
+	type_k, //
+	type_v, //
 	embeddings, //
 //		offload_kqv, //
-//		flash_attn, //
+	flash_attn, //
 //		no_perf, //
 	;
 
@@ -136,11 +136,11 @@ public class ContextParams { //
 				this.yarn_beta_slow, //
 				this.yarn_orig_ctx, //
 				this.defrag_thold, //
-				this.type_k, //
-				this.type_v, //
+				parseInt(p.getOrDefault(ContextParam.type_k, Integer.toString(this.type_k))), //
+				parseInt(p.getOrDefault(ContextParam.type_v, Integer.toString(this.type_v))), //
 				parseBoolean(p.getOrDefault(ContextParam.embeddings, Boolean.toString(this.embeddings))), //
 				this.offload_kqv, //
-				this.flash_attn, //
+				parseBoolean(p.getOrDefault(ContextParam.flash_attn, Boolean.toString(this.flash_attn))), //
 				this.no_perf //
 		);
 	}
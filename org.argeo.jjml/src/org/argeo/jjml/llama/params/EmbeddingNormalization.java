@@ -0,0 +1,36 @@
+package org.argeo.jjml.llama.params;
+
+import java.util.function.IntSupplier;
+
+/**
+ * Embedding normalization, applied on the native side while the embeddings are
+ * copied. Any other p-norm can be used with {@link #pNorm(int)}.
+ *
+ * @see common.h - common_embd_normalize
+ */
+public enum EmbeddingNormalization implements IntSupplier {
+	NONE(-1), //
+	/** Scaled to the int16 range, based on the maximum absolute value. */
+	MAX_ABSOLUTE(0), //
+	TAXICAB(1), //
+	EUCLIDEAN(2), //
+	;
+
+	private int code;
+
+	private EmbeddingNormalization(int code) {
+		this.code = code;
+	}
+
+	@Override
+	public int getAsInt() {
+		return code;
+	}
+
+	/** A p-norm normalization, with p strictly positive. */
+	public static IntSupplier pNorm(int p) throws IllegalArgumentException {
+		if (p <= 0)
+			throw new IllegalArgumentException("p-norm requires a strictly positive p, not " + p);
+		return () -> p;
+	}
+}
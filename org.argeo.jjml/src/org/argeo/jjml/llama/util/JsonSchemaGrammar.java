@@ -0,0 +1,667 @@
+package org.argeo.jjml.llama.util;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.argeo.jjml.llama.LlamaCppModel;
+import org.argeo.jjml.llama.LlamaCppNativeSampler;
+import org.argeo.jjml.llama.LlamaCppSamplers;
+
+/**
+ * Converts a JSON Schema to a GBNF grammar which can be used with
+ * {@link LlamaCppSamplers#newSamplerGrammar(LlamaCppModel, String, String)}.
+ * <p>
+ * The generated grammars are kept minimal and deterministic: JSON is compact
+ * (no whitespace), object properties appear in the order of the schema
+ * (required ones first) and no additional properties are allowed. The grammar
+ * sampler can therefore prune early, and fixed keys and punctuation are forced
+ * tokens.
+ * </p>
+ * <p>
+ * Supported keywords are <code>type</code> (including arrays of types),
+ * <code>properties</code>, <code>required</code>, <code>items</code>,
+ * <code>prefixItems</code>, <code>minItems</code>, <code>maxItems</code>,
+ * <code>minLength</code>, <code>maxLength</code>, <code>enum</code>,
+ * <code>const</code>, <code>anyOf</code>, <code>oneOf</code>,
+ * <code>allOf</code> (of objects) and local <code>$ref</code> to
+ * <code>#/$defs/</code> or <code>#/definitions/</code>. Annotations are ignored,
+ * as well as <code>pattern</code> and <code>format</code>, which are then
+ * treated as plain strings.
+ * </p>
+ */
+public class JsonSchemaGrammar {
+	/** The root rule of the generated grammars. */
+	public final static String ROOT = "root";
+
+	private final static String SPACE_FREE_STRING_CHAR = "[^\"\\\\\\x7F\\x00-\\x1F] | \"\\\\\" ([\"\\\\/bfnrt] | \"u\" [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F] [0-9a-fA-F])";
+
+	/** Primitive rules, added only when used. */
+	private final static Map<String, String> PRIMITIVES;
+
+	static {
+		Map<String, String> primitives = new LinkedHashMap<>();
+		primitives.put("boolean", "\"true\" | \"false\"");
+		primitives.put("null", "\"null\"");
+		primitives.put("integral-part", "[0] | [1-9] [0-9]*");
+		primitives.put("integer", "\"-\"? integral-part");
+		primitives.put("number", "\"-\"? integral-part (\".\" [0-9]+)? ([eE] [-+]? [0-9]+)?");
+		primitives.put("char", SPACE_FREE_STRING_CHAR);
+		primitives.put("string", "\"\\\"\" char* \"\\\"\"");
+		primitives.put("value", "object | array | string | number | boolean | null");
+		primitives.put("object", "\"{\" ( string \":\" value ( \",\" string \":\" value )* )? \"}\"");
+		primitives.put("array", "\"[\" ( value ( \",\" value )* )? \"]\"");
+		PRIMITIVES = Collections.unmodifiableMap(primitives);
+	}
+
+	private final Map<String, Object> rootSchema;
+	private final Map<String, String> rules = new LinkedHashMap<>();
+	/** Names of already generated rule bodies, in order to reuse them. */
+	private final Map<String, String> ruleNames = new LinkedHashMap<>();
+	/** References already resolved or being resolved (recursion). */
+	private final Map<String, String> refs = new LinkedHashMap<>();
+
+	private JsonSchemaGrammar(Map<String, Object> rootSchema) {
+		this.rootSchema = rootSchema;
+	}
+
+	/*
+	 * API
+	 */
+	/**
+	 * Converts a JSON Schema to a GBNF grammar whose root rule is {@link #ROOT}.
+	 *
+	 * @throws IllegalArgumentException if the schema is not valid JSON or uses
+	 *                                  unsupported constructs
+	 */
+	public static String toGrammar(String jsonSchema) throws IllegalArgumentException {
+		Objects.requireNonNull(jsonSchema);
+		Object schema = new JsonParser(jsonSchema).parse();
+		JsonSchemaGrammar converter = new JsonSchemaGrammar(asSchema(schema));
+		converter.visit(schema, ROOT);
+		return converter.format();
+	}
+
+	/** A new grammar sampler constraining the output to this JSON Schema. */
+	public static LlamaCppNativeSampler newSampler(LlamaCppModel model, String jsonSchema)
+			throws IllegalArgumentException {
+		return LlamaCppSamplers.newSamplerGrammar(model, toGrammar(jsonSchema), ROOT);
+	}
+
+	/*
+	 * CONVERSION
+	 */
+	/** Generates the rule(s) for this schema and returns the rule reference. */
+	@SuppressWarnings("unchecked")
+	private String visit(Object schemaObj, String name) {
+		Map<String, Object> schema = asSchema(schemaObj);
+
+		if (schema.containsKey("$ref"))
+			return addRule(name, resolveRef((String) schema.get("$ref")));
+
+		if (schema.containsKey("const"))
+			return addRule(name, literal(toJson(schema.get("const"))));
+
+		if (schema.containsKey("enum")) {
+			List<String> alternatives = new ArrayList<>();
+			for (Object value : (List<Object>) schema.get("enum"))
+				alternatives.add(literal(toJson(value)));
+			return addRule(name, String.join(" | ", alternatives));
+		}
+
+		for (String key : new String[] { "anyOf", "oneOf" }) {
+			if (schema.containsKey(key)) {
+				List<Object> subSchemas = (List<Object>) schema.get(key);
+				List<String> alternatives = new ArrayList<>();
+				for (int i = 0; i < subSchemas.size(); i++)
+					alternatives.add(visit(subSchemas.get(i), name + "-" + i));
+				return addRule(name, String.join(" | ", alternatives));
+			}
+		}
+
+		if (schema.containsKey("allOf"))
+			return visit(mergeAllOf((List<Object>) schema.get("allOf")), name);
+
+		Object type = schema.get("type");
+		if (type instanceof List) {
+			List<String> alternatives = new ArrayList<>();
+			for (Object t : (List<Object>) type) {
+				Map<String, Object> typed = new LinkedHashMap<>(schema);
+				typed.put("type", t);
+				alternatives.add(visit(typed, name + "-" + t));
+			}
+			return addRule(name, String.join(" | ", alternatives));
+		}
+
+		if (type == null) {
+			if (schema.containsKey("properties"))
+				type = "object";
+			else if (schema.containsKey("items") || schema.containsKey("prefixItems"))
+				type = "array";
+			else
+				return addRule(name, primitive("value"));
+		}
+
+		switch ((String) type) {
+		case "object":
+			return addRule(name, objectRule(schema, name));
+		case "array":
+			return addRule(name, arrayRule(schema, name));
+		case "string":
+			return addRule(name, stringRule(schema));
+		case "integer":
+		case "number":
+		case "boolean":
+		case "null":
+			return addRule(name, primitive((String) type));
+		default:
+			throw new IllegalArgumentException("Unsupported type " + type);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private String objectRule(Map<String, Object> schema, String name) {
+		Map<String, Object> properties = (Map<String, Object>) schema.get("properties");
+		if (properties == null || properties.isEmpty()) {
+			if (Boolean.FALSE.equals(schema.get("additionalProperties")))
+				return literal("{}");
+			return primitive("object");
+		}
+		List<Object> required = (List<Object>) schema.getOrDefault("required", Collections.emptyList());
+
+		List<String> requiredKvs = new ArrayList<>();
+		List<String> optionalKvs = new ArrayList<>();
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			String key = property.getKey();
+			String valueRef = visit(property.getValue(), name + "-" + ruleName(key));
+			String kv = addRule(name + "-" + ruleName(key) + "-kv", literal(toJson(key) + ":") + " " + valueRef);
+			if (required.contains(key))
+				requiredKvs.add(kv);
+			else
+				optionalKvs.add(kv);
+		}
+
+		StringBuilder sb = new StringBuilder(literal("{"));
+		for (int i = 0; i < requiredKvs.size(); i++) {
+			if (i != 0)
+				sb.append(' ').append(literal(","));
+			sb.append(' ').append(requiredKvs.get(i));
+		}
+		if (!optionalKvs.isEmpty()) {
+			// one alternative per first present optional property
+			List<String> alternatives = new ArrayList<>();
+			for (int i = 0; i < optionalKvs.size(); i++)
+				alternatives.add(optionalRefs(optionalKvs.subList(i, optionalKvs.size()), name, false));
+			sb.append(" (");
+			if (!requiredKvs.isEmpty())
+				sb.append(' ').append(literal(",")).append(" (");
+			sb.append(' ').append(String.join(" | ", alternatives));
+			if (!requiredKvs.isEmpty())
+				sb.append(" )");
+			sb.append(" )?");
+		}
+		sb.append(' ').append(literal("}"));
+		return sb.toString();
+	}
+
+	/** Sequence of optional properties, in order, with proper commas. */
+	private String optionalRefs(List<String> kvs, String name, boolean firstIsOptional) {
+		String kv = kvs.get(0);
+		String res = firstIsOptional ? "( " + literal(",") + " " + kv + " )?" : kv;
+		if (kvs.size() > 1)
+			res = res + " " + addRule(kv + "-rest", optionalRefs(kvs.subList(1, kvs.size()), name, true));
+		return res;
+	}
+
+	@SuppressWarnings("unchecked")
+	private String arrayRule(Map<String, Object> schema, String name) {
+		Object prefixItems = schema.get("prefixItems");
+		if (prefixItems == null && schema.get("items") instanceof List)
+			prefixItems = schema.get("items"); // draft 4 tuples
+		if (prefixItems != null) {
+			List<Object> tuple = (List<Object>) prefixItems;
+			StringBuilder sb = new StringBuilder(literal("["));
+			for (int i = 0; i < tuple.size(); i++) {
+				if (i != 0)
+					sb.append(' ').append(literal(","));
+				sb.append(' ').append(visit(tuple.get(i), name + "-" + i));
+			}
+			sb.append(' ').append(literal("]"));
+			return sb.toString();
+		}
+
+		String item = schema.containsKey("items") ? visit(schema.get("items"), name + "-item") : primitive("value");
+		int minItems = intValue(schema, "minItems", 0);
+		int maxItems = intValue(schema, "maxItems", -1);
+		if (maxItems == 0)
+			return literal("[]");
+		String next = "( " + literal(",") + " " + item + " )";
+		String list;
+		if (minItems == 0)
+			list = "( " + item + " " + repeat(next, 0, maxItems < 0 ? -1 : maxItems - 1) + " )?";
+		else
+			list = item + " " + repeat(next, minItems - 1, maxItems < 0 ? -1 : maxItems - 1);
+		return literal("[") + " " + list + " " + literal("]");
+	}
+
+	private String stringRule(Map<String, Object> schema) {
+		int minLength = intValue(schema, "minLength", 0);
+		int maxLength = intValue(schema, "maxLength", -1);
+		if (minLength == 0 && maxLength < 0)
+			return primitive("string");
+		return literal("\"") + " " + repeat(primitive("char"), minLength, maxLength) + " " + literal("\"");
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> mergeAllOf(List<Object> subSchemas) {
+		Map<String, Object> properties = new LinkedHashMap<>();
+		List<Object> required = new ArrayList<>();
+		for (Object subSchema : subSchemas) {
+			Map<String, Object> s = asSchema(subSchema);
+			if (s.containsKey("$ref"))
+				s = asSchema(lookupRef((String) s.get("$ref")));
+			if (!(s.containsKey("properties") || "object".equals(s.get("type"))))
+				throw new IllegalArgumentException("Only objects are supported in allOf");
+			properties.putAll((Map<String, Object>) s.getOrDefault("properties", Collections.emptyMap()));
+			required.addAll((List<Object>) s.getOrDefault("required", Collections.emptyList()));
+		}
+		Map<String, Object> merged = new LinkedHashMap<>();
+		merged.put("type", "object");
+		merged.put("properties", properties);
+		merged.put("required", required);
+		return merged;
+	}
+
+	private String resolveRef(String ref) {
+		String ruleName = refs.get(ref);
+		if (ruleName != null)
+			return ruleName; // already resolved, or recursive
+		String base = ruleName(ref.substring(ref.lastIndexOf('/') + 1));
+		ruleName = base;
+		for (int i = 1; rules.containsKey(ruleName) || PRIMITIVES.containsKey(ruleName); i++)
+			ruleName = base + i;
+		refs.put(ref, ruleName);
+		// reserve the name, so that recursive references can use it
+		rules.put(ruleName, "");
+		String defName = ruleName + "-def";
+		String defRef = visit(lookupRef(ref), defName);
+		String body;
+		if (defRef.equals(defName)) {
+			// use the definition directly
+			body = rules.remove(defName);
+			ruleNames.remove(body);
+		} else {
+			body = defRef;
+		}
+		rules.put(ruleName, body);
+		ruleNames.putIfAbsent(body, ruleName);
+		return ruleName;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Object lookupRef(String ref) {
+		Object target;
+		if (ref.startsWith("#/$defs/"))
+			target = ((Map<String, Object>) rootSchema.getOrDefault("$defs", Collections.emptyMap()))
+					.get(ref.substring("#/$defs/".length()));
+		else if (ref.startsWith("#/definitions/"))
+			target = ((Map<String, Object>) rootSchema.getOrDefault("definitions", Collections.emptyMap()))
+					.get(ref.substring("#/definitions/".length()));
+		else if ("#".equals(ref))
+			target = rootSchema;
+		else
+			throw new IllegalArgumentException("Unsupported reference " + ref);
+		if (target == null)
+			throw new IllegalArgumentException("Unresolved reference " + ref);
+		return target;
+	}
+
+	/*
+	 * RULES
+	 */
+	/**
+	 * Adds a rule, or reuses an existing rule with the same body, and returns the
+	 * name to reference it.
+	 */
+	private String addRule(String name, String body) {
+		if (ROOT.equals(name)) {
+			rules.put(ROOT, body);
+			return ROOT;
+		}
+		// a plain reference does not need its own rule
+		if (rules.containsKey(body) || PRIMITIVES.containsKey(body))
+			return body;
+		String existing = ruleNames.get(body);
+		if (existing != null)
+			return existing;
+		String unique = name;
+		for (int i = 1; rules.containsKey(unique) || PRIMITIVES.containsKey(unique); i++)
+			unique = name + i;
+		rules.put(unique, body);
+		ruleNames.put(body, unique);
+		return unique;
+	}
+
+	/** References a primitive rule, adding it and its dependencies if needed. */
+	private String primitive(String name) {
+		if (!rules.containsKey(name)) {
+			String body = PRIMITIVES.get(name);
+			rules.put(name, body);
+			for (String dependency : PRIMITIVES.keySet())
+				if (!dependency.equals(name) && body.matches(".*(^|[ (|])" + dependency + "([ )*?|]|$).*"))
+					primitive(dependency);
+		}
+		return name;
+	}
+
+	private String format() {
+		StringBuilder sb = new StringBuilder();
+		// root first
+		sb.append(ROOT).append(" ::= ").append(rules.get(ROOT)).append('\n');
+		for (Map.Entry<String, String> rule : rules.entrySet())
+			if (!ROOT.equals(rule.getKey()))
+				sb.append(rule.getKey()).append(" ::= ").append(rule.getValue()).append('\n');
+		return sb.toString();
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> asSchema(Object schema) {
+		if (Boolean.TRUE.equals(schema))
+			return Collections.emptyMap();
+		if (!(schema instanceof Map))
+			throw new IllegalArgumentException("Not a schema: " + schema);
+		return (Map<String, Object>) schema;
+	}
+
+	/** A non-negative integer keyword. */
+	private static int intValue(Map<String, Object> schema, String keyword, int defaultValue) {
+		Object value = schema.get(keyword);
+		if (value == null)
+			return defaultValue;
+		try {
+			int res = ((BigDecimal) value).intValueExact();
+			if (res < 0)
+				throw new IllegalArgumentException(keyword + " cannot be negative: " + value);
+			return res;
+		} catch (ClassCastException | ArithmeticException e) {
+			throw new IllegalArgumentException(keyword + " must be an integer, not " + value, e);
+		}
+	}
+
+	/** GBNF repetition, with max < 0 meaning unbounded. */
+	private static String repeat(String item, int min, int max) {
+		if (min == 0 && max < 0)
+			return item + "*";
+		if (min == 1 && max < 0)
+			return item + "+";
+		if (min == 0 && max == 1)
+			return item + "?";
+		if (min == max)
+			return item + "{" + min + "}";
+		return item + "{" + min + "," + (max < 0 ? "" : Integer.toString(max)) + "}";
+	}
+
+	/** A valid rule name, containing only letters, digits and dashes. */
+	private static String ruleName(String str) {
+		String res = str.replaceAll("[^a-zA-Z0-9-]+", "-");
+		return res.isEmpty() ? "x" : res;
+	}
+
+	/** A GBNF string literal. */
+	static String literal(String str) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\x%02X", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	/** Compact JSON serialization of a parsed value. */
+	@SuppressWarnings("unchecked")
+	static String toJson(Object value) {
+		if (value == JsonParser.NULL)
+			return "null";
+		if (value instanceof String) {
+			StringBuilder sb = new StringBuilder("\"");
+			String str = (String) value;
+			for (int i = 0; i < str.length(); i++) {
+				char c = str.charAt(i);
+				if (c == '"' || c == '\\')
+					sb.append('\\').append(c);
+				else if (c == '\n')
+					sb.append("\\n");
+				else if (c == '\r')
+					sb.append("\\r");
+				else if (c == '\t')
+					sb.append("\\t");
+				else if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+			return sb.append('"').toString();
+		}
+		if (value instanceof Map) {
+			List<String> members = new ArrayList<>();
+			for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet())
+				members.add(toJson(entry.getKey()) + ":" + toJson(entry.getValue()));
+			return "{" + String.join(",", members) + "}";
+		}
+		if (value instanceof List) {
+			List<String> items = new ArrayList<>();
+			for (Object item : (List<Object>) value)
+				items.add(toJson(item));
+			return "[" + String.join(",", items) + "]";
+		}
+		return value.toString(); // numbers and booleans
+	}
+
+	/**
+	 * Minimal JSON parser, producing {@link Map}, {@link List}, {@link String},
+	 * {@link BigDecimal}, {@link Boolean} and {@link #NULL}.
+	 */
+	static class JsonParser {
+		final static Object NULL = new Object() {
+			@Override
+			public String toString() {
+				return "null";
+			}
+		};
+
+		private final String json;
+		private int pos = 0;
+
+		JsonParser(String json) {
+			this.json = json;
+		}
+
+		Object parse() {
+			Object res = value();
+			skipWhitespace();
+			if (pos != json.length())
+				throw error("Unexpected trailing characters");
+			return res;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			if (pos == json.length())
+				throw error("Unexpected end of JSON");
+			char c = json.charAt(pos);
+			switch (c) {
+			case '{':
+				return object();
+			case '[':
+				return array();
+			case '"':
+				return string();
+			case 't':
+				return keyword("true", Boolean.TRUE);
+			case 'f':
+				return keyword("false", Boolean.FALSE);
+			case 'n':
+				return keyword("null", NULL);
+			default:
+				return number();
+			}
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> res = new LinkedHashMap<>();
+			pos++; // {
+			skipWhitespace();
+			if (peek() == '}') {
+				pos++;
+				return res;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error("Expected a key");
+				String key = string();
+				skipWhitespace();
+				expect(':');
+				res.put(key, value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect('}');
+					return res;
+				}
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> res = new ArrayList<>();
+			pos++; // [
+			skipWhitespace();
+			if (peek() == ']') {
+				pos++;
+				return res;
+			}
+			while (true) {
+				res.add(value());
+				skipWhitespace();
+				if (peek() == ',') {
+					pos++;
+				} else {
+					expect(']');
+					return res;
+				}
+			}
+		}
+
+		private String string() {
+			StringBuilder sb = new StringBuilder();
+			pos++; // "
+			while (true) {
+				if (pos >= json.length())
+					throw error("Unterminated string");
+				char c = json.charAt(pos++);
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (pos >= json.length())
+					throw error("Unterminated string");
+				char escaped = json.charAt(pos++);
+				switch (escaped) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (pos + 4 > json.length())
+						throw error("Invalid unicode escape");
+					sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+					pos += 4;
+					break;
+				default:
+					sb.append(escaped);
+				}
+			}
+		}
+
+		private BigDecimal number() {
+			int begin = pos;
+			while (pos < json.length() && "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0)
+				pos++;
+			try {
+				return new BigDecimal(json.substring(begin, pos));
+			} catch (NumberFormatException e) {
+				throw error("Invalid number");
+			}
+		}
+
+		private Object keyword(String keyword, Object value) {
+			if (!json.startsWith(keyword, pos))
+				throw error("Unexpected token");
+			pos += keyword.length();
+			return value;
+		}
+
+		private void skipWhitespace() {
+			while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+				pos++;
+		}
+
+		private char peek() {
+			if (pos >= json.length())
+				throw error("Unexpected end of JSON");
+			return json.charAt(pos);
+		}
+
+		private void expect(char c) {
+			if (peek() != c)
+				throw error("Expected '" + c + "'");
+			pos++;
+		}
+
+		private IllegalArgumentException error(String msg) {
+			return new IllegalArgumentException(msg + " at position " + pos);
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package org.argeo.jjml.llama.util;
+
+import static org.argeo.jjml.llama.LlamaCppContext.defaultContextParams;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.argeo.jjml.ggml.params.GgmlType;
+import org.argeo.jjml.llama.LlamaCppBatchProcessor;
+import org.argeo.jjml.llama.LlamaCppContext;
+import org.argeo.jjml.llama.LlamaCppModel;
+import org.argeo.jjml.llama.LlamaCppSamplerChain;
+import org.argeo.jjml.llama.LlamaCppSamplers;
+import org.argeo.jjml.llama.params.ContextParam;
+import org.argeo.jjml.llama.params.ContextParams;
+
+/**
+ * A throughput benchmark in the spirit of llama.cpp's <code>llama-bench</code>,
+ * sweeping a matrix of context parameters. It goes through the Java API, so
+ * that the overhead of the binding is measured as well.
+ * <p>
+ * For each combination, a random prompt common to all the sequences is written
+ * (<code>pp</code> test), and then tokens are generated for each sequence
+ * (<code>tg</code> test). Generation stops early if an end-of-generation token
+ * is sampled, the throughput being computed with the tokens actually
+ * generated. Since the KV cache cannot be cleared, each repetition uses a new
+ * context, whose creation is not measured.
+ */
+public class SimpleBench {
+	private final static int DEFAULT_PROMPT_LENGTH = 512;
+	private final static int DEFAULT_GENERATED_LENGTH = 128;
+	private final static int DEFAULT_REPETITIONS = 5;
+	private final static int DEFAULT_WARMUPS = 1;
+
+	private final LlamaCppModel model;
+	private final int promptLength;
+	private final int generatedLength;
+	private final int warmups;
+	private final int repetitions;
+
+	private final int[] prompt;
+
+	/**
+	 * @param promptLength    number of prompt tokens, or 0 for no
+	 *                        <code>pp</code> test
+	 * @param generatedLength maximum number of tokens generated per sequence, or 0
+	 *                        for no <code>tg</code> test
+	 * @param warmups         number of runs discarded before each combination
+	 * @param repetitions     number of measured runs for each combination
+	 */
+	public SimpleBench(LlamaCppModel model, int promptLength, int generatedLength, int warmups, int repetitions) {
+		if (promptLength < 0 || generatedLength < 0 || warmups < 0 || repetitions < 1)
+			throw new IllegalArgumentException("Invalid benchmark parameters");
+		this.model = model;
+		this.promptLength = promptLength;
+		this.generatedLength = generatedLength;
+		this.warmups = warmups;
+		this.repetitions = repetitions;
+
+		// random tokens, as llama-bench, with at least one token to generate from
+		Random random = new Random(42);
+		this.prompt = new int[Math.max(promptLength, 1)];
+		for (int i = 0; i < prompt.length; i++)
+			prompt[i] = random.nextInt(model.getVocabularySize());
+	}
+
+	/**
+	 * Runs the benchmark for each of these context parameters, the number of
+	 * sequences being {@link ContextParams#n_seq_max()}. The context size is set
+	 * so that the prompt and the generated tokens fit.
+	 */
+	public List<Result> run(List<ContextParams> matrix, PrintStream progress) {
+		List<Result> results = new ArrayList<>();
+		try (LlamaCppSamplerChain samplerChain = LlamaCppSamplers.newDefaultSampler(model, false)) {
+			for (ContextParams params : matrix) {
+				int parallel = Math.max(params.n_seq_max(), 1);
+				params = params.with(ContextParam.n_ctx, prompt.length + parallel * (generatedLength + 1));
+				if (progress != null)
+					progress.println(describe(params) + " ...");
+				for (int i = 0; i < warmups; i++)
+					runOnce(samplerChain, params, parallel);
+				long[][] runs = new long[repetitions][];
+				for (int i = 0; i < repetitions; i++)
+					runs[i] = runOnce(samplerChain, params, parallel);
+
+				if (promptLength > 0) {
+					long[] durations = new long[repetitions];
+					long[] tokens = new long[repetitions];
+					for (int i = 0; i < repetitions; i++) {
+						durations[i] = runs[i][0];
+						tokens[i] = promptLength;
+					}
+					results.add(new Result(model, params, "pp" + promptLength, durations, tokens));
+				}
+				if (generatedLength > 0) {
+					long[] durations = new long[repetitions];
+					long[] tokens = new long[repetitions];
+					for (int i = 0; i < repetitions; i++) {
+						durations[i] = runs[i][1];
+						tokens[i] = runs[i][2];
+					}
+					results.add(new Result(model, params, "tg" + generatedLength, durations, tokens));
+				}
+			}
+		}
+		return results;
+	}
+
+	/** @return prompt duration, generation duration and generated tokens */
+	private long[] runOnce(LlamaCppSamplerChain samplerChain, ContextParams params, int parallel) {
+		try (LlamaCppContext context = new LlamaCppContext(model, params); //
+				Processor processor = new Processor(context, samplerChain, parallel)) {
+			IntBuffer input = newDirectIntBuffer(prompt.length);
+			input.put(prompt).flip();
+			IntBuffer[] outputs = new IntBuffer[parallel];
+			for (int i = 0; i < parallel; i++)
+				outputs[i] = newDirectIntBuffer(generatedLength);
+
+			long begin = System.nanoTime();
+			processor.write(input);
+			long promptDuration = System.nanoTime() - begin;
+
+			long generationDuration = 0;
+			long generated = 0;
+			if (generatedLength > 0) {
+				begin = System.nanoTime();
+				processor.read(outputs);
+				generationDuration = System.nanoTime() - begin;
+				for (IntBuffer output : outputs)
+					generated += output.position();
+			}
+			return new long[] { promptDuration, generationDuration, generated };
+		}
+	}
+
+	/*
+	 * OUTPUT
+	 */
+	private final static String[] COLUMNS = { "model", "n_threads", "n_batch", "n_ubatch", "type_k", "type_v",
+			"flash_attn", "n_parallel", "test", "avg_ns", "stddev_ns", "avg_ts", "stddev_ts" };
+
+	/** Writes the results as CSV, with a header. */
+	public static void writeCsv(Appendable out, List<Result> results) throws IOException {
+		out.append(String.join(",", COLUMNS)).append('\n');
+		for (Result result : results) {
+			Object[] values = result.values();
+			for (int i = 0; i < values.length; i++) {
+				if (i != 0)
+					out.append(',');
+				if (values[i] instanceof String)
+					out.append('\"').append(values[i].toString().replace("\"", "\"\"")).append('\"');
+				else
+					out.append(format(values[i]));
+			}
+			out.append('\n');
+		}
+	}
+
+	/** Writes the results as a JSON array of objects. */
+	public static void writeJson(Appendable out, List<Result> results) throws IOException {
+		out.append("[\n");
+		for (int r = 0; r < results.size(); r++) {
+			Object[] values = results.get(r).values();
+			out.append("  {");
+			for (int i = 0; i < values.length; i++) {
+				if (i != 0)
+					out.append(", ");
+				out.append('\"').append(COLUMNS[i]).append("\": ");
+				if (values[i] instanceof String)
+					out.append('\"').append(values[i].toString().replace("\\", "\\\\").replace("\"", "\\\""))
+							.append('\"');
+				else
+					out.append(format(values[i]));
+			}
+			out.append(r == results.size() - 1 ? "}\n" : "},\n");
+		}
+		out.append("]\n");
+	}
+
+	private static String format(Object value) {
+		if (value instanceof Double)
+			return String.format(Locale.ROOT, "%.2f", value);
+		return value.toString();
+	}
+
+	private static String describe(ContextParams params) {
+		return "n_threads=" + params.n_threads() + ", n_batch=" + params.n_batch() + ", n_ubatch=" + params.n_ubatch()
+				+ ", type_k=" + typeName(params.type_k()) + ", type_v=" + typeName(params.type_v()) + ", flash_attn="
+				+ params.flash_attn() + ", n_parallel=" + params.n_seq_max();
+	}
+
+	private static String typeName(int code) {
+		return GgmlType.byCode(code).name().substring("GGML_TYPE_".length()).toLowerCase(Locale.ROOT);
+	}
+
+	private static IntBuffer newDirectIntBuffer(int capacity) {
+		return ByteBuffer.allocateDirect(capacity * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	/** The statistics of one test for one combination of parameters. */
+	public static class Result {
+		private final String model;
+		private final ContextParams params;
+		private final String test;
+		private final double meanNs;
+		private final double stddevNs;
+		private final double meanTokensPerSecond;
+		private final double stddevTokensPerSecond;
+
+		Result(LlamaCppModel model, ContextParams params, String test, long[] durations, long[] tokens) {
+			this.model = model.getDescription();
+			this.params = params;
+			this.test = test;
+			double[] ns = new double[durations.length];
+			double[] ts = new double[durations.length];
+			for (int i = 0; i < durations.length; i++) {
+				ns[i] = durations[i];
+				ts[i] = durations[i] > 0 ? tokens[i] * 1e9 / durations[i] : 0;
+			}
+			this.meanNs = mean(ns);
+			this.stddevNs = stddev(ns, meanNs);
+			this.meanTokensPerSecond = mean(ts);
+			this.stddevTokensPerSecond = stddev(ts, meanTokensPerSecond);
+		}
+
+		private Object[] values() {
+			return new Object[] { model, params.n_threads(), params.n_batch(), params.n_ubatch(),
+					typeName(params.type_k()), typeName(params.type_v()), params.flash_attn() ? 1 : 0,
+					params.n_seq_max(), test, meanNs, stddevNs, meanTokensPerSecond, stddevTokensPerSecond };
+		}
+
+		private static double mean(double[] values) {
+			double sum = 0;
+			for (double v : values)
+				sum += v;
+			return sum / values.length;
+		}
+
+		/** Sample standard deviation, 0 if there is a single value. */
+		private static double stddev(double[] values, double mean) {
+			if (values.length < 2)
+				return 0;
+			double sum = 0;
+			for (double v : values)
+				sum += (v - mean) * (v - mean);
+			return Math.sqrt(sum / (values.length - 1));
+		}
+
+		public ContextParams getParams() {
+			return params;
+		}
+
+		/**
+		 * <code>pp</code> followed by the prompt length, or <code>tg</code> followed
+		 * by the number of tokens to generate.
+		 */
+		public String getTest() {
+			return test;
+		}
+
+		public double getMeanNs() {
+			return meanNs;
+		}
+
+		public double getStddevNs() {
+			return stddevNs;
+		}
+
+		/** Tokens per second, for all the sequences. */
+		public double getMeanTokensPerSecond() {
+			return meanTokensPerSecond;
+		}
+
+		public double getStddevTokensPerSecond() {
+			return stddevTokensPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return describe(params) + ", " + test + ": "
+					+ String.format(Locale.ROOT, "%.2f +/- %.2f t/s", meanTokensPerSecond, stddevTokensPerSecond);
+		}
+	}
+
+	/** Gives access to the low-level methods. */
+	private static class Processor extends LlamaCppBatchProcessor {
+		Processor(LlamaCppContext context, LlamaCppSamplerChain samplerChain, int parallel) {
+			super(context, samplerChain, null, sequenceIds(parallel));
+		}
+
+		void write(IntBuffer input) {
+			writeBatch(input, true);
+		}
+
+		void read(IntBuffer[] outputs) {
+			readBatchAsync(outputs, null).join();
+		}
+
+		private static Set<Integer> sequenceIds(int parallel) {
+			return IntStream.range(0, parallel).boxed().collect(Collectors.toCollection(TreeSet::new));
+		}
+	}
+
+	/*
+	 * COMMAND LINE
+	 */
+	public static void main(String... args) throws Exception {
+		if (args.length == 0 || "--help".equals(args[0])) {
+			printUsage(args.length == 0 ? System.err : System.out);
+			System.exit(args.length == 0 ? 1 : 0);
+		}
+		Path modelPath = Paths.get(args[0]);
+
+		ContextParams defaults = defaultContextParams();
+		Map<ContextParam, List<String>> sweep = new EnumMap<>(ContextParam.class);
+		int promptLength = DEFAULT_PROMPT_LENGTH;
+		int generatedLength = DEFAULT_GENERATED_LENGTH;
+		int repetitions = DEFAULT_REPETITIONS;
+		int warmups = DEFAULT_WARMUPS;
+		String output = "csv";
+		for (int i = 1; i < args.length; i++) {
+			String option = args[i];
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("No value for option " + option);
+			String value = args[++i];
+			switch (option) {
+			case "-p":
+				promptLength = Integer.parseInt(value);
+				break;
+			case "-n":
+				generatedLength = Integer.parseInt(value);
+				break;
+			case "-r":
+				repetitions = Integer.parseInt(value);
+				break;
+			case "-w":
+				warmups = Integer.parseInt(value);
+				break;
+			case "-o":
+				output = value;
+				break;
+			case "-t":
+				sweep.put(ContextParam.n_threads, list(value));
+				break;
+			case "-b":
+				sweep.put(ContextParam.n_batch, list(value));
+				break;
+			case "-ub":
+				sweep.put(ContextParam.n_ubatch, list(value));
+				break;
+			case "-ctk":
+				sweep.put(ContextParam.type_k, types(value));
+				break;
+			case "-ctv":
+				sweep.put(ContextParam.type_v, types(value));
+				break;
+			case "-fa":
+				sweep.put(ContextParam.flash_attn,
+						list(value).stream().map((v) -> Boolean.toString(!"0".equals(v))).collect(Collectors.toList()));
+				break;
+			case "-np":
+				sweep.put(ContextParam.n_seq_max, list(value));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		if (!("csv".equals(output) || "json".equals(output)))
+			throw new IllegalArgumentException("Unsupported output " + output);
+		if (!sweep.containsKey(ContextParam.n_seq_max))
+			sweep.put(ContextParam.n_seq_max, Collections.singletonList("1"));
+
+		List<ContextParams> matrix = new ArrayList<>();
+		combine(defaults, new ArrayList<>(sweep.keySet()), 0, sweep, matrix);
+		// batch threads follow generation threads, as in llama-bench
+		if (sweep.containsKey(ContextParam.n_threads)
+				&& System.getProperty(ContextParam.n_threads_batch.asSystemProperty()) == null)
+			matrix.replaceAll((params) -> params.with(ContextParam.n_threads_batch, params.n_threads()));
+
+		List<Result> results;
+		try (LlamaCppModel model = LlamaCppModel.load(modelPath, LlamaCppModel.defaultModelParams())) {
+			SimpleBench bench = new SimpleBench(model, promptLength, generatedLength, warmups, repetitions);
+			results = bench.run(matrix, System.err);
+		}
+		if ("json".equals(output))
+			writeJson(System.out, results);
+		else
+			writeCsv(System.out, results);
+	}
+
+	/** Cartesian product of the swept parameters. */
+	private static void combine(ContextParams params, List<ContextParam> keys, int index,
+			Map<ContextParam, List<String>> sweep, List<ContextParams> matrix) {
+		if (index == keys.size()) {
+			matrix.add(params);
+			return;
+		}
+		ContextParam key = keys.get(index);
+		for (String value : sweep.get(key))
+			combine(params.with(key, value), keys, index + 1, sweep, matrix);
+	}
+
+	private static List<String> list(String value) {
+		return Arrays.asList(value.split(","));
+	}
+
+	/** KV cache types, either as in llama-bench (e.g. q8_0) or as enum names. */
+	private static List<String> types(String value) {
+		List<String> res = new ArrayList<>();
+		for (String type : list(value)) {
+			String name = type.toUpperCase(Locale.ROOT);
+			if (!name.startsWith("GGML_TYPE_"))
+				name = "GGML_TYPE_" + name;
+			res.add(Integer.toString(GgmlType.valueOf(name).getAsInt()));
+		}
+		return res;
+	}
+
+	private static void printUsage(PrintStream out) {
+		out.println("Usage: java " + SimpleBench.class.getName() + " <path/to/model.gguf> [options]");
+		out.println("Comma-separated values are swept, e.g. -t 4,8 -b 512,2048");
+		out.println("  -p <n>      prompt tokens (default: " + DEFAULT_PROMPT_LENGTH + ")");
+		out.println("  -n <n>      tokens to generate per sequence (default: " + DEFAULT_GENERATED_LENGTH + ")");
+		out.println("  -r <n>      repetitions (default: " + DEFAULT_REPETITIONS + ")");
+		out.println("  -w <n>      warmup runs (default: " + DEFAULT_WARMUPS + ")");
+		out.println("  -t <n,...>  threads");
+		out.println("  -b <n,...>  logical batch size");
+		out.println("  -ub <n,...> physical batch size");
+		out.println("  -ctk <t,...> K cache type, e.g. f16,q8_0");
+		out.println("  -ctv <t,...> V cache type, quantized types requiring -fa 1");
+		out.println("  -fa <0|1,...> flash attention");
+		out.println("  -np <n,...> parallel sequences (default: 1)");
+		out.println("  -o csv|json output format (default: csv)");
+		out.println("Model and default context parameters can be set with system properties, e.g. -D"
+				+ ContextParam.n_threads.asSystemProperty() + "=8");
+	}
+}
@@ -16,6 +16,8 @@ import java.util.function.Consumer;
 import org.argeo.jjml.llama.LlamaCppBatchProcessor;
 import org.argeo.jjml.llama.LlamaCppChatMessage;
 import org.argeo.jjml.llama.LlamaCppContext;
+import org.argeo.jjml.llama.LlamaCppDeTokenizer;
+import org.argeo.jjml.llama.LlamaCppMetrics;
 import org.argeo.jjml.llama.LlamaCppSamplerChain;
 import org.argeo.jjml.llama.LlamaCppSamplers;
 import org.argeo.jjml.llama.LlamaCppVocabulary;
@@ -105,11 +107,16 @@ public class SimpleChat extends LlamaCppBatchProcessor
 			prompt = message;
 		}
 
-		// tokenize
+		LlamaCppMetrics.Request request = getMetrics().newRequest();
 		IntBuffer input = vocabulary.tokenize(prompt);
-		writeBatch(input, true);
+		synchronized (this) {
+			// a cancelled read may still be using the processor
+			request.started();
+			writeBatch(input, true);
+		}
+		request.promptProcessed(input.limit());
 		FutureTask<Void> future = new FutureTask<>(() -> {
-			String reply = readAll(consumer);
+			String reply = readAll(consumer, request);
 			if (usePreviousMessages) {
 				LlamaCppChatMessage assistantMsg = StandardRole.ASSISTANT.msg(reply);
 				messages.add(assistantMsg);
@@ -128,15 +135,26 @@ public class SimpleChat extends LlamaCppBatchProcessor
 	}
 
 	protected String readAll(Consumer<String> consumer) {
+		return readAll(consumer, getMetrics().newRequest());
+	}
+
+	/** Reads until generation is completed, recording metrics for this request. */
+	protected String readAll(Consumer<String> consumer, LlamaCppMetrics.Request request) {
 		try {
 			StringBuffer sb = new StringBuffer();
 			reading = true;
+			// characters may be split across reads
+			LlamaCppDeTokenizer deTokenizer = new LlamaCppDeTokenizer(vocabulary);
+			IntBuffer output = IntBuffer.allocate(getContext().getBatchSize());
+			long[] tokenTimes = new long[output.capacity()];
 			running: while (reading) {
-				IntBuffer output = IntBuffer.allocate(getContext().getBatchSize());
-				CompletableFuture<Boolean> done = SimpleChat.this.readBatchAsync(output);
+				CompletableFuture<Boolean> done = SimpleChat.this.readBatchAsync(output, tokenTimes);
 				boolean generationCompleted = done.join();
+				request.generated(tokenTimes, output.position());
 				output.flip();
-				String str = vocabulary.deTokenize(output);
+				String str = deTokenizer.deTokenize(output).toString();
+				if (generationCompleted || Thread.currentThread().isInterrupted())
+					str = str + deTokenizer.flush();
 				consumer.accept(str);
 				if (usePreviousMessages)
 					sb.append(str);
@@ -159,6 +177,7 @@ public class SimpleChat extends LlamaCppBatchProcessor
 			}
 			return sb.toString();
 		} finally {
+			request.completed();
 			reading = false;
 		}
 	}
@@ -30,7 +30,7 @@ public class SimpleEmbedding extends LlamaCppEmbeddingProcessor implements Funct
 
 	@Override
 	public float[][] apply(String str) {
-		if (chunkSize <= 0 || PoolingType.LLAMA_POOLING_TYPE_NONE.equals(getContext().getPoolingType())) {
+		if (chunkSize <= 0 || PoolingType.LLAMA_POOLING_TYPE_NONE.equals(getPoolingType())) {
 			return processEmbeddings(Collections.singletonList(str));
 		}
 		int totalLength = str.length();
@@ -0,0 +1,396 @@
+package org.argeo.jjml.llama.util;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.argeo.jjml.ggml.params.GgmlType;
+
+/**
+ * Writes a tiny, randomly initialised GGUF model of the llama architecture, in
+ * pure Java, so that the whole API can be exercised offline and within seconds,
+ * typically by smoke tests and benchmarks. Its output is of course meaningless.
+ * <p>
+ * The vocabulary is SentencePiece-like with byte fallback, so that any text can
+ * be tokenized and de-tokenized without loss. It contains the ASCII characters,
+ * a few common words (and their prefixes, so that they can be merged), and the
+ * ChatML special tokens. Weights are 32-bit floats, the model being fully
+ * determined by its dimensions and its seed.
+ */
+public class TinyModel {
+	/** A ChatML template, which llama.cpp recognizes. */
+	public final static String CHATML_TEMPLATE = "{% for message in messages %}"
+			+ "{{'<|im_start|>' + message['role'] + '\\n' + message['content'] + '<|im_end|>' + '\\n'}}"
+			+ "{% endfor %}{% if add_generation_prompt %}{{ '<|im_start|>assistant\\n' }}{% endif %}";
+
+	private final static String[] WORDS = { "Hello", "World", "HELLO", "WORLD", "TEST", "Write", "the", "and", "of",
+			"to", "in", "is", "you", "that", "it", "for", "on", "are", "with", "as", "system", "user", "assistant",
+			"Java", "language", "programming", "good", "night", "luck", "Thank", "helpful", "bonjour", "monde", "é",
+			"è", "à", "ç" };
+
+	/** SentencePiece whitespace. */
+	private final static String SPACE = "▁";
+
+	// llama_token_type
+	private final static int TOKEN_TYPE_NORMAL = 1;
+	private final static int TOKEN_TYPE_UNKNOWN = 2;
+	private final static int TOKEN_TYPE_CONTROL = 3;
+	private final static int TOKEN_TYPE_BYTE = 6;
+
+	// gguf_type
+	private final static int GGUF_TYPE_UINT32 = 4;
+	private final static int GGUF_TYPE_INT32 = 5;
+	private final static int GGUF_TYPE_FLOAT32 = 6;
+	private final static int GGUF_TYPE_BOOL = 7;
+	private final static int GGUF_TYPE_STRING = 8;
+	private final static int GGUF_TYPE_ARRAY = 9;
+
+	private final static int GGUF_VERSION = 3;
+	private final static int GGUF_ALIGNMENT = 32;
+
+	private final int layerCount;
+	private final int embeddingSize;
+	private final int headCount;
+	private final int headCountKv;
+	private final int feedForwardSize;
+	private final int contextTrainingSize;
+	private final long seed;
+	private final String chatTemplate;
+
+	/** Two layers, embedding size of 64 and a ChatML template. */
+	public TinyModel() {
+		this(2, 64, 4, 2, 128, 2048, 0, CHATML_TEMPLATE);
+	}
+
+	/**
+	 * @param headCountKv  number of key/value heads, which must divide the number
+	 *                     of heads (grouped-query attention if lower)
+	 * @param chatTemplate the Jinja chat template, or <code>null</code>
+	 */
+	public TinyModel(int layerCount, int embeddingSize, int headCount, int headCountKv, int feedForwardSize,
+			int contextTrainingSize, long seed, String chatTemplate) {
+		if (layerCount < 1 || headCount < 1 || headCountKv < 1 || feedForwardSize < 1 || contextTrainingSize < 1)
+			throw new IllegalArgumentException("Dimensions must be positive");
+		if (embeddingSize % headCount != 0 || (embeddingSize / headCount) % 2 != 0)
+			throw new IllegalArgumentException("Embedding size must be a multiple of twice the head count");
+		if (headCount % headCountKv != 0)
+			throw new IllegalArgumentException("Key/value head count must divide head count");
+		this.layerCount = layerCount;
+		this.embeddingSize = embeddingSize;
+		this.headCount = headCount;
+		this.headCountKv = headCountKv;
+		this.feedForwardSize = feedForwardSize;
+		this.contextTrainingSize = contextTrainingSize;
+		this.seed = seed;
+		this.chatTemplate = chatTemplate;
+	}
+
+	/** Writes the model to this path, overwriting it if it exists. */
+	public void write(Path path) throws IOException {
+		Vocabulary vocabulary = new Vocabulary();
+		int n_vocab = vocabulary.tokens.size();
+		int headSize = embeddingSize / headCount;
+		int kvSize = headSize * headCountKv;
+
+		GgufOutput out = new GgufOutput();
+
+		/*
+		 * TENSORS DESCRIPTION
+		 */
+		List<Tensor> tensors = new ArrayList<>();
+		tensors.add(new Tensor("token_embd.weight", false, embeddingSize, n_vocab));
+		for (int i = 0; i < layerCount; i++) {
+			String prefix = "blk." + i + ".";
+			tensors.add(new Tensor(prefix + "attn_norm.weight", true, embeddingSize));
+			tensors.add(new Tensor(prefix + "attn_q.weight", false, embeddingSize, embeddingSize));
+			tensors.add(new Tensor(prefix + "attn_k.weight", false, embeddingSize, kvSize));
+			tensors.add(new Tensor(prefix + "attn_v.weight", false, embeddingSize, kvSize));
+			tensors.add(new Tensor(prefix + "attn_output.weight", false, embeddingSize, embeddingSize));
+			tensors.add(new Tensor(prefix + "ffn_norm.weight", true, embeddingSize));
+			tensors.add(new Tensor(prefix + "ffn_gate.weight", false, embeddingSize, feedForwardSize));
+			tensors.add(new Tensor(prefix + "ffn_down.weight", false, feedForwardSize, embeddingSize));
+			tensors.add(new Tensor(prefix + "ffn_up.weight", false, embeddingSize, feedForwardSize));
+		}
+		tensors.add(new Tensor("output_norm.weight", true, embeddingSize));
+		tensors.add(new Tensor("output.weight", false, embeddingSize, n_vocab));
+
+		/*
+		 * METADATA
+		 */
+		Map<String, Object> metadata = new LinkedHashMap<>();
+		metadata.put("general.architecture", "llama");
+		metadata.put("general.name", "Tiny " + layerCount + "x" + embeddingSize + " (seed " + seed + ")");
+		metadata.put("general.alignment", new Uint32(GGUF_ALIGNMENT));
+		metadata.put("llama.context_length", new Uint32(contextTrainingSize));
+		metadata.put("llama.embedding_length", new Uint32(embeddingSize));
+		metadata.put("llama.block_count", new Uint32(layerCount));
+		metadata.put("llama.feed_forward_length", new Uint32(feedForwardSize));
+		metadata.put("llama.attention.head_count", new Uint32(headCount));
+		metadata.put("llama.attention.head_count_kv", new Uint32(headCountKv));
+		metadata.put("llama.attention.layer_norm_rms_epsilon", 1e-5f);
+		metadata.put("llama.rope.dimension_count", new Uint32(headSize));
+		metadata.put("llama.rope.freq_base", 10000f);
+		metadata.put("llama.vocab_size", new Uint32(n_vocab));
+		metadata.put("tokenizer.ggml.model", "llama");
+		metadata.put("tokenizer.ggml.tokens", vocabulary.tokens.toArray(new String[n_vocab]));
+		metadata.put("tokenizer.ggml.scores", vocabulary.scores());
+		metadata.put("tokenizer.ggml.token_type", vocabulary.types());
+		metadata.put("tokenizer.ggml.unknown_token_id", new Uint32(0));
+		metadata.put("tokenizer.ggml.bos_token_id", new Uint32(1));
+		metadata.put("tokenizer.ggml.eos_token_id", new Uint32(2));
+		metadata.put("tokenizer.ggml.add_bos_token", true);
+		metadata.put("tokenizer.ggml.add_eos_token", false);
+		// so that de-tokenization gives back the original text
+		metadata.put("tokenizer.ggml.add_space_prefix", false);
+		if (chatTemplate != null)
+			metadata.put("tokenizer.chat_template", chatTemplate);
+
+		/*
+		 * HEADER
+		 */
+		out.putBytes("GGUF".getBytes(UTF_8));
+		out.putInt(GGUF_VERSION);
+		out.putLong(tensors.size());
+		out.putLong(metadata.size());
+		for (Map.Entry<String, Object> entry : metadata.entrySet()) {
+			out.putString(entry.getKey());
+			out.putValue(entry.getValue());
+		}
+		long offset = 0;
+		for (Tensor tensor : tensors) {
+			out.putString(tensor.name);
+			out.putInt(tensor.ne.length);
+			for (long ne : tensor.ne)
+				out.putLong(ne);
+			out.putInt(GgmlType.GGML_TYPE_F32.getAsInt());
+			out.putLong(offset);
+			offset = align(offset + tensor.byteSize());
+		}
+		out.pad();
+
+		/*
+		 * DATA
+		 */
+		Random random = new Random(seed);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeFully(channel, out.toByteBuffer());
+			for (Tensor tensor : tensors) {
+				long size = tensor.byteSize();
+				ByteBuffer data = ByteBuffer.allocate((int) align(size)).order(ByteOrder.LITTLE_ENDIAN);
+				for (long i = 0; i < size / Float.BYTES; i++)
+					data.putFloat(tensor.norm ? 1f : (float) (random.nextGaussian() * 0.02));
+				data.clear();
+				writeFully(channel, data);
+			}
+		}
+	}
+
+	/**
+	 * Writes the model to a temporary file, which will be deleted when the JVM
+	 * exits.
+	 */
+	public Path writeTemporary() throws IOException {
+		Path path = Files.createTempFile("jjml-tiny-", ".gguf");
+		path.toFile().deleteOnExit();
+		write(path);
+		return path;
+	}
+
+	private static long align(long offset) {
+		return (offset + GGUF_ALIGNMENT - 1) / GGUF_ALIGNMENT * GGUF_ALIGNMENT;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			channel.write(buf);
+	}
+
+	/*
+	 * CLASSES
+	 */
+	/** Tokens, with their type. Order of the ids follows llama.cpp's SPM. */
+	private static class Vocabulary {
+		private final List<String> tokens = new ArrayList<>();
+		private final List<Integer> types = new ArrayList<>();
+
+		Vocabulary() {
+			add("<unk>", TOKEN_TYPE_UNKNOWN);
+			add("<s>", TOKEN_TYPE_CONTROL);
+			add("</s>", TOKEN_TYPE_CONTROL);
+			for (int b = 0; b < 256; b++)
+				add(String.format("<0x%02X>", b), TOKEN_TYPE_BYTE);
+			add("<|im_start|>", TOKEN_TYPE_CONTROL);
+			add("<|im_end|>", TOKEN_TYPE_CONTROL);
+			add(SPACE, TOKEN_TYPE_NORMAL);
+			for (char c = 0x21; c < 0x7F; c++) {
+				add(Character.toString(c), TOKEN_TYPE_NORMAL);
+				if (Character.isLetterOrDigit(c))
+					add(SPACE + c, TOKEN_TYPE_NORMAL);
+			}
+			// all prefixes, since SentencePiece merges pairs of existing tokens
+			for (String word : WORDS) {
+				for (int i = 1; i <= word.length(); i++) {
+					add(word.substring(0, i), TOKEN_TYPE_NORMAL);
+					add(SPACE + word.substring(0, i), TOKEN_TYPE_NORMAL);
+				}
+			}
+		}
+
+		private void add(String token, int type) {
+			if (tokens.contains(token))
+				return;
+			tokens.add(token);
+			types.add(type);
+		}
+
+		/** Longer pieces have a higher score, so that they are merged first. */
+		float[] scores() {
+			float[] res = new float[tokens.size()];
+			for (int i = 0; i < res.length; i++)
+				res[i] = types.get(i) == TOKEN_TYPE_NORMAL ? tokens.get(i).length() : 0;
+			return res;
+		}
+
+		int[] types() {
+			return types.stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	private static class Tensor {
+		private final String name;
+		private final boolean norm;
+		private final long[] ne;
+
+		Tensor(String name, boolean norm, long... ne) {
+			this.name = name;
+			this.norm = norm;
+			this.ne = ne;
+		}
+
+		long byteSize() {
+			long res = Float.BYTES;
+			for (long n : ne)
+				res = res * n;
+			return res;
+		}
+	}
+
+	/** Distinguishes unsigned 32-bit integers from signed ones. */
+	private static class Uint32 {
+		private final int value;
+
+		Uint32(int value) {
+			this.value = value;
+		}
+	}
+
+	/** Little-endian serialization of the GGUF header. */
+	private static class GgufOutput {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final ByteBuffer scalar = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+		void putBytes(byte[] arr) {
+			bytes.write(arr, 0, arr.length);
+		}
+
+		void putInt(int value) {
+			scalar.clear();
+			scalar.putInt(value);
+			bytes.write(scalar.array(), 0, Integer.BYTES);
+		}
+
+		void putLong(long value) {
+			scalar.clear();
+			scalar.putLong(value);
+			bytes.write(scalar.array(), 0, Long.BYTES);
+		}
+
+		void putFloat(float value) {
+			putInt(Float.floatToIntBits(value));
+		}
+
+		void putString(String str) {
+			byte[] utf8 = str.getBytes(UTF_8);
+			putLong(utf8.length);
+			putBytes(utf8);
+		}
+
+		void putValue(Object value) {
+			if (value instanceof Uint32) {
+				putInt(GGUF_TYPE_UINT32);
+				putInt(((Uint32) value).value);
+			} else if (value instanceof Float) {
+				putInt(GGUF_TYPE_FLOAT32);
+				putFloat((Float) value);
+			} else if (value instanceof Boolean) {
+				putInt(GGUF_TYPE_BOOL);
+				bytes.write((Boolean) value ? 1 : 0);
+			} else if (value instanceof String) {
+				putInt(GGUF_TYPE_STRING);
+				putString((String) value);
+			} else if (value instanceof String[]) {
+				String[] arr = (String[]) value;
+				putInt(GGUF_TYPE_ARRAY);
+				putInt(GGUF_TYPE_STRING);
+				putLong(arr.length);
+				for (String str : arr)
+					putString(str);
+			} else if (value instanceof float[]) {
+				float[] arr = (float[]) value;
+				putInt(GGUF_TYPE_ARRAY);
+				putInt(GGUF_TYPE_FLOAT32);
+				putLong(arr.length);
+				for (float f : arr)
+					putFloat(f);
+			} else if (value instanceof int[]) {
+				int[] arr = (int[]) value;
+				putInt(GGUF_TYPE_ARRAY);
+				putInt(GGUF_TYPE_INT32);
+				putLong(arr.length);
+				for (int i : arr)
+					putInt(i);
+			} else {
+				throw new IllegalArgumentException("Unsupported metadata type " + value.getClass());
+			}
+		}
+
+		/** Pads to the alignment, since tensor data follows. */
+		void pad() {
+			while (bytes.size() % GGUF_ALIGNMENT != 0)
+				bytes.write(0);
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(bytes.toByteArray());
+		}
+	}
+
+	/*
+	 * COMMAND LINE
+	 */
+	public static void main(String... args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: java " + TinyModel.class.getName() + " <path/to/model.gguf> [seed]");
+			System.exit(1);
+		}
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		TinyModel tinyModel = new TinyModel(2, 64, 4, 2, 128, 2048, seed, CHATML_TEMPLATE);
+		Path path = Paths.get(args[0]);
+		tinyModel.write(path);
+		System.out.println("Wrote " + path + " (" + Files.size(path) + " bytes)");
+	}
+}